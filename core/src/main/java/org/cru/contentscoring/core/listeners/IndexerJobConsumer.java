@@ -1,15 +1,33 @@
 package org.cru.contentscoring.core.listeners;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
 import org.apache.sling.event.jobs.consumer.JobConsumer;
 import org.apache.sling.settings.SlingSettingsService;
 import org.cru.contentscoring.core.service.ContentScoreUpdateService;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,15 +35,49 @@ import com.day.cq.replication.ReplicationAction;
 import com.day.cq.replication.ReplicationActionType;
 import com.day.cq.wcm.api.Page;
 import com.day.cq.wcm.api.PageManager;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 
+/**
+ * Consumes scoring jobs from an ordered queue, so activations of a page are processed in the order they happened.
+ * The paths of a batch are partitioned by path hash: every path always lands in the same partition and partitions
+ * are processed in parallel, each with the pooled service resolver of its worker thread. The pages of a chunk are
+ * saved together. Paths that fail are added as a new job, so the pages of the batch that were updated aren't
+ * updated again; a path is given up on after {@value #MAX_ATTEMPTS} attempts.
+ */
 @Component(service = JobConsumer.class, property = {
         JobConsumer.PROPERTY_TOPICS + "=" + ReplicationEventHandler.SCORING_JOB_NAME})
+@Designate(ocd = IndexerJobConsumer.Config.class)
 public class IndexerJobConsumer implements JobConsumer {
-   
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Max Paths Per Resolver",
+                description = "Number of paths processed with one service resolver before changes are saved.")
+        int maxPathsPerResolver();
+
+        @AttributeDefinition(
+                name = "Parallelism",
+                description = "Number of partitions of a batch processed in parallel. Defaults to the number of cores.")
+        int parallelism();
+    }
+
     private Logger LOG = LoggerFactory.getLogger(IndexerJobConsumer.class);
 
+    static final String MAX_PATHS_PER_RESOLVER = "maxPathsPerResolver";
+    private static final int DEFAULT_MAX_PATHS_PER_RESOLVER = 200;
+
+    static final String PARALLELISM = "parallelism";
+
+    static final String ATTEMPT_PARAM = "attempt";
+    static final int MAX_ATTEMPTS = 10;
+
+    @Reference
+    private SystemUtils systemUtils;
+
     @Reference
-    private ResourceResolverFactory resolverFactory;
+    private JobManager jobManager;
 
     @Reference
     private ContentScoreUpdateService service;
@@ -33,37 +85,174 @@ public class IndexerJobConsumer implements JobConsumer {
     @Reference
     private SlingSettingsService slingSettingsService;
 
+    private int maxPathsPerResolver = DEFAULT_MAX_PATHS_PER_RESOLVER;
+    private int parallelism = 1;
+    private ExecutorService executor;
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        maxPathsPerResolver = Math.max(
+            1,
+            PropertiesUtil.toInteger(config.get(MAX_PATHS_PER_RESOLVER), DEFAULT_MAX_PATHS_PER_RESOLVER));
+        parallelism = Math.max(
+            1,
+            PropertiesUtil.toInteger(config.get(PARALLELISM), Runtime.getRuntime().availableProcessors()));
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "content-scoring-indexer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOG.debug("configure: parallelism={}", parallelism);
+    }
+
+    @Deactivate
+    void deactivate() {
+        executor.shutdownNow();
+    }
+
     public JobResult process(final Job job) {
         if (!slingSettingsService.getRunModes().contains("author")) {
             return JobResult.CANCEL;
         }
 
-        ReplicationAction action = (ReplicationAction) job.getProperty(ReplicationEventHandler.EVENT_PARAM);
+        ReplicationActionType actionType;
+        String[] paths;
 
-        try (ResourceResolver resourceResolver = resolverFactory.getServiceResourceResolver(null)) {
-            Session session = resourceResolver.adaptTo(Session.class);
-            PageManager pageManager = resourceResolver.adaptTo(PageManager.class);
-            Page page = pageManager.getPage(action.getPath());
-
-            if (page != null) {
-                LOG.debug("ReplicationActionType: " + action.getType());
-
-                if (ReplicationActionType.ACTIVATE.equals(action.getType())
-                        || ReplicationActionType.INTERNAL_POLL.equals(action.getType()))
-                {
+        // Jobs created before replication events were batched carry the whole action
+        ReplicationAction action = (ReplicationAction) job.getProperty(ReplicationEventHandler.EVENT_PARAM);
+        if (action != null) {
+            actionType = action.getType();
+            paths = new String[] { action.getPath() };
+        } else {
+            actionType = ReplicationActionType.fromName(
+                job.getProperty(ReplicationEventHandler.ACTION_TYPE_PARAM, String.class));
+            paths = job.getProperty(ReplicationEventHandler.PATHS_PARAM, String[].class);
+        }
 
-                    LOG.debug("{} path={} ", action.getType(), action.getPath());
+        LOG.debug("ReplicationActionType: " + actionType);
+        if (paths == null
+            || !(ReplicationActionType.ACTIVATE.equals(actionType)
+                || ReplicationActionType.INTERNAL_POLL.equals(actionType))) {
+            return JobResult.OK;
+        }
 
-                    service.updateContentScore(page);
-                    session.save();
+        try {
+            List<String> failedPaths = new ArrayList<>();
+            List<List<String>> partitions = partition(paths);
+            if (partitions.size() <= 1) {
+                for (List<String> partition : partitions) {
+                    failedPaths.addAll(processPartition(actionType, partition));
+                }
+            } else {
+                List<Callable<List<String>>> tasks = new ArrayList<>();
+                for (List<String> partition : partitions) {
+                    tasks.add(() -> processPartition(actionType, partition));
+                }
+                for (Future<List<String>> result : executor.invokeAll(tasks)) {
+                    failedPaths.addAll(result.get());
                 }
             }
-            return JobResult.OK;
+
+            return failedPaths.isEmpty() || retry(job, actionType, failedPaths) ? JobResult.OK : JobResult.FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return JobResult.FAILED;
         } catch (Exception e) {
             LOG.error("Failed to process incoming job: ", e);
             return JobResult.FAILED;
         }
     }
 
-    
+    /**
+     * Splits the paths into {@code parallelism} partitions by path hash, keeping the order of the paths
+     * within each partition. Empty partitions are dropped.
+     */
+    @VisibleForTesting
+    List<List<String>> partition(final String[] paths) {
+        List<List<String>> partitions = new ArrayList<>();
+        for (int i = 0; i < parallelism; i++) {
+            partitions.add(new ArrayList<>());
+        }
+
+        for (String path : paths) {
+            partitions.get(Math.floorMod(path.hashCode(), parallelism)).add(path);
+        }
+        partitions.removeIf(List::isEmpty);
+        return partitions;
+    }
+
+    /**
+     * Adds a job for the paths that failed, counting the attempts of the job that is retried.
+     *
+     * @return false if the job couldn't be added, so the whole batch has to be retried
+     */
+    private boolean retry(final Job job, final ReplicationActionType actionType, final List<String> failedPaths) {
+        int attempt = job.getProperty(ATTEMPT_PARAM, 1);
+        if (attempt >= MAX_ATTEMPTS) {
+            LOG.error("Giving up on the content scores of {} after {} attempts", failedPaths, attempt);
+            return true;
+        }
+
+        Map<String, Object> jobProperties = new HashMap<>();
+        jobProperties.put(ReplicationEventHandler.ACTION_TYPE_PARAM, actionType.getName());
+        jobProperties.put(ReplicationEventHandler.PATHS_PARAM, failedPaths.toArray(new String[0]));
+        jobProperties.put(ATTEMPT_PARAM, attempt + 1);
+        LOG.debug("Retrying the content scores of {} failed paths", failedPaths.size());
+        return jobManager.addJob(ReplicationEventHandler.SCORING_JOB_NAME, jobProperties) != null;
+    }
+
+    /**
+     * @return the paths that failed; all paths of a chunk fail if its resolver can't be had or it can't be saved
+     */
+    private List<String> processPartition(final ReplicationActionType actionType, final List<String> paths) {
+        List<String> failedPaths = new ArrayList<>();
+        for (List<String> chunk : Lists.partition(paths, maxPathsPerResolver)) {
+            try {
+                failedPaths.addAll(systemUtils.callWithPooledResourceResolver(
+                    null,
+                    resourceResolver -> processChunk(resourceResolver, actionType, chunk)));
+            } catch (Exception e) {
+                LOG.error("Failed to update the content scores of {} paths", chunk.size(), e);
+                failedPaths.addAll(chunk);
+            }
+        }
+        return failedPaths;
+    }
+
+    /**
+     * Updates the pages of the chunk and saves them together. The session is refreshed between paths so
+     * a long chunk doesn't work on stale content, keeping the changes of the pages before.
+     *
+     * @return the paths that failed
+     */
+    private List<String> processChunk(
+        final ResourceResolver resourceResolver,
+        final ReplicationActionType actionType,
+        final List<String> paths) throws RepositoryException {
+
+        PageManager pageManager = resourceResolver.adaptTo(PageManager.class);
+        Session session = resourceResolver.adaptTo(Session.class);
+
+        List<String> failedPaths = new ArrayList<>();
+        for (String path : paths) {
+            try {
+                session.refresh(true);
+                Page page = pageManager.getPage(path);
+                if (page != null) {
+                    LOG.debug("{} path={} ", actionType, path);
+                    service.updateContentScore(page);
+                }
+            } catch (Exception e) {
+                LOG.error("Failed to update content score for {}", path, e);
+                failedPaths.add(path);
+            }
+        }
+
+        if (session.hasPendingChanges()) {
+            session.save();
+        }
+        return failedPaths;
+    }
 }
@@ -1,39 +1,250 @@
 package org.cru.contentscoring.core.listeners;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.event.jobs.JobManager;
+import org.cru.contentscoring.core.util.PathPrefixFilter;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.google.common.annotations.VisibleForTesting;
 
 /**
- * A service to listen changes in the resource tree. It registers an 
- * event handler service. When the event is handled a new Job is 
- * created to index the page related with the replication event thrown.
+ * A service to listen changes in the resource tree. It registers an
+ * event handler service. Events that can't affect a content score (other
+ * action types, or paths outside the configured roots) are dropped. The
+ * remaining paths are buffered for a short window and a Job is created for
+ * each batch of paths, so a tree activation doesn't persist one job per page.
+ *
+ * Buffered paths only live in memory until their job is added. Deactivation adds the jobs of the buffered paths
+ * before it returns, but the paths of the last window are lost if the instance crashes. The pages of such an
+ * activation keep their previous score until they are activated again.
  */
 @Component(service = EventHandler.class, immediate = true, property = {
         "event.topics=" + ReplicationAction.EVENT_TOPIC})
+@Designate(ocd = ReplicationEventHandler.Config.class)
 public class ReplicationEventHandler implements EventHandler {
 
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Batch Window",
+                description = "Time (in milliseconds) to buffer replicated paths before creating a job.")
+        long batchWindow() default DEFAULT_BATCH_WINDOW;
+
+        @AttributeDefinition(
+                name = "Batch Size",
+                description = "Max number of paths in a single job. A full batch is emitted immediately.")
+        int batchSize() default DEFAULT_BATCH_SIZE;
+
+        @AttributeDefinition(
+                name = "Include Roots",
+                description = "Only paths under one of these roots create scoring jobs.")
+        String[] includeRoots() default { "/content" };
+
+        @AttributeDefinition(
+                name = "Exclude Roots",
+                description = "Paths under these roots never create scoring jobs, even when under an include root.")
+        String[] excludeRoots() default {
+            "/content/dam",
+            "/content/cq:tags",
+            "/content/experience-fragments"
+        };
+    }
+
     private Logger LOG = LoggerFactory.getLogger(this.getClass());
     static final String EVENT_PARAM = "action";
+    static final String PATHS_PARAM = "paths";
+    static final String ACTION_TYPE_PARAM = "actionType";
     static final String SCORING_JOB_NAME = "org/cru/content-scoring-update";
 
+    static final String BATCH_WINDOW = "batchWindow";
+    private static final long DEFAULT_BATCH_WINDOW = 2L * 1000L;
+
+    static final String BATCH_SIZE = "batchSize";
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    static final String INCLUDE_ROOTS = "includeRoots";
+    private static final String[] DEFAULT_INCLUDE_ROOTS = { "/content" };
+
+    static final String EXCLUDE_ROOTS = "excludeRoots";
+    private static final String[] DEFAULT_EXCLUDE_ROOTS = {
+        "/content/dam",
+        "/content/cq:tags",
+        "/content/experience-fragments"
+    };
+
+    private static final long SHUTDOWN_TIMEOUT = 10L * 1000L;
+
     @Reference
     private JobManager jobManager;
 
+    private long batchWindow = DEFAULT_BATCH_WINDOW;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private PathPrefixFilter pathFilter = new PathPrefixFilter(DEFAULT_INCLUDE_ROOTS, DEFAULT_EXCLUDE_ROOTS);
+
+    private final AtomicLong acceptedPaths = new AtomicLong();
+    private final AtomicLong filteredByActionType = new AtomicLong();
+    private final AtomicLong filteredByPath = new AtomicLong();
+
+    private final Object lock = new Object();
+    private final Map<String, Set<String>> pendingPaths = new LinkedHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> scheduledFlush;
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        batchWindow = PropertiesUtil.toLong(config.get(BATCH_WINDOW), DEFAULT_BATCH_WINDOW);
+        batchSize = Math.max(1, PropertiesUtil.toInteger(config.get(BATCH_SIZE), DEFAULT_BATCH_SIZE));
+        pathFilter = new PathPrefixFilter(
+            PropertiesUtil.toStringArray(config.get(INCLUDE_ROOTS), DEFAULT_INCLUDE_ROOTS),
+            PropertiesUtil.toStringArray(config.get(EXCLUDE_ROOTS), DEFAULT_EXCLUDE_ROOTS));
+        LOG.debug("configure: batchWindow={}, batchSize={}", batchWindow, batchSize);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "content-scoring-replication-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops the window and adds the jobs of the buffered paths before returning, so a deploy doesn't drop them.
+     * A flush that is already running is waited for rather than interrupted.
+     */
+    @Deactivate
+    void deactivate() {
+        synchronized (lock) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+            }
+        }
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOG.warn("A scheduled flush of replicated paths didn't finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
     public void handleEvent(Event event) {
         LOG.debug("Handle replication event.");
         ReplicationAction action = ReplicationAction.fromEvent(event);
+        if (action == null || !isScoringAction(action.getType())) {
+            filteredByActionType.incrementAndGet();
+            return;
+        }
+
+        List<Map<String, Object>> fullBatches = new ArrayList<>();
+        synchronized (lock) {
+            Set<String> paths = pendingPaths.computeIfAbsent(action.getType().getName(), k -> new LinkedHashSet<>());
+            for (String path : action.getPaths()) {
+                if (!pathFilter.accepts(path)) {
+                    filteredByPath.incrementAndGet();
+                    continue;
+                }
+                acceptedPaths.incrementAndGet();
+                paths.add(path);
+                if (paths.size() >= batchSize) {
+                    fullBatches.add(buildJobProperties(action.getType().getName(), paths));
+                    paths.clear();
+                }
+            }
+
+            if (scheduledFlush == null && !paths.isEmpty()) {
+                scheduledFlush = scheduler.schedule(this::flush, batchWindow, TimeUnit.MILLISECONDS);
+            }
+        }
+        addJobs(fullBatches);
+    }
+
+    private boolean isScoringAction(final ReplicationActionType actionType) {
+        return ReplicationActionType.ACTIVATE.equals(actionType)
+            || ReplicationActionType.INTERNAL_POLL.equals(actionType);
+    }
+
+    /**
+     * @return the number of replicated paths that were handed to a scoring job
+     */
+    public long getAcceptedPaths() {
+        return acceptedPaths.get();
+    }
+
+    /**
+     * @return the number of replication events dropped because of their action type
+     */
+    public long getFilteredByActionType() {
+        return filteredByActionType.get();
+    }
+
+    /**
+     * @return the number of replicated paths dropped because they are outside the include roots
+     */
+    public long getFilteredByPath() {
+        return filteredByPath.get();
+    }
+
+    /**
+     * Emits a job for every buffered batch of paths, regardless of the batch window.
+     */
+    @VisibleForTesting
+    void flush() {
+        List<Map<String, Object>> batches = new ArrayList<>();
+        synchronized (lock) {
+            for (Map.Entry<String, Set<String>> entry : pendingPaths.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    batches.add(buildJobProperties(entry.getKey(), entry.getValue()));
+                }
+            }
+            pendingPaths.clear();
+            scheduledFlush = null;
+        }
+        addJobs(batches);
+        LOG.debug(
+            "Replicated paths accepted: {}, filtered by path: {}, events filtered by action type: {}",
+            acceptedPaths.get(),
+            filteredByPath.get(),
+            filteredByActionType.get());
+    }
+
+    private Map<String, Object> buildJobProperties(final String actionType, final Set<String> paths) {
         Map<String, Object> jobProperties = new HashMap<>();
-        jobProperties.put(EVENT_PARAM, action);
-        jobManager.addJob(SCORING_JOB_NAME, jobProperties);
+        jobProperties.put(ACTION_TYPE_PARAM, actionType);
+        jobProperties.put(PATHS_PARAM, paths.toArray(new String[0]));
+        return jobProperties;
+    }
+
+    private void addJobs(final List<Map<String, Object>> batches) {
+        for (Map<String, Object> jobProperties : batches) {
+            LOG.debug("Adding job for {} {} paths", ((String[]) jobProperties.get(PATHS_PARAM)).length,
+                jobProperties.get(ACTION_TYPE_PARAM));
+            jobManager.addJob(SCORING_JOB_NAME, jobProperties);
+        }
     }
 }
@@ -0,0 +1,245 @@
+package org.cru.contentscoring.core.listeners;
+
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_DRY_RUN;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_ERRORS;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_LAST_ERROR;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_MIGRATED_SUBTREES;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_PROCESSED;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_PROCESSED_BEFORE_RESUME;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_STARTED;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_STATE;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_TOTAL;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_UNREPLICATED_PATHS;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_UPDATED;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobConsumer;
+import org.cru.contentscoring.core.models.MigrationState;
+import org.cru.contentscoring.core.service.ScoreMigrationService;
+import org.cru.contentscoring.core.service.ScoreMigrationService.MigrationListener;
+import org.cru.contentscoring.core.util.MigrationStatusUtil;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrUtil;
+import com.google.common.collect.Sets;
+
+/**
+ * Runs score-to-tag migrations queued by the CopyScoresToTagsServlet. Progress is saved under
+ * {@link MigrationStatusUtil#MIGRATION_ROOT} after every batch. A run that didn't succeed, because it failed or
+ * the instance went down, is resumed from the subtrees it had completed. Migrated pages that failed to replicate
+ * are kept until a later run replicates them, even by a run that starts over.
+ */
+@Component(service = JobConsumer.class, property = {
+        JobConsumer.PROPERTY_TOPICS + "=" + ScoreMigrationJobConsumer.MIGRATION_JOB_NAME})
+public class ScoreMigrationJobConsumer implements JobConsumer {
+    private static final Logger LOG = LoggerFactory.getLogger(ScoreMigrationJobConsumer.class);
+
+    public static final String MIGRATION_JOB_NAME = "org/cru/content-scoring-migration";
+    public static final String PATH_PARAM = "path";
+    public static final String DRY_RUN_PARAM = "dryRun";
+
+    @Reference
+    private ScoreMigrationService scoreMigrationService;
+
+    @Reference
+    private SystemUtils systemUtils;
+
+    @Override
+    public JobResult process(final Job job) {
+        String path = job.getProperty(PATH_PARAM, String.class);
+        boolean dryRun = job.getProperty(DRY_RUN_PARAM, false);
+        if (path == null) {
+            return JobResult.CANCEL;
+        }
+
+        ResourceResolver resourceResolver = null;
+        Checkpoint checkpoint = null;
+        try {
+            resourceResolver = systemUtils.getResourceResolver(SystemUtils.SUBSERVICE);
+            checkpoint = Checkpoint.open(resourceResolver, path, dryRun);
+
+            // Pages migrated by an earlier run no longer have a score, so they aren't counted again
+            checkpoint.start(scoreMigrationService.count(path));
+            if (!dryRun) {
+                scoreMigrationService.migrate(path, checkpoint);
+            }
+            checkpoint.finish();
+            return JobResult.OK;
+        } catch (LoginException | RepositoryException | PersistenceException e) {
+            LOG.error("Failed to migrate scores to tags under {}", path, e);
+            if (checkpoint != null) {
+                checkpoint.fail(e);
+            }
+            return JobResult.FAILED;
+        } finally {
+            if (resourceResolver != null && resourceResolver.isLive()) {
+                resourceResolver.close();
+            }
+        }
+    }
+
+    /**
+     * Keeps the counters of a run and saves them, with the completed subtrees, to the status resource. It is
+     * called from every migration worker, so access to the session is synchronized.
+     */
+    static class Checkpoint implements MigrationListener {
+        private final ResourceResolver resourceResolver;
+        private final Resource statusResource;
+        private final Set<String> migratedSubtrees;
+        private final Set<String> unreplicatedPaths;
+        private long processed;
+        private long errors;
+
+        private Checkpoint(final ResourceResolver resourceResolver, final Resource statusResource) {
+            this.resourceResolver = resourceResolver;
+            this.statusResource = statusResource;
+
+            ModifiableValueMap properties = statusResource.adaptTo(ModifiableValueMap.class);
+            this.migratedSubtrees = Sets.newHashSet(
+                Arrays.asList(properties.get(PN_MIGRATED_SUBTREES, new String[0])));
+            this.unreplicatedPaths = Sets.newLinkedHashSet(
+                Arrays.asList(properties.get(PN_UNREPLICATED_PATHS, new String[0])));
+            this.processed = properties.get(PN_PROCESSED, 0L);
+            this.errors = properties.get(PN_ERRORS, 0L);
+        }
+
+        /**
+         * Opens the status of the root. A migration that didn't succeed is resumed; a dry run or a migration
+         * that succeeded starts over.
+         */
+        static Checkpoint open(
+            final ResourceResolver resourceResolver,
+            final String rootPath,
+            final boolean dryRun) throws RepositoryException {
+
+            String statusPath = MigrationStatusUtil.getStatusPath(rootPath);
+            Resource statusResource = resourceResolver.getResource(statusPath);
+            if (statusResource == null) {
+                JcrUtil.createPath(statusPath, "sling:Folder", "nt:unstructured",
+                    resourceResolver.adaptTo(Session.class), false);
+                statusResource = resourceResolver.getResource(statusPath);
+            }
+
+            ModifiableValueMap properties = statusResource.adaptTo(ModifiableValueMap.class);
+            boolean resume = !dryRun
+                && !properties.get(PN_DRY_RUN, true)
+                && !MigrationState.SUCCEEDED.name().equals(properties.get(PN_STATE, String.class));
+            if (!resume) {
+                properties.remove(PN_MIGRATED_SUBTREES);
+                properties.put(PN_PROCESSED, 0L);
+                properties.put(PN_ERRORS, 0L);
+            }
+            properties.remove(PN_LAST_ERROR);
+            properties.put(PN_DRY_RUN, dryRun);
+            properties.put(PN_PROCESSED_BEFORE_RESUME, properties.get(PN_PROCESSED, 0L));
+
+            LOG.info("{} score migration of {}", resume ? "Resuming" : "Starting", rootPath);
+            return new Checkpoint(resourceResolver, statusResource);
+        }
+
+        synchronized void start(final long remaining) throws PersistenceException {
+            long now = System.currentTimeMillis();
+            ModifiableValueMap properties = properties();
+            properties.put(PN_STATE, MigrationState.RUNNING.name());
+            properties.put(PN_STARTED, now);
+            properties.put(PN_UPDATED, now);
+            properties.put(PN_TOTAL, processed + remaining);
+            resourceResolver.commit();
+        }
+
+        synchronized void finish() throws PersistenceException {
+            ModifiableValueMap properties = properties();
+            properties.put(PN_STATE, MigrationState.SUCCEEDED.name());
+            properties.put(PN_UPDATED, System.currentTimeMillis());
+            resourceResolver.commit();
+        }
+
+        synchronized void fail(final Exception e) {
+            try {
+                resourceResolver.revert();
+                ModifiableValueMap properties = properties();
+                properties.put(PN_STATE, MigrationState.FAILED.name());
+                properties.put(PN_UPDATED, System.currentTimeMillis());
+                properties.put(PN_LAST_ERROR, String.valueOf(e.getMessage()));
+                properties.put(PN_UNREPLICATED_PATHS, unreplicatedPaths.toArray(new String[0]));
+                resourceResolver.commit();
+            } catch (PersistenceException | RuntimeException saveFailure) {
+                LOG.warn("Failed to save the status of the score migration", saveFailure);
+            }
+        }
+
+        @Override
+        public synchronized boolean isMigrated(final String subtreePath) {
+            return migratedSubtrees.contains(subtreePath);
+        }
+
+        @Override
+        public synchronized void onBatch(final int migrated, final int failed) {
+            processed += migrated;
+            errors += failed;
+            save();
+        }
+
+        @Override
+        public synchronized void onSubtreeMigrated(final String subtreePath) {
+            migratedSubtrees.add(subtreePath);
+            save();
+        }
+
+        @Override
+        public synchronized String[] getUnreplicatedPaths() {
+            return unreplicatedPaths.toArray(new String[0]);
+        }
+
+        @Override
+        public synchronized void onReplicationFailed(final String[] paths) {
+            unreplicatedPaths.addAll(Arrays.asList(paths));
+            save();
+        }
+
+        @Override
+        public synchronized void onReplicated(final String[] paths) {
+            if (unreplicatedPaths.removeAll(Arrays.asList(paths))) {
+                save();
+            }
+        }
+
+        private ModifiableValueMap properties() {
+            return statusResource.adaptTo(ModifiableValueMap.class);
+        }
+
+        /**
+         * Writes all counters, so a save that failed is caught up by the next one. Progress is informational,
+         * so a failed save doesn't stop the migration.
+         */
+        private void save() {
+            ModifiableValueMap properties = properties();
+            properties.put(PN_PROCESSED, processed);
+            properties.put(PN_ERRORS, errors);
+            properties.put(PN_MIGRATED_SUBTREES, migratedSubtrees.toArray(new String[0]));
+            properties.put(PN_UNREPLICATED_PATHS, unreplicatedPaths.toArray(new String[0]));
+            properties.put(PN_UPDATED, System.currentTimeMillis());
+            try {
+                resourceResolver.commit();
+            } catch (PersistenceException e) {
+                LOG.warn("Failed to save the progress of the score migration", e);
+                resourceResolver.revert();
+            }
+        }
+    }
+}
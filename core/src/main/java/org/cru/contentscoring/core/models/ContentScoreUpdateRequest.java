@@ -1,8 +1,11 @@
 package org.cru.contentscoring.core.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 public class ContentScoreUpdateRequest {
     private String uri;
-    private int score;
+    private Integer score;
+    private String pagePath;
 
     public String getUri() {
         return uri;
@@ -12,11 +15,27 @@ public class ContentScoreUpdateRequest {
         this.uri = uri;
     }
 
-    public int getScore() {
+    /**
+     * @return the score, or null if a synced item didn't have one
+     */
+    public Integer getScore() {
         return score;
     }
 
-    public void setScore(final int score) {
+    public void setScore(final Integer score) {
         this.score = score;
     }
+
+    /**
+     * @return the page the score was sent for, so its ledger can be corrected if the upload fails. It is not sent.
+     */
+    @JsonIgnore
+    public String getPagePath() {
+        return pagePath;
+    }
+
+    @JsonIgnore
+    public void setPagePath(final String pagePath) {
+        this.pagePath = pagePath;
+    }
 }
@@ -0,0 +1,13 @@
+package org.cru.contentscoring.core.models;
+
+/**
+ * State of a score-to-tag migration job.
+ */
+public enum MigrationState {
+    /** The job is processing the tree. */
+    RUNNING,
+    /** Every page was counted, or migrated. */
+    SUCCEEDED,
+    /** The run stopped with an error. It is retried, or resumed by the next request, from the last checkpoint. */
+    FAILED
+}
@@ -0,0 +1,106 @@
+package org.cru.contentscoring.core.models;
+
+public class MigrationStatus {
+    private String path;
+    private boolean dryRun;
+    private MigrationState state;
+    private long started;
+    private long updated;
+    private long total;
+    private long processed;
+    private long errors;
+    private String lastError;
+    private double pagesPerSecond;
+    private Long etaSeconds;
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(final String path) {
+        this.path = path;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public void setDryRun(final boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public MigrationState getState() {
+        return state;
+    }
+
+    public void setState(final MigrationState state) {
+        this.state = state;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public void setStarted(final long started) {
+        this.started = started;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(final long updated) {
+        this.updated = updated;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(final long total) {
+        this.total = total;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public void setProcessed(final long processed) {
+        this.processed = processed;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public void setErrors(final long errors) {
+        this.errors = errors;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(final String lastError) {
+        this.lastError = lastError;
+    }
+
+    public double getPagesPerSecond() {
+        return pagesPerSecond;
+    }
+
+    public void setPagesPerSecond(final double pagesPerSecond) {
+        this.pagesPerSecond = pagesPerSecond;
+    }
+
+    /**
+     * @return the estimated time left, or null while no page has been migrated yet or when the job is done
+     */
+    public Long getEtaSeconds() {
+        return etaSeconds;
+    }
+
+    public void setEtaSeconds(final Long etaSeconds) {
+        this.etaSeconds = etaSeconds;
+    }
+}
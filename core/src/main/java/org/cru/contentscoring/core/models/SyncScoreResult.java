@@ -0,0 +1,40 @@
+package org.cru.contentscoring.core.models;
+
+public class SyncScoreResult {
+    private String uri;
+    private Integer score;
+    private SyncStatus status;
+
+    public SyncScoreResult() {
+    }
+
+    public SyncScoreResult(final String uri, final Integer score, final SyncStatus status) {
+        this.uri = uri;
+        this.score = score;
+        this.status = status;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public void setUri(final String uri) {
+        this.uri = uri;
+    }
+
+    public Integer getScore() {
+        return score;
+    }
+
+    public void setScore(final Integer score) {
+        this.score = score;
+    }
+
+    public SyncStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(final SyncStatus status) {
+        this.status = status;
+    }
+}
@@ -0,0 +1,19 @@
+package org.cru.contentscoring.core.models;
+
+/**
+ * Outcome of syncing one score to a page.
+ */
+public enum SyncStatus {
+    /** The score tag was applied. */
+    UPDATED,
+    /** The page already had the score, so nothing was written. */
+    UNCHANGED,
+    /** No page could be found for the URI. */
+    NOT_FOUND,
+    /** The score is not between 0 and 10. */
+    INVALID_SCORE,
+    /** The URI is not a web URI, so it can't be an AEM page. */
+    SKIPPED,
+    /** The score could not be applied or saved. */
+    FAILED
+}
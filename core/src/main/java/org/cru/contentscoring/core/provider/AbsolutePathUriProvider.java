@@ -9,7 +9,6 @@ import org.slf4j.LoggerFactory;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Objects;
 
 public class AbsolutePathUriProvider implements URIProvider {
     private static final Logger LOG = LoggerFactory.getLogger(AbsolutePathUriProvider.class);
@@ -26,11 +25,11 @@ public class AbsolutePathUriProvider implements URIProvider {
         ResourceResolver resourceResolver = resource.getResourceResolver();
 
         UriProviderUtil util = UriProviderUtil.getInstance(environment);
-        Resource slingMap = util.determineSlingMap(path, resourceResolver);
+        SlingMapping slingMap = util.determineSlingMap(path, resourceResolver);
 
         if (slingMap != null) {
-            String protocol = Objects.requireNonNull(slingMap.getParent()).getName();
-            String domain = slingMap.getName();
+            String protocol = slingMap.getScheme();
+            String domain = slingMap.getHost();
 
             try {
                 return new URIBuilder()
@@ -0,0 +1,24 @@
+package org.cru.contentscoring.core.provider;
+
+import java.util.List;
+
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drops the sling maps compiled by {@link UriProviderUtil} when a mapping under /etc/map* changes.
+ */
+@Component(service = ResourceChangeListener.class, property = {
+        ResourceChangeListener.PATHS + "=glob:/etc/map*/**" })
+public class SlingMapChangeListener implements ResourceChangeListener {
+    private static final Logger LOG = LoggerFactory.getLogger(SlingMapChangeListener.class);
+
+    @Override
+    public void onChange(final List<ResourceChange> changes) {
+        LOG.debug("Sling mappings changed, dropping compiled sling maps");
+        UriProviderUtil.invalidateAll();
+    }
+}
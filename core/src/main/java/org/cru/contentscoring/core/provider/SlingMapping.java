@@ -0,0 +1,28 @@
+package org.cru.contentscoring.core.provider;
+
+/**
+ * A sling:map entry of a publisher: pages under the internal redirect are served at the scheme and host.
+ */
+public final class SlingMapping {
+    private final String scheme;
+    private final String host;
+    private final String internalRedirect;
+
+    public SlingMapping(final String scheme, final String host, final String internalRedirect) {
+        this.scheme = scheme;
+        this.host = host;
+        this.internalRedirect = internalRedirect;
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getInternalRedirect() {
+        return internalRedirect;
+    }
+}
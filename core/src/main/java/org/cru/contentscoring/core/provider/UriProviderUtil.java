@@ -1,52 +1,140 @@
 package org.cru.contentscoring.core.provider;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 
+/**
+ * Finds the sling:map entry of a publisher environment that serves a path. The https and http maps are
+ * compiled once into prefix tries of their internal redirects, so a lookup costs one walk along the path and
+ * no repository reads. The tries are dropped when /etc/map changes (see {@link SlingMapChangeListener}).
+ * What a resolver can read of /etc/map depends on its user, so the tries are compiled and kept per user.
+ */
 public class UriProviderUtil {
-    private String environment;
+    private static final Map<String, UriProviderUtil> INSTANCES = new ConcurrentHashMap<>();
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    private final String environment;
+    private final Map<String, SlingMaps> slingMapsByUser = new ConcurrentHashMap<>();
 
     private UriProviderUtil(final String environment) {
         this.environment = environment;
     }
 
     public static UriProviderUtil getInstance(final String environment) {
-        return new UriProviderUtil(environment);
+        return INSTANCES.computeIfAbsent(environment, UriProviderUtil::new);
     }
 
-    public Resource determineSlingMap(final String path, final ResourceResolver resourceResolver) {
-        String httpsPath = "/etc/map.publish." + environment + "/https";
-        Resource httpsRoot = resourceResolver.getResource(httpsPath);
-
-        Resource slingMap = null;
-        if (httpsRoot != null) {
-            slingMap = loopThroughSlingMaps(httpsRoot, path);
+    /**
+     * Drops the compiled maps of every environment, so they are read again on the next lookup.
+     */
+    public static void invalidateAll() {
+        GENERATION.incrementAndGet();
+        for (UriProviderUtil instance : INSTANCES.values()) {
+            instance.slingMapsByUser.clear();
         }
+    }
+
+    /**
+     * @return a number that changes whenever the sling maps are invalidated
+     */
+    public static long getGeneration() {
+        return GENERATION.get();
+    }
 
-        String httpPath = "/etc/map.publish." + environment + "/http";
-        Resource httpRoot = resourceResolver.getResource(httpPath);
-        if (httpRoot != null && slingMap == null) {
-            slingMap = loopThroughSlingMaps(httpRoot, path);
+    /**
+     * @return the https mapping with the longest internal redirect that prefixes the path, else the longest
+     *         such http mapping, or null if the path isn't mapped
+     */
+    public SlingMapping determineSlingMap(final String path, final ResourceResolver resourceResolver) {
+        String userId = resourceResolver.getUserID() == null ? "" : resourceResolver.getUserID();
+        SlingMaps maps = slingMapsByUser.get(userId);
+        if (maps == null || maps.generation != GENERATION.get()) {
+            // Maps compiled while /etc/map changes are stamped with the older generation and compiled again
+            maps = compile(resourceResolver);
+            slingMapsByUser.put(userId, maps);
         }
 
+        SlingMapping slingMap = maps.https.findLongestPrefix(path);
+        if (slingMap == null) {
+            slingMap = maps.http.findLongestPrefix(path);
+        }
         return slingMap;
     }
 
-    private Resource loopThroughSlingMaps(final Resource parent, final String path) {
-        if (parent.hasChildren()) {
+    private SlingMaps compile(final ResourceResolver resourceResolver) {
+        long generation = GENERATION.get();
+        String root = "/etc/map.publish." + environment;
+        return new SlingMaps(
+            generation,
+            compile(resourceResolver.getResource(root + "/https")),
+            compile(resourceResolver.getResource(root + "/http")));
+    }
+
+    private PrefixTrie compile(final Resource parent) {
+        PrefixTrie trie = new PrefixTrie();
+        if (parent != null && parent.hasChildren()) {
             for (Resource child : parent.getChildren()) {
+                // Entries with an underscore in their name are redirects, not sites
                 if (child.getName().contains("_")) {
                     continue;
                 }
 
                 ValueMap properties = child.getValueMap();
                 String internalRedirect = properties.get("sling:internalRedirect", String.class);
-                if (internalRedirect != null && path.startsWith(internalRedirect)) {
-                    return child;
+                if (internalRedirect != null) {
+                    trie.add(new SlingMapping(parent.getName(), child.getName(), internalRedirect));
+                }
+            }
+        }
+        return trie;
+    }
+
+    private static class SlingMaps {
+        private final long generation;
+        private final PrefixTrie https;
+        private final PrefixTrie http;
+
+        SlingMaps(final long generation, final PrefixTrie https, final PrefixTrie http) {
+            this.generation = generation;
+            this.https = https;
+            this.http = http;
+        }
+    }
+
+    /**
+     * A character trie of internal redirects. It is only changed while it is compiled, and read-only after.
+     */
+    private static class PrefixTrie {
+        private final Map<Character, PrefixTrie> children = new HashMap<>();
+        private SlingMapping mapping;
+
+        void add(final SlingMapping slingMapping) {
+            PrefixTrie node = this;
+            for (char c : slingMapping.getInternalRedirect().toCharArray()) {
+                node = node.children.computeIfAbsent(c, key -> new PrefixTrie());
+            }
+            // Like a lookup in the repository, the first entry with a redirect wins
+            if (node.mapping == null) {
+                node.mapping = slingMapping;
+            }
+        }
+
+        SlingMapping findLongestPrefix(final String path) {
+            PrefixTrie node = this;
+            SlingMapping longest = node.mapping;
+            for (int i = 0; i < path.length() && node != null; i++) {
+                node = node.children.get(path.charAt(i));
+                if (node != null && node.mapping != null) {
+                    longest = node.mapping;
                 }
             }
+            return longest;
         }
-        return null;
     }
 }
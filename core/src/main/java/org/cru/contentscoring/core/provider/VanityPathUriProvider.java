@@ -9,7 +9,6 @@ import org.slf4j.LoggerFactory;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Objects;
 
 public class VanityPathUriProvider implements URIProvider {
     private static final Logger LOG = LoggerFactory.getLogger(VanityPathUriProvider.class);
@@ -27,13 +26,12 @@ public class VanityPathUriProvider implements URIProvider {
 
     public URI toURI(final String path, final ResourceResolver resourceResolver) {
         UriProviderUtil util = UriProviderUtil.getInstance(environment);
-        Resource slingMap = util.determineSlingMap(path, resourceResolver);
+        SlingMapping slingMap = util.determineSlingMap(path, resourceResolver);
 
         if (slingMap != null) {
-            String protocol = Objects.requireNonNull(slingMap.getParent()).getName();
-            String domain = slingMap.getName();
-            String pathPartToRemove = Objects.requireNonNull(
-                slingMap.getValueMap().get("sling:internalRedirect", String.class));
+            String protocol = slingMap.getScheme();
+            String domain = slingMap.getHost();
+            String pathPartToRemove = slingMap.getInternalRedirect();
 
             String externalPath = path;
             if (path.startsWith(pathPartToRemove)) {
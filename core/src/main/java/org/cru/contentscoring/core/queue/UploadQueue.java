@@ -45,6 +45,7 @@ public class UploadQueue implements Runnable {
     private final UUID apiKey;
     private String errorEmailRecipients;
     private MessageGatewayService messageGatewayService;
+    private final FailureListener failureListener;
 
     private ConcurrentLinkedQueue<ContentScoreUpdateRequest> queue;
     ArrayDeque<RetryElement> retryQueue;
@@ -58,12 +59,34 @@ public class UploadQueue implements Runnable {
         MessageGatewayService messageGatewayService,
         List<ContentScoreUpdateRequest> pendingBatches) {
 
+        this(
+            waitTime,
+            maxRetries,
+            apiEndpoint,
+            apiKey,
+            errorEmailRecipients,
+            messageGatewayService,
+            pendingBatches,
+            null);
+    }
+
+    public UploadQueue(
+        long waitTime,
+        int maxRetries,
+        String apiEndpoint,
+        UUID apiKey,
+        String errorEmailRecipients,
+        MessageGatewayService messageGatewayService,
+        List<ContentScoreUpdateRequest> pendingBatches,
+        FailureListener failureListener) {
+
         this.waitTime = waitTime;
         this.maxRetries = maxRetries;
         this.apiEndpoint = apiEndpoint;
         this.apiKey = apiKey;
         this.errorEmailRecipients = errorEmailRecipients;
         this.messageGatewayService = messageGatewayService;
+        this.failureListener = failureListener;
 
         stop = false;
         queue = new ConcurrentLinkedQueue<>();
@@ -177,6 +200,9 @@ public class UploadQueue implements Runnable {
                 errorMessage);
 
             LOG.error(error);
+            if (failureListener != null) {
+                failureListener.onGiveUp(retryElement.getBatch());
+            }
             sendEmail(error);
         }
     }
@@ -262,6 +288,13 @@ public class UploadQueue implements Runnable {
         return errorResponse.getMessage();
     }
 
+    /**
+     * Told about requests that are dropped after the last retry failed.
+     */
+    public interface FailureListener {
+        void onGiveUp(List<ContentScoreUpdateRequest> requests);
+    }
+
     private List<ContentScoreUpdateRequest> getBatch() throws JsonProcessingException {
         List<ContentScoreUpdateRequest> requests = Lists.newArrayList();
         ContentScoreUpdateRequest nextRequest = queue.poll();
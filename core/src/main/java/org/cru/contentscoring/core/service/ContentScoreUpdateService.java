@@ -6,7 +6,18 @@ import javax.jcr.RepositoryException;
 
 public interface ContentScoreUpdateService {
     /**
-     * Triggers a request to update the content score for the given content page.
+     * Triggers a request to update the content score for the given content page. The properties that record
+     * the send are changed in the session of the page, but not saved; the caller saves them.
      */
     void updateContentScore(Page page) throws RepositoryException;
+
+    /**
+     * @return the number of (URL, score) pairs handed to the upload queue since activation
+     */
+    long getSendsQueued();
+
+    /**
+     * @return the number of (URL, score) pairs dropped because they matched the last score sent
+     */
+    long getSendsAvoided();
 }
@@ -0,0 +1,25 @@
+package org.cru.contentscoring.core.service;
+
+import java.net.URISyntaxException;
+
+import javax.jcr.RepositoryException;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+public interface ResourceLocator {
+    /**
+     * Finds the resource served at the given URL, applying the resource resolver mappings (/etc/map)
+     * and falling back to a search for a page with a matching sling:vanityPath.
+     *
+     * @param request the request to base the resolution on; its scheme, host, port and path are taken from the URL
+     * @param resourceResolver the resource resolver used to resolve and search
+     * @param incomingUri the absolute URL of the page
+     * @return the resource, or null if no page (or more than one page) is served at the URL
+     */
+    Resource locate(
+        HttpServletRequest request,
+        ResourceResolver resourceResolver,
+        String incomingUri) throws URISyntaxException, RepositoryException;
+}
@@ -0,0 +1,34 @@
+package org.cru.contentscoring.core.service;
+
+import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.http.HttpServletRequest;
+
+public interface ResourcePathFinder {
+    /**
+     * Finds the repository path of the page that is served at the given URL.
+     *
+     * @param request the current request, used as the base of a local resolution of the URL
+     * @param incomingUri the absolute URL of the page on a publisher or the load-balanced site
+     * @return the resource path, or null if the URL doesn't map to a page
+     */
+    String findResourcePath(HttpServletRequest request, String incomingUri) throws URISyntaxException;
+
+    /**
+     * Like {@link #findResourcePath}, but doesn't block the calling thread on the call to a publisher.
+     *
+     * @return a future completed with the resource path, or null if the URL doesn't map to a page
+     */
+    CompletableFuture<String> findResourcePathAsync(HttpServletRequest request, String incomingUri);
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return the number of lookups that needed a call to a publisher
+     */
+    long getCacheMisses();
+}
@@ -0,0 +1,57 @@
+package org.cru.contentscoring.core.service;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.api.resource.LoginException;
+
+public interface ScoreMigrationService {
+    /**
+     * Counts the pages under the root, including the root itself, that still have a legacy score property.
+     */
+    long count(String rootPath) throws LoginException, RepositoryException;
+
+    /**
+     * Moves the legacy score property of every page under the root to a scale-of-belief tag, and copies it to
+     * the primary experience fragment of the page. Migrated pages that were already activated are replicated,
+     * and so are the pages an earlier run failed to replicate.
+     *
+     * @param rootPath the path of the page or folder to migrate, including the page itself
+     * @param listener notified of the progress, and asked which parts of the tree can be skipped
+     * @return the number of migrated pages
+     * @throws RepositoryException if the root doesn't exist or a part of the tree couldn't be migrated
+     */
+    long migrate(String rootPath, MigrationListener listener) throws LoginException, RepositoryException;
+
+    /**
+     * Follows a migration. The root is migrated in subtrees, in parallel, so implementations must be thread safe.
+     */
+    interface MigrationListener {
+        /**
+         * @return true if an earlier run already migrated the subtree, so it is skipped
+         */
+        boolean isMigrated(String subtreePath);
+
+        void onBatch(int migrated, int failed);
+
+        /**
+         * Called once the pages of the subtree are migrated and replicated, so a later run can skip it.
+         */
+        void onSubtreeMigrated(String subtreePath);
+
+        /**
+         * @return the paths of migrated pages that an earlier run failed to replicate
+         */
+        String[] getUnreplicatedPaths();
+
+        /**
+         * Called with the migrated pages of a replication that failed. They no longer have a score, so they are
+         * only replicated by a later run if they are kept until then.
+         */
+        void onReplicationFailed(String[] paths);
+
+        /**
+         * Called with the pages of every replication that succeeded.
+         */
+        void onReplicated(String[] paths);
+    }
+}
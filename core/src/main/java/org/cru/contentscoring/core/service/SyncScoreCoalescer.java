@@ -0,0 +1,22 @@
+package org.cru.contentscoring.core.service;
+
+public interface SyncScoreCoalescer {
+    /**
+     * Records the score for the page. Scores offered for the same page within the debounce window replace
+     * each other, so only the latest one is written.
+     *
+     * @param resourcePath the path of the resource on which to save the score
+     * @return false if too many pages are waiting to be written and the score was rejected
+     */
+    boolean offer(String resourcePath, int score);
+
+    /**
+     * @return the number of pages waiting to be written
+     */
+    int getPendingCount();
+
+    /**
+     * @return the number of offered scores that replaced a pending score before it was written
+     */
+    long getCoalescedCount();
+}
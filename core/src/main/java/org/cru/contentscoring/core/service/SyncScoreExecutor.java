@@ -0,0 +1,30 @@
+package org.cru.contentscoring.core.service;
+
+public interface SyncScoreExecutor {
+    /**
+     * Queues the given sync task if there is room for it.
+     *
+     * @return false if the executor is saturated and the task was rejected
+     */
+    boolean trySubmit(Runnable task);
+
+    /**
+     * @return the number of seconds a rejected caller should wait before trying again
+     */
+    int getRetryAfterSeconds();
+
+    /**
+     * @return the number of tasks waiting for a worker
+     */
+    int getBacklogDepth();
+
+    /**
+     * @return the average time (in milliseconds) from submission to completion of a task
+     */
+    long getAverageTaskLatency();
+
+    /**
+     * @return the number of tasks rejected because the executor was saturated
+     */
+    long getRejectedTaskCount();
+}
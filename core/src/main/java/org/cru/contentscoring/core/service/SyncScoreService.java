@@ -1,6 +1,7 @@
 package org.cru.contentscoring.core.service;
 
 import org.apache.sling.api.resource.ResourceResolver;
+import org.cru.contentscoring.core.models.SyncStatus;
 
 import javax.jcr.RepositoryException;
 
@@ -15,4 +16,28 @@ public interface SyncScoreService {
         ResourceResolver resourceResolver,
         int score,
         String resourcePath) throws RepositoryException;
+
+    /**
+     * Applies the given {@param score} to the page like {@link #syncScore}, but leaves the changes unsaved
+     * so that many scores can be committed with one save.
+     *
+     * @param resourceResolver the subsystem resource resolver (not the request resource resolver)
+     * @param resourcePath the path of the resource on which to save the score
+     * @return {@link SyncStatus#UPDATED}, {@link SyncStatus#UNCHANGED} if the page already has the score,
+     *         or {@link SyncStatus#NOT_FOUND} if there is no such page
+     */
+    SyncStatus stageScore(
+        ResourceResolver resourceResolver,
+        int score,
+        String resourcePath) throws RepositoryException;
+
+    /**
+     * @return the number of syncs skipped because the page already had the score
+     */
+    long getUnchangedScores();
+
+    /**
+     * @return the number of syncs that wrote a new score
+     */
+    long getChangedScores();
 }
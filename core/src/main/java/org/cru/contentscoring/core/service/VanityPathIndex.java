@@ -0,0 +1,29 @@
+package org.cru.contentscoring.core.service;
+
+import java.util.Set;
+
+/**
+ * Keeps the pages under /content by sling:vanityPath, so vanity paths are looked up without a query.
+ */
+public interface VanityPathIndex {
+    /**
+     * @return false until the index has been built; callers should search the repository in the meantime
+     */
+    boolean isReady();
+
+    /**
+     * @return the paths of the pages with the vanity path, more than one if it is ambiguous, or an empty set
+     */
+    Set<String> getPagePaths(String vanityPath);
+
+    /**
+     * @return true if more than one page has the vanity path
+     */
+    boolean isAmbiguous(String vanityPath);
+
+    /**
+     * @return a number that changes whenever a vanity path changes or a page is added or removed, so results
+     *         that were computed with an older generation may be outdated
+     */
+    long getGeneration();
+}
@@ -1,27 +1,35 @@
 package org.cru.contentscoring.core.service.impl;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
 
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.cru.contentscoring.core.models.ContentScoreUpdateRequest;
 import org.cru.contentscoring.core.queue.UploadQueue;
 import org.cru.contentscoring.core.service.ContentScoreUpdateService;
 import org.cru.contentscoring.core.util.ExperienceFragmentUtil;
+import org.cru.contentscoring.core.util.SystemUtils;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
@@ -33,12 +41,14 @@ import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.day.cq.commons.jcr.JcrConstants;
 import com.day.cq.mailer.MessageGatewayService;
 import com.day.cq.tagging.Tag;
 import com.day.cq.wcm.api.Page;
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
 
 @Component(service = ContentScoreUpdateService.class, configurationPolicy = ConfigurationPolicy.REQUIRE)
 @Designate(ocd = ContentScoreUpdateServiceImpl.Config.class)
@@ -76,6 +86,7 @@ public class ContentScoreUpdateServiceImpl implements ContentScoreUpdateService
     private static final Logger LOG = LoggerFactory.getLogger(ContentScoreUpdateServiceImpl.class);
 
     static final String CONTENT_SCORE_UPDATED = "contentScoreLastUpdated";
+    static final String CONTENT_SCORE_LAST_SENT = "contentScoreLastSent";
 
     static final String API_ENDPOINT = "apiEndpoint";
     private String apiEndpoint;
@@ -102,9 +113,15 @@ public class ContentScoreUpdateServiceImpl implements ContentScoreUpdateService
     @Reference
     private MessageGatewayService messageGatewayService;
 
+    @Reference
+    private SystemUtils systemUtils;
+
     static UploadQueue internalQueueManager;
     static Thread queueManagerThread;
 
+    private final AtomicLong sendsQueued = new AtomicLong();
+    private final AtomicLong sendsAvoided = new AtomicLong();
+
     @Activate
     public void activate(final Map<String, Object> config) {
         apiEndpoint = PropertiesUtil.toString(config.get(API_ENDPOINT), null);
@@ -134,7 +151,8 @@ public class ContentScoreUpdateServiceImpl implements ContentScoreUpdateService
                 apiKey,
                 errorEmailRecipients,
                 messageGatewayService,
-                null);
+                null,
+                this::forgetSentScores);
         } else {
             internalQueueManager = new UploadQueue(
                 waitTime,
@@ -143,7 +161,8 @@ public class ContentScoreUpdateServiceImpl implements ContentScoreUpdateService
                 apiKey,
                 errorEmailRecipients,
                 messageGatewayService,
-                internalQueueManager.getPendingBatches());
+                internalQueueManager.getPendingBatches(),
+                this::forgetSentScores);
         }
         queueManagerThread = new Thread(internalQueueManager);
         queueManagerThread.start();
@@ -164,23 +183,112 @@ public class ContentScoreUpdateServiceImpl implements ContentScoreUpdateService
         }
 
         Set<String> urlsToSend = determinePageUrlsToSend(page);
+        Set<String> lastSent = getLastSentFingerprints(page);
+        Set<String> currentFingerprints = new HashSet<>();
+        boolean queued = false;
 
         for (String url : urlsToSend) {
-            handleRequest(page, url, score);
+            if (url == null) {
+                continue;
+            }
+            String fingerprint = fingerprint(url, score);
+            currentFingerprints.add(fingerprint);
+
+            if (lastSent.contains(fingerprint)) {
+                sendsAvoided.incrementAndGet();
+                LOG.debug("Score {} for {} is unchanged since last send, skipping.", score, url);
+                continue;
+            }
+            handleRequest(page.getPath(), url, score);
+            queued = true;
+        }
+
+        // Saved by the caller, which updates many pages with the same session
+        if (queued) {
+            writeSendProperties(page.getContentResource().adaptTo(Node.class), currentFingerprints);
+        }
+    }
+
+    @Override
+    public long getSendsQueued() {
+        return sendsQueued.get();
+    }
+
+    @Override
+    public long getSendsAvoided() {
+        return sendsAvoided.get();
+    }
+
+    private void handleRequest(final String pagePath, final String pageUrl, final int score) {
+        ContentScoreUpdateRequest request = new ContentScoreUpdateRequest();
+        request.setUri(pageUrl);
+        request.setScore(score);
+        request.setPagePath(pagePath);
+
+        sendUpdateRequest(request);
+        sendsQueued.incrementAndGet();
+    }
+
+    /**
+     * The ledger holds one fingerprint per (URL, score) pair that was last sent for the page,
+     * so an activation that changes neither the score nor the URLs doesn't reach the queue.
+     */
+    @VisibleForTesting
+    Set<String> getLastSentFingerprints(final Page page) {
+        ValueMap properties = page.getContentResource().getValueMap();
+        if (properties == null) {
+            return new HashSet<>();
         }
+        return new HashSet<>(Arrays.asList(properties.get(CONTENT_SCORE_LAST_SENT, new String[0])));
     }
 
-    private void handleRequest(final Page page, final String pageUrl, final int score) throws RepositoryException {
-        if (pageUrl != null) {
-            ContentScoreUpdateRequest request = new ContentScoreUpdateRequest();
-            request.setUri(pageUrl);
-            request.setScore(score);
+    /**
+     * The ledger is written when the scores are queued, so scores the queue gave up on are removed from it again.
+     * Otherwise the next activation with the same score would be skipped and the score never sent.
+     */
+    @VisibleForTesting
+    void forgetSentScores(final List<ContentScoreUpdateRequest> failedRequests) {
+        Map<String, Set<String>> fingerprintsByPage = failedRequests.stream()
+            .filter(request -> request.getPagePath() != null)
+            .collect(Collectors.groupingBy(
+                ContentScoreUpdateRequest::getPagePath,
+                Collectors.mapping(request -> fingerprint(request.getUri(), request.getScore()), Collectors.toSet())));
+        if (fingerprintsByPage.isEmpty()) {
+            return;
+        }
 
-            sendUpdateRequest(request);
-            setContentScoreUpdatedDate(page);
+        try (ResourceResolver resourceResolver = systemUtils.getResourceResolver(SystemUtils.SUBSERVICE)) {
+            for (Map.Entry<String, Set<String>> entry : fingerprintsByPage.entrySet()) {
+                forgetSentScores(resourceResolver, entry.getKey(), entry.getValue());
+            }
+            resourceResolver.adaptTo(Session.class).save();
+        } catch (LoginException | RepositoryException e) {
+            LOG.error("Failed to forget the failed scores of {}, they won't be resent until they change",
+                fingerprintsByPage.keySet(), e);
         }
     }
 
+    private void forgetSentScores(
+        final ResourceResolver resourceResolver,
+        final String pagePath,
+        final Set<String> failedFingerprints) throws RepositoryException {
+
+        Resource contentResource = resourceResolver.getResource(pagePath + "/" + JcrConstants.JCR_CONTENT);
+        if (contentResource == null) {
+            return;
+        }
+        Set<String> sent = new HashSet<>(
+            Arrays.asList(contentResource.getValueMap().get(CONTENT_SCORE_LAST_SENT, new String[0])));
+        if (sent.removeAll(failedFingerprints)) {
+            contentResource.adaptTo(Node.class).setProperty(CONTENT_SCORE_LAST_SENT, sent.toArray(new String[0]));
+        }
+    }
+
+    @VisibleForTesting
+    static String fingerprint(final String url, final int score) {
+        return Hashing.murmur3_32().hashString(url + "|" + score, StandardCharsets.UTF_8).toString();
+    }
+
     @VisibleForTesting
     int getScore(final Page page) {
         String scoreString = null;
@@ -251,15 +359,24 @@ public class ContentScoreUpdateServiceImpl implements ContentScoreUpdateService
         Node node = page.getContentResource().adaptTo(Node.class);
         try {
             node.getSession().refresh(true);
-            node.setProperty(CONTENT_SCORE_UPDATED, Calendar.getInstance());
+            writeSendProperties(node, null);
             node.getSession().save();
         } catch (RepositoryException e) {
             node.getSession().refresh(false);
-            node.setProperty(CONTENT_SCORE_UPDATED, Calendar.getInstance());
+            writeSendProperties(node, null);
             node.getSession().save();
         }
     }
 
+    private void writeSendProperties(final Node node, final Set<String> sentFingerprints)
+        throws RepositoryException {
+
+        node.setProperty(CONTENT_SCORE_UPDATED, Calendar.getInstance());
+        if (sentFingerprints != null) {
+            node.setProperty(CONTENT_SCORE_LAST_SENT, sentFingerprints.toArray(new String[0]));
+        }
+    }
+
     @Deactivate
     void deactivate() {
         internalQueueManager.stop();
@@ -0,0 +1,188 @@
+package org.cru.contentscoring.core.service.impl;
+
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.cru.contentscoring.core.service.ResourceLocator;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+import org.cru.contentscoring.core.servlets.ResolverRequest;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+
+/**
+ * Locates pages by URL. URLs that don't lead to a page are remembered for a short time, together with the
+ * generation of the {@link VanityPathIndex}, so repeated misses are answered from memory until a vanity path
+ * changes or a page is added. What a URL resolves to depends on what the resolver's user can read, so misses
+ * are remembered per user.
+ */
+@Component(service = ResourceLocator.class)
+@Designate(ocd = ResourceLocatorImpl.Config.class)
+public class ResourceLocatorImpl implements ResourceLocator {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Miss Cache Size",
+                description = "Max number of URLs remembered as not leading to a page.")
+        long missCacheSize();
+
+        @AttributeDefinition(
+                name = "Miss Cache TTL",
+                description = "Time (in seconds) a URL is remembered as not leading to a page.")
+        long missCacheTtl();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResourceLocatorImpl.class);
+
+    static final String MISS_CACHE_SIZE = "missCacheSize";
+    private static final long DEFAULT_MISS_CACHE_SIZE = 10000L;
+
+    static final String MISS_CACHE_TTL = "missCacheTtl";
+    private static final long DEFAULT_MISS_CACHE_TTL = 60L;
+
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference
+    private VanityPathIndex vanityPathIndex;
+
+    private Cache<String, Long> misses;
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        long missCacheSize = PropertiesUtil.toLong(config.get(MISS_CACHE_SIZE), DEFAULT_MISS_CACHE_SIZE);
+        long missCacheTtl = PropertiesUtil.toLong(config.get(MISS_CACHE_TTL), DEFAULT_MISS_CACHE_TTL);
+        LOG.debug("configure: missCacheSize={}, missCacheTtl={}", missCacheSize, missCacheTtl);
+
+        misses = CacheBuilder.newBuilder()
+            .maximumSize(missCacheSize)
+            .expireAfterWrite(missCacheTtl, TimeUnit.SECONDS)
+            .build();
+    }
+
+    @Override
+    public Resource locate(
+        final HttpServletRequest request,
+        final ResourceResolver resourceResolver,
+        final String incomingUri) throws URISyntaxException, RepositoryException {
+
+        // Read before locating, so a change that happens meanwhile outdates the miss
+        long generation = vanityPathIndex.getGeneration();
+        String missKey = resourceResolver.getUserID() + " " + incomingUri;
+        Long missGeneration = misses.getIfPresent(missKey);
+        if (missGeneration != null && missGeneration == generation) {
+            LOG.debug("{} is known not to lead to a page", incomingUri);
+            return null;
+        }
+
+        Resource resource = resolve(request, resourceResolver, incomingUri);
+        if (resource == null) {
+            misses.put(missKey, generation);
+        } else {
+            misses.invalidate(missKey);
+        }
+        return resource;
+    }
+
+    private Resource resolve(
+        final HttpServletRequest request,
+        final ResourceResolver resourceResolver,
+        final String incomingUri) throws URISyntaxException, RepositoryException {
+
+        ResolverRequest resolverRequest = new ResolverRequest(request, incomingUri);
+        Resource resource = resourceResolver.resolve(resolverRequest, resolverRequest.getPathInfo());
+
+        // This will be the case if resourceResolver found a vanity path (e.g. ministry designation pages)
+        if (resource instanceof NonExistingResource) {
+            LOG.debug("Resource is non-existing, looking at vanity paths.");
+            if (vanityPathIndex.isReady()) {
+                return findResourceWithVanityPath(resource.getPath(), resourceResolver);
+            }
+            Resource parent = resourceResolver.resolve("/content");
+            return searchForResourceWithVanityPath(resource.getPath(), parent, resourceResolver);
+        }
+        return resource;
+    }
+
+    private Resource findResourceWithVanityPath(final String vanityPath, final ResourceResolver resourceResolver) {
+        Set<String> pagePaths = vanityPathIndex.getPagePaths(vanityPath);
+        if (pagePaths.isEmpty()) {
+            LOG.debug("No resource found for {}", vanityPath);
+            return null;
+        }
+
+        if (pagePaths.size() > 1) {
+            LOG.warn("Found more than one page with vanity path {}, skipping score sync.", vanityPath);
+            return null;
+        }
+
+        String pagePath = Iterables.getOnlyElement(pagePaths);
+        LOG.debug("Found path: {} for sling:vanityPath", pagePath);
+        return resourceResolver.getResource(pagePath);
+    }
+
+    /**
+     * Searches the repository while the {@link VanityPathIndex} isn't built yet.
+     */
+    private Resource searchForResourceWithVanityPath(
+        final String vanityPath,
+        final Resource parent,
+        final ResourceResolver resourceResolver) throws RepositoryException {
+
+
+        Map<String, String> searchPredicates = Maps.newHashMap();
+        searchPredicates.put("property", "sling:vanityPath");
+        searchPredicates.put("property.value", vanityPath);
+
+        searchPredicates.put("type", "cq:PageContent");
+        searchPredicates.put("path", parent.getPath());
+
+        Session session = resourceResolver.adaptTo(Session.class);
+        Query query = queryBuilder.createQuery(PredicateGroup.create(searchPredicates), session);
+        SearchResult searchResult = query.getResult();
+        List<Hit> hits = searchResult.getHits();
+
+        if (hits.isEmpty()) {
+            LOG.debug("No resource found for {}", vanityPath);
+            return null;
+        }
+
+        for (Hit hit : hits) {
+            LOG.debug("Found path: {} for sling:vanityPath", hit.getPath());
+        }
+
+        if (hits.size() > 1) {
+            LOG.warn("Found more than one page with vanity path {}, skipping score sync.", vanityPath);
+            return null;
+        }
+
+        return Iterables.getOnlyElement(hits).getResource().getParent();
+    }
+}
@@ -0,0 +1,402 @@
+package org.cru.contentscoring.core.service.impl;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.Response;
+
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.cru.contentscoring.core.service.ResourceLocator;
+import org.cru.contentscoring.core.service.ResourcePathFinder;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.glassfish.jersey.client.ClientProperties;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.wcm.api.PageEvent;
+import com.day.cq.wcm.api.PageModification;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Sets;
+
+/**
+ * Finds resource paths by asking the publisher that serves the URL, and caches the answers. Misses are cached for
+ * a shorter time than hits, and answers other than a success or a 404 aren't cached at all, so a publisher that
+ * is failing or being deployed doesn't hide pages for long.
+ * With local resolution enabled the URL is first resolved in this instance, using its /etc/map configuration
+ * and vanity paths, and the publisher is only asked when that misses.
+ * Cached answers for a page are dropped when the page is moved, deleted or replicated, since any of these can
+ * change its URLs or vanity paths. Misses are dropped on any such change, since the change may make them resolve.
+ * The JAX-RS client in use has no non-blocking connector, so each asynchronous lookup still holds one of the
+ * client's async threads for the length of its request. That pool is sized by the Async Threads setting and each
+ * request is bounded by the Lookup Timeout, so a slow publisher queues lookups instead of piling up threads.
+ */
+@Component(service = { ResourcePathFinder.class, EventHandler.class }, property = {
+        "event.topics=" + PageEvent.EVENT_TOPIC,
+        "event.topics=" + ReplicationAction.EVENT_TOPIC })
+@Designate(ocd = ResourcePathFinderImpl.Config.class)
+public class ResourcePathFinderImpl implements ResourcePathFinder, EventHandler {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Cache Size",
+                description = "Max number of URLs whose resource path is cached.")
+        long cacheSize();
+
+        @AttributeDefinition(
+                name = "Cache TTL",
+                description = "Time (in seconds) a cached resource path is kept.")
+        long cacheTtl();
+
+        @AttributeDefinition(
+                name = "Miss Cache TTL",
+                description = "Time (in seconds) a URL that doesn't lead to a page is remembered.")
+        long missCacheTtl();
+
+        @AttributeDefinition(
+                name = "Local Resolution",
+                description = "Resolve URLs with this instance's resource resolver mappings before asking a publisher.")
+        boolean localResolution();
+
+        @AttributeDefinition(
+                name = "Async Threads",
+                description = "Number of threads that run asynchronous lookups; each lookup blocks one of them.")
+        int asyncThreads();
+
+        @AttributeDefinition(
+                name = "Lookup Timeout",
+                description = "Time (in milliseconds) to wait for a publisher to connect or answer a lookup.")
+        int lookupTimeout();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResourcePathFinderImpl.class);
+
+    static final String CACHE_SIZE = "cacheSize";
+    private static final long DEFAULT_CACHE_SIZE = 10000L;
+
+    static final String CACHE_TTL = "cacheTtl";
+    private static final long DEFAULT_CACHE_TTL = 60L * 60L;
+
+    static final String MISS_CACHE_TTL = "missCacheTtl";
+    private static final long DEFAULT_MISS_CACHE_TTL = 60L;
+
+    private static final int NOT_FOUND = 404;
+
+    static final String LOCAL_RESOLUTION = "localResolution";
+
+    static final String ASYNC_THREADS = "asyncThreads";
+    private static final int DEFAULT_ASYNC_THREADS = 8;
+
+    static final String LOOKUP_TIMEOUT = "lookupTimeout";
+    private static final int DEFAULT_LOOKUP_TIMEOUT = 10000;
+
+    @Reference
+    private ResourceLocator resourceLocator;
+
+    @Reference
+    private SystemUtils systemUtils;
+
+    Client client;
+    private boolean localResolution;
+    private Cache<String, String> hits;
+    private Cache<String, Boolean> misses;
+
+    // The URLs of the cached hits by resource path, so a page and its descendants are invalidated without a scan
+    private final ConcurrentNavigableMap<String, Set<String>> urisByPath = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        long cacheSize = PropertiesUtil.toLong(config.get(CACHE_SIZE), DEFAULT_CACHE_SIZE);
+        long cacheTtl = PropertiesUtil.toLong(config.get(CACHE_TTL), DEFAULT_CACHE_TTL);
+        long missCacheTtl = PropertiesUtil.toLong(config.get(MISS_CACHE_TTL), DEFAULT_MISS_CACHE_TTL);
+        localResolution = PropertiesUtil.toBoolean(config.get(LOCAL_RESOLUTION), false);
+        int asyncThreads = PropertiesUtil.toInteger(config.get(ASYNC_THREADS), DEFAULT_ASYNC_THREADS);
+        int lookupTimeout = PropertiesUtil.toInteger(config.get(LOOKUP_TIMEOUT), DEFAULT_LOOKUP_TIMEOUT);
+        LOG.debug(
+            "configure: cacheSize={}, cacheTtl={}, missCacheTtl={}, localResolution={}, asyncThreads={}, "
+                + "lookupTimeout={}",
+            cacheSize,
+            cacheTtl,
+            missCacheTtl,
+            localResolution,
+            asyncThreads,
+            lookupTimeout);
+
+        urisByPath.clear();
+        hits = CacheBuilder.newBuilder()
+            .maximumSize(cacheSize)
+            .expireAfterWrite(cacheTtl, TimeUnit.SECONDS)
+            .removalListener(this::unindex)
+            .build();
+        misses = CacheBuilder.newBuilder()
+            .maximumSize(cacheSize)
+            .expireAfterWrite(missCacheTtl, TimeUnit.SECONDS)
+            .build();
+        client = ClientBuilder.newBuilder()
+            .property(ClientProperties.ASYNC_THREADPOOL_SIZE, asyncThreads)
+            .property(ClientProperties.CONNECT_TIMEOUT, lookupTimeout)
+            .property(ClientProperties.READ_TIMEOUT, lookupTimeout)
+            .build();
+    }
+
+    @Deactivate
+    void deactivate() {
+        client.close();
+        hits.invalidateAll();
+        misses.invalidateAll();
+    }
+
+    @Override
+    public String findResourcePath(
+        final HttpServletRequest request,
+        final String incomingUri) throws URISyntaxException {
+
+        String cachedPath = hits.getIfPresent(incomingUri);
+        if (cachedPath != null || misses.getIfPresent(incomingUri) != null) {
+            cacheHits.incrementAndGet();
+            return cachedPath;
+        }
+
+        cacheMisses.incrementAndGet();
+        if (localResolution) {
+            String localPath = locateResourcePath(request, incomingUri);
+            if (localPath != null) {
+                cacheHit(incomingUri, localPath);
+                return localPath;
+            }
+        }
+
+        Response pathFinderResponse = buildPathFinderRequest(client, incomingUri).get();
+        String resourcePath = readResourcePath(pathFinderResponse);
+        cacheAnswer(incomingUri, resourcePath, pathFinderResponse);
+        return resourcePath;
+    }
+
+    @Override
+    public CompletableFuture<String> findResourcePathAsync(
+        final HttpServletRequest request,
+        final String incomingUri) {
+
+        String cachedPath = hits.getIfPresent(incomingUri);
+        if (cachedPath != null || misses.getIfPresent(incomingUri) != null) {
+            cacheHits.incrementAndGet();
+            return CompletableFuture.completedFuture(cachedPath);
+        }
+
+        cacheMisses.incrementAndGet();
+        CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            // Local resolution doesn't leave the instance, so it is done on the calling thread
+            String localPath = localResolution ? locateResourcePath(request, incomingUri) : null;
+            if (localPath != null) {
+                cacheHit(incomingUri, localPath);
+                future.complete(localPath);
+                return future;
+            }
+
+            buildPathFinderRequest(client, incomingUri).async().get(new InvocationCallback<Response>() {
+                @Override
+                public void completed(final Response pathFinderResponse) {
+                    try {
+                        String resourcePath = readResourcePath(pathFinderResponse);
+                        cacheAnswer(incomingUri, resourcePath, pathFinderResponse);
+                        future.complete(resourcePath);
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void failed(final Throwable throwable) {
+                    future.completeExceptionally(throwable);
+                }
+            });
+        } catch (URISyntaxException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Resolves the URL in this instance.
+     *
+     * @return the resource path, or null if it can't be resolved locally
+     */
+    private String locateResourcePath(
+        final HttpServletRequest request,
+        final String incomingUri) throws URISyntaxException {
+
+        try (ResourceResolver resourceResolver = systemUtils.getResourceResolver(SystemUtils.SUBSERVICE)) {
+            Resource resource = resourceLocator.locate(request, resourceResolver, incomingUri);
+            if (resource != null && !ResourceUtil.isNonExistingResource(resource)) {
+                LOG.debug("Resolved {} locally to {}", incomingUri, resource.getPath());
+                return resource.getPath();
+            }
+        } catch (LoginException | RepositoryException e) {
+            LOG.warn("Failed to resolve {} locally, asking a publisher", incomingUri, e);
+        }
+        return null;
+    }
+
+    /**
+     * Caches the publisher's answer. An answer other than a success or a 404 says nothing about the page, so it
+     * isn't cached and the next sync asks again.
+     */
+    private void cacheAnswer(final String incomingUri, final String resourcePath, final Response pathFinderResponse) {
+        int status = pathFinderResponse.getStatus();
+        if (resourcePath != null && status >= 200 && status < 300) {
+            cacheHit(incomingUri, resourcePath);
+        } else if (status == NOT_FOUND || (status >= 200 && status < 300)) {
+            misses.put(incomingUri, Boolean.TRUE);
+        } else {
+            LOG.debug("Not caching the answer for {}, the publisher responded with {}", incomingUri, status);
+        }
+    }
+
+    private void cacheHit(final String incomingUri, final String resourcePath) {
+        hits.put(incomingUri, resourcePath);
+        // After the put, so the removal of a replaced entry doesn't drop the URL again
+        urisByPath.compute(resourcePath, (path, uris) -> {
+            Set<String> result = uris == null ? Sets.newConcurrentHashSet() : uris;
+            result.add(incomingUri);
+            return result;
+        });
+    }
+
+    private void unindex(final RemovalNotification<String, String> notification) {
+        if (notification.getKey() == null || notification.getValue() == null) {
+            return;
+        }
+        urisByPath.computeIfPresent(notification.getValue(), (path, uris) -> {
+            uris.remove(notification.getKey());
+            return uris.isEmpty() ? null : uris;
+        });
+    }
+
+    @VisibleForTesting
+    String determineResourcePath(final Client client, final String incomingUri) throws URISyntaxException {
+        return readResourcePath(buildPathFinderRequest(client, incomingUri).get());
+    }
+
+    private Invocation.Builder buildPathFinderRequest(
+        final Client client,
+        final String incomingUri) throws URISyntaxException {
+
+        // We're only scoring html pages
+        if (incomingUri.endsWith(".html")) {
+            return client.target(incomingUri.replace(".html", "") + ".find.path.txt")
+                .request();
+        } else {
+            URI uri = new URI(incomingUri);
+            // This should be the load-balanced URL (e.g. https://www.cru.org), but could be a publisher URL.
+            String serverUri = new URIBuilder()
+                .setScheme(uri.getScheme())
+                .setPort(uri.getPort())
+                .setHost(uri.getHost())
+                .build()
+                .toString();
+            LOG.debug("Calling {} with path {}", serverUri + "/bin/cru/path/finder.txt", incomingUri);
+            return client.target(serverUri + "/bin/cru/path/finder.txt")
+                .queryParam("path", incomingUri)
+                .request();
+        }
+    }
+
+    private String readResourcePath(final Response pathFinderResponse) {
+        String resourcePath = pathFinderResponse.readEntity(String.class);
+
+        if (Strings.isNullOrEmpty(resourcePath) || !resourcePath.startsWith("/")) {
+            LOG.warn("Resource path not found");
+            return null;
+        }
+        return resourcePath;
+    }
+
+    @Override
+    public void handleEvent(final Event event) {
+        PageEvent pageEvent = PageEvent.fromEvent(event);
+        if (pageEvent != null) {
+            Iterator<PageModification> modifications = pageEvent.getModifications();
+            while (modifications.hasNext()) {
+                PageModification modification = modifications.next();
+                if (modification.getType() == PageModification.ModificationType.MOVED
+                    || modification.getType() == PageModification.ModificationType.DELETED) {
+                    invalidate(modification.getPath());
+                }
+            }
+            return;
+        }
+
+        ReplicationAction action = ReplicationAction.fromEvent(event);
+        if (action != null) {
+            for (String path : action.getPaths()) {
+                invalidate(path);
+            }
+        }
+    }
+
+    /**
+     * Drops every cached miss and every cached URL that maps to the given page or one of its descendants.
+     */
+    @VisibleForTesting
+    void invalidate(final String pagePath) {
+        misses.invalidateAll();
+
+        Set<String> uris = Sets.newHashSet();
+        Set<String> pageUris = urisByPath.get(pagePath);
+        if (pageUris != null) {
+            uris.addAll(pageUris);
+        }
+        // Descendants sort between "path/" and "path0", as '0' follows '/'
+        for (Set<String> descendantUris : urisByPath.subMap(pagePath + "/", pagePath + "0").values()) {
+            uris.addAll(descendantUris);
+        }
+        hits.invalidateAll(uris);
+    }
+}
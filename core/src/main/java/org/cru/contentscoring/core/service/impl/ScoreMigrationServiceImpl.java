@@ -0,0 +1,655 @@
+package org.cru.contentscoring.core.service.impl;
+
+import static org.cru.contentscoring.core.service.impl.SyncScoreServiceImpl.SCALE_OF_BELIEF_TAG_PREFIX;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.settings.SlingSettingsService;
+import org.cru.contentscoring.core.service.ScoreMigrationService;
+import org.cru.contentscoring.core.util.ExperienceFragmentUtil;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.ReplicationStatus;
+import com.day.cq.replication.Replicator;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import com.day.cq.tagging.Tag;
+import com.day.cq.tagging.TagManager;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Migrates score properties to tags. The root is split into the subtrees of its children, which are migrated in
+ * parallel by a fixed number of workers. Each worker uses its own service session and saves in batches.
+ * Saved batches are replicated in chunks on a separate thread, at a limited rate, while the workers go on.
+ * The query runs on an asynchronous index, so a worker can get back pages it has already migrated; it then waits,
+ * with a growing delay, for the index to catch up, and fails the subtree if it doesn't within the configured time.
+ * A page that fails a few times is given up on and skipped from then on, and its subtree is reported as failed.
+ * A subtree is only reported as migrated once its pages are replicated. Migrated pages no longer have a score, so
+ * the pages of a replication that failed are handed to the listener, which keeps them for the next run to replicate.
+ */
+@Component(service = ScoreMigrationService.class)
+@Designate(ocd = ScoreMigrationServiceImpl.Config.class)
+public class ScoreMigrationServiceImpl implements ScoreMigrationService {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Workers",
+                description = "Number of subtrees migrated in parallel.")
+        int workers();
+
+        @AttributeDefinition(
+                name = "Batch Size",
+                description = "Number of pages fetched, migrated and saved together by a worker.")
+        int batchSize();
+
+        @AttributeDefinition(
+                name = "Replication Chunk Size",
+                description = "Max number of migrated pages activated with one replication request.")
+        int replicationChunkSize();
+
+        @AttributeDefinition(
+                name = "Replication Rate",
+                description = "Max number of migrated pages activated per second.")
+        double replicationRate();
+
+        @AttributeDefinition(
+                name = "Max Index Wait",
+                description = "Time (in milliseconds) a worker waits for the index to catch up with its own "
+                    + "changes before failing the subtree.")
+        long maxIndexWait();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScoreMigrationServiceImpl.class);
+
+    private static final String PRIMARY_XF_NAME = "primaryExperienceFragment";
+    static final String SCORE = "score";
+
+    static final String WORKERS = "workers";
+    private static final int DEFAULT_WORKERS = 4;
+
+    static final String BATCH_SIZE = "batchSize";
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    static final String REPLICATION_CHUNK_SIZE = "replicationChunkSize";
+    private static final int DEFAULT_REPLICATION_CHUNK_SIZE = 50;
+
+    static final String REPLICATION_RATE = "replicationRate";
+    private static final double DEFAULT_REPLICATION_RATE = 20.0;
+
+    static final String MAX_INDEX_WAIT = "maxIndexWait";
+    private static final long DEFAULT_MAX_INDEX_WAIT = 5L * 60L * 1000L;
+
+    private static final long MIN_INDEX_DELAY = 1000L;
+    private static final long MAX_INDEX_DELAY = 30L * 1000L;
+
+    private static final int MAX_PAGE_ATTEMPTS = 3;
+
+    @Reference
+    private SlingSettingsService slingSettingsService;
+
+    @Reference
+    private Replicator replicator;
+
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference
+    private SystemUtils systemUtils;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int replicationChunkSize = DEFAULT_REPLICATION_CHUNK_SIZE;
+    private long maxIndexWait = DEFAULT_MAX_INDEX_WAIT;
+    private RateLimiter replicationRateLimiter;
+    private ExecutorService executor;
+    private ExecutorService replicationExecutor;
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        int workers = Math.max(1, PropertiesUtil.toInteger(config.get(WORKERS), DEFAULT_WORKERS));
+        batchSize = Math.max(1, PropertiesUtil.toInteger(config.get(BATCH_SIZE), DEFAULT_BATCH_SIZE));
+        replicationChunkSize = Math.max(
+            1,
+            PropertiesUtil.toInteger(config.get(REPLICATION_CHUNK_SIZE), DEFAULT_REPLICATION_CHUNK_SIZE));
+        double replicationRate = PropertiesUtil.toDouble(config.get(REPLICATION_RATE), DEFAULT_REPLICATION_RATE);
+        replicationRateLimiter = RateLimiter.create(replicationRate > 0 ? replicationRate : DEFAULT_REPLICATION_RATE);
+        maxIndexWait = PropertiesUtil.toLong(config.get(MAX_INDEX_WAIT), DEFAULT_MAX_INDEX_WAIT);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "content-scoring-migration-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // One replication thread keeps the chunks in order and behind the rate limit
+        replicationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "content-scoring-migration-replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOG.debug(
+            "configure: workers={}, batchSize={}, replicationChunkSize={}, replicationRate={}, maxIndexWait={}",
+            workers,
+            batchSize,
+            replicationChunkSize,
+            replicationRateLimiter.getRate(),
+            maxIndexWait);
+    }
+
+    @Deactivate
+    void deactivate() {
+        executor.shutdownNow();
+        replicationExecutor.shutdownNow();
+    }
+
+    @Override
+    public long count(final String rootPath) throws LoginException, RepositoryException {
+        return systemUtils.callWithPooledResourceResolver(SystemUtils.SUBSERVICE, resourceResolver -> {
+            if (resourceResolver.getResource(rootPath) == null) {
+                throw new PathNotFoundException(rootPath);
+            }
+
+            // Without guessTotal the total is exact, and only one hit is loaded
+            Query query = createQuery(rootPath, resourceResolver.adaptTo(Session.class), 1, false);
+            return query.getResult().getTotalMatches();
+        });
+    }
+
+    @Override
+    public long migrate(final String rootPath, final MigrationListener listener)
+        throws LoginException, RepositoryException {
+
+        List<String> subtrees = Lists.newArrayList();
+        List<CompletableFuture<Void>> replications = Collections.synchronizedList(Lists.newArrayList());
+        List<CompletableFuture<Void>> checkpoints = Collections.synchronizedList(Lists.newArrayList());
+
+        String[] unreplicatedPaths = listener.getUnreplicatedPaths();
+        if (unreplicatedPaths.length > 0) {
+            LOG.info("Replicating {} pages an earlier migration of {} failed to replicate",
+                unreplicatedPaths.length, rootPath);
+            replications.addAll(replicate(Arrays.asList(unreplicatedPaths), listener));
+        }
+
+        long migrated = systemUtils.callWithPooledResourceResolver(SystemUtils.SUBSERVICE, resourceResolver -> {
+            Resource root = resourceResolver.getResource(rootPath);
+            if (root == null) {
+                throw new PathNotFoundException(rootPath);
+            }
+
+            for (Resource child : root.getChildren()) {
+                if (!JcrConstants.JCR_CONTENT.equals(child.getName())) {
+                    subtrees.add(child.getPath());
+                }
+            }
+
+            // The root itself isn't part of any subtree
+            List<Resource> pages = Lists.newArrayList();
+            if (hasScore(root)) {
+                migratePage(root, resourceResolver, resourceResolver.adaptTo(TagManager.class));
+                pages.add(root);
+            }
+            if (save(pages, resourceResolver, replications, listener)) {
+                listener.onBatch(pages.size(), 0);
+                return (long) pages.size();
+            }
+            listener.onBatch(0, pages.size());
+            return 0L;
+        });
+
+        List<Callable<Long>> tasks = Lists.newArrayList();
+        for (String subtree : subtrees) {
+            if (listener.isMigrated(subtree)) {
+                LOG.debug("Skipping {}, it was migrated by an earlier run", subtree);
+                continue;
+            }
+            tasks.add(() -> systemUtils.callWithPooledResourceResolver(
+                SystemUtils.SUBSERVICE,
+                resourceResolver -> migrateSubtree(subtree, resourceResolver, listener, replications, checkpoints)));
+        }
+
+        int failedSubtrees = 0;
+        int failedReplications = 0;
+        try {
+            for (Future<Long> result : executor.invokeAll(tasks)) {
+                try {
+                    migrated += result.get();
+                } catch (ExecutionException e) {
+                    LOG.error("Failed to migrate a subtree of {}", rootPath, e.getCause());
+                    failedSubtrees++;
+                }
+            }
+
+            // Every batch is saved by now, wait for the replication of the last chunks
+            for (Future<?> replication : replications) {
+                try {
+                    replication.get();
+                } catch (ExecutionException e) {
+                    LOG.error("Failed to replicate migrated pages under {}", rootPath, e.getCause());
+                    failedReplications++;
+                }
+            }
+            for (Future<?> checkpoint : checkpoints) {
+                try {
+                    checkpoint.get();
+                } catch (ExecutionException e) {
+                    LOG.warn("Failed to checkpoint a subtree of {}", rootPath, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while migrating " + rootPath, e);
+        }
+
+        LOG.info("Moved scores to tags on {} pages under {}", migrated, rootPath);
+        if (failedSubtrees > 0) {
+            throw new RepositoryException(
+                "Failed to migrate " + failedSubtrees + " of " + tasks.size() + " subtrees of " + rootPath);
+        }
+        if (failedReplications > 0) {
+            throw new RepositoryException(
+                "Failed to replicate " + failedReplications + " chunks of migrated pages under " + rootPath);
+        }
+        return migrated;
+    }
+
+    /**
+     * Migrates every page of the subtree, including its root, in batches. Migrated pages lose the score property,
+     * so every batch is read from the start of the result. A page that fails to migrate, alone or with a batch
+     * that fails to save, is found again by the next query, until it has failed {@link #MAX_PAGE_ATTEMPTS} times.
+     * Once no page with a score is left, the subtree is reported as migrated when all of its pages are replicated.
+     *
+     * @throws RepositoryException if pages were given up on, or the index didn't catch up in time
+     */
+    private long migrateSubtree(
+        final String subtreePath,
+        final ResourceResolver resourceResolver,
+        final MigrationListener listener,
+        final List<CompletableFuture<Void>> replications,
+        final List<CompletableFuture<Void>> checkpoints) throws RepositoryException {
+
+        List<CompletableFuture<Void>> subtreeReplications = Lists.newArrayList();
+        try {
+            long migrated = migrateSubtree(subtreePath, resourceResolver, listener, subtreeReplications);
+            checkpoints.add(checkpointWhenReplicated(subtreePath, subtreeReplications, listener));
+            return migrated;
+        } finally {
+            replications.addAll(subtreeReplications);
+        }
+    }
+
+    /**
+     * @return a future that reports the subtree as migrated if all of its replications succeed
+     */
+    private CompletableFuture<Void> checkpointWhenReplicated(
+        final String subtreePath,
+        final List<CompletableFuture<Void>> subtreeReplications,
+        final MigrationListener listener) {
+
+        return CompletableFuture
+            .allOf(subtreeReplications.toArray(new CompletableFuture<?>[0]))
+            .handle((result, e) -> {
+                if (e == null) {
+                    listener.onSubtreeMigrated(subtreePath);
+                } else {
+                    LOG.warn("Pages under {} failed to replicate, it will be migrated again", subtreePath);
+                }
+                return null;
+            });
+    }
+
+    private long migrateSubtree(
+        final String subtreePath,
+        final ResourceResolver resourceResolver,
+        final MigrationListener listener,
+        final List<CompletableFuture<Void>> replications) throws RepositoryException {
+
+        Session session = resourceResolver.adaptTo(Session.class);
+        TagManager tagManager = resourceResolver.adaptTo(TagManager.class);
+        long migrated = 0;
+        long indexWait = 0;
+        Map<String, Integer> failures = Maps.newHashMap();
+        Set<String> givenUp = Sets.newHashSet();
+
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new RepositoryException("Interrupted while migrating " + subtreePath);
+            }
+
+            // Pages given up on keep their score, so they are fetched on top of the batch and skipped
+            List<Hit> results = findPagesWithScoreProperty(subtreePath, session, batchSize + givenUp.size());
+
+            int stale = 0;
+            List<Resource> pages = Lists.newArrayList();
+            List<String> failedPaths = Lists.newArrayList();
+            for (Hit result : results) {
+                if (givenUp.contains(result.getPath())) {
+                    continue;
+                }
+                Resource page = resourceResolver.getResource(result.getPath());
+                if (!hasScore(page)) {
+                    // Not a page, or already migrated and the index hasn't caught up yet
+                    stale++;
+                    continue;
+                }
+                try {
+                    migratePage(page, resourceResolver, tagManager);
+                    pages.add(page);
+                } catch (RepositoryException e) {
+                    LOG.error("Failed to move score to tag on {}", page.getPath(), e);
+                    failedPaths.add(page.getPath());
+                }
+            }
+
+            if (pages.isEmpty() && failedPaths.isEmpty()) {
+                if (stale == 0) {
+                    break;
+                }
+                indexWait = waitForIndex(subtreePath, indexWait);
+                continue;
+            }
+            indexWait = 0;
+
+            if (save(pages, resourceResolver, replications, listener)) {
+                migrated += pages.size();
+            } else {
+                for (Resource page : pages) {
+                    failedPaths.add(page.getPath());
+                }
+                pages.clear();
+            }
+
+            int newlyGivenUp = 0;
+            for (String failedPath : failedPaths) {
+                if (failures.merge(failedPath, 1, Integer::sum) >= MAX_PAGE_ATTEMPTS) {
+                    LOG.warn("Giving up on {} after {} failed attempts", failedPath, MAX_PAGE_ATTEMPTS);
+                    givenUp.add(failedPath);
+                    newlyGivenUp++;
+                }
+            }
+            listener.onBatch(pages.size(), newlyGivenUp);
+        }
+
+        LOG.debug("Moved scores to tags on {} pages under {}", migrated, subtreePath);
+        if (!givenUp.isEmpty()) {
+            // Not reported as migrated, so a later run tries these pages again
+            throw new RepositoryException(givenUp.size() + " pages under " + subtreePath + " couldn't be migrated");
+        }
+        return migrated;
+    }
+
+    private List<Hit> findPagesWithScoreProperty(final String path, final Session session, final int limit) {
+        Query query = createQuery(path, session, limit, true);
+        SearchResult searchResult = query.getResult();
+        LOG.debug("Search took {} seconds", searchResult.getExecutionTime());
+        return searchResult.getHits();
+    }
+
+    private Query createQuery(final String path, final Session session, final int limit, final boolean guessTotal) {
+        Map<String, String> predicates = Maps.newHashMap();
+        predicates.put("path", path);
+        predicates.put("path.self", "true");
+        predicates.put("type", "cq:Page");
+        predicates.put("property", JcrConstants.JCR_CONTENT + "/" + SCORE);
+        predicates.put("property.operation", "exists");
+        predicates.put("p.limit", String.valueOf(limit));
+        predicates.put("p.guessTotal", String.valueOf(guessTotal));
+
+        return queryBuilder.createQuery(PredicateGroup.create(predicates), session);
+    }
+
+    /**
+     * Saves the batch and queues the replication of its pages, so the worker can go on with the next batch.
+     *
+     * @return false if the batch couldn't be saved and was discarded
+     */
+    private boolean save(
+        final List<Resource> pages,
+        final ResourceResolver resourceResolver,
+        final List<CompletableFuture<Void>> replications,
+        final MigrationListener listener) throws RepositoryException {
+
+        Session session = resourceResolver.adaptTo(Session.class);
+        try {
+            session.save();
+        } catch (RepositoryException e) {
+            LOG.warn("Failed to save a batch of {} migrated pages, it will be retried", pages.size(), e);
+            session.refresh(false);
+            return false;
+        }
+
+        replications.addAll(replicatePages(pages, listener));
+        return true;
+    }
+
+    /**
+     * Waits for the asynchronous index to catch up with the pages saved by this worker. Every wait is as long
+     * as all the previous ones together, up to a limit, so a lagging index isn't queried in a tight loop.
+     *
+     * @return the total time waited so far
+     * @throws RepositoryException if the total wait would exceed the configured maximum
+     */
+    private long waitForIndex(final String subtreePath, final long waited) throws RepositoryException {
+        long delay = Math.min(Math.max(MIN_INDEX_DELAY, waited), MAX_INDEX_DELAY);
+        if (waited + delay > maxIndexWait) {
+            throw new RepositoryException(
+                "The index didn't catch up with the migration of " + subtreePath + " within " + waited + " ms");
+        }
+        LOG.debug("Waiting {} ms for the index to catch up with the migration of {}", delay, subtreePath);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while migrating " + subtreePath, e);
+        }
+        return waited + delay;
+    }
+
+    private boolean hasScore(final Resource page) {
+        Resource pageContent = getJcrContent(page);
+        return pageContent != null && pageContent.getValueMap().containsKey(SCORE);
+    }
+
+    private void migratePage(
+        final Resource page,
+        final ResourceResolver resourceResolver,
+        final TagManager tagManager) throws RepositoryException {
+
+        copyScoreTagToPrimaryExperienceFragment(page, resourceResolver, tagManager);
+        moveScoreToTag(page, tagManager);
+    }
+
+    private void moveScoreToTag(final Resource page, final TagManager tagManager) throws RepositoryException {
+        Resource pageContent = getJcrContent(page);
+
+        String score = pageContent.getValueMap().get(SCORE, String.class);
+        pageContent.adaptTo(Node.class).getProperty(SCORE).remove();
+        setTags(pageContent, tagManager, score);
+    }
+
+    private void copyScoreTagToPrimaryExperienceFragment(
+        final Resource page,
+        final ResourceResolver resourceResolver,
+        final TagManager tagManager) {
+
+        Resource pageContent = getJcrContent(page);
+
+        String score = pageContent.getValueMap().get(SCORE, String.class);
+        String primaryExperienceFragmentPath = pageContent.getValueMap().get(PRIMARY_XF_NAME, String.class);
+
+        if (!Strings.isNullOrEmpty(primaryExperienceFragmentPath)) {
+            Resource primaryExperienceFragment = resourceResolver.getResource(primaryExperienceFragmentPath);
+            Resource experienceFragment;
+
+            if (primaryExperienceFragment != null) {
+                Resource jcrContent = getJcrContent(primaryExperienceFragment);
+                if (ExperienceFragmentUtil.isExperienceFragmentVariation(jcrContent)) {
+                    experienceFragment = primaryExperienceFragment.getParent();
+                } else if (ExperienceFragmentUtil.isExperienceFragment(jcrContent)) {
+                    experienceFragment = primaryExperienceFragment;
+                } else {
+                    return;
+                }
+
+                Resource experienceFragmentContent = getJcrContent(experienceFragment);
+                setTags(experienceFragmentContent, tagManager, score);
+
+                for (Resource child : experienceFragment.getChildren()) {
+                    Resource childContent = getJcrContent(child);
+                    if (childContent != null) {
+                        setTags(childContent, tagManager, score);
+                    }
+                }
+            }
+        }
+    }
+
+    private Resource getJcrContent(final Resource resource) {
+        if (resource != null && resource.getResourceType().equals("cq:Page")) {
+            return resource.getChild(JcrConstants.JCR_CONTENT);
+        }
+        return null;
+    }
+
+    private void setTags(final Resource jcrContent, final TagManager tagManager, final String score) {
+        Set<Tag> childTags = buildTagsWithScore(jcrContent, tagManager, score);
+        tagManager.setTags(jcrContent, childTags.toArray(new Tag[0]), false);
+    }
+
+    private Set<Tag> buildTagsWithScore(
+        final Resource contentResource,
+        final TagManager tagManager,
+        final String score) {
+
+        Tag[] existingTags = tagManager.getTags(contentResource);
+        Set<Tag> newTags = Sets.newHashSet();
+
+        for (Tag existingTag : existingTags) {
+            // If there is already a score tag on this resource, prefer it over the property.
+            if (existingTag.getTagID().startsWith(SCALE_OF_BELIEF_TAG_PREFIX)) {
+                return Sets.newHashSet(Arrays.asList(existingTags));
+            }
+            newTags.add(existingTag);
+        }
+
+        Tag scoreTag = tagManager.resolve(SCALE_OF_BELIEF_TAG_PREFIX + score);
+        if (scoreTag != null) {
+            newTags.add(scoreTag);
+        }
+
+        return newTags;
+    }
+
+    /**
+     * Replicates the pages that were already activated.
+     */
+    private List<CompletableFuture<Void>> replicatePages(
+        final List<Resource> pages,
+        final MigrationListener listener) {
+
+        List<String> pathsToReplicate = Lists.newArrayList();
+        for (Resource page : pages) {
+            // Only replicate pages that have already been replicated
+            if (isActivated(page)) {
+                pathsToReplicate.add(page.getPath());
+            }
+        }
+        return replicate(pathsToReplicate, listener);
+    }
+
+    /**
+     * Splits the paths into chunks. The chunks are replicated in order on the replication thread, with its own
+     * session, and no faster than the configured rate.
+     */
+    private List<CompletableFuture<Void>> replicate(final List<String> paths, final MigrationListener listener) {
+        if (paths.isEmpty() || !slingSettingsService.getRunModes().contains("author")) {
+            return Collections.emptyList();
+        }
+
+        List<CompletableFuture<Void>> replications = Lists.newArrayList();
+        for (List<String> chunk : Lists.partition(paths, replicationChunkSize)) {
+            String[] chunkPaths = chunk.toArray(new String[0]);
+            replications.add(CompletableFuture.runAsync(
+                () -> replicateChunk(chunkPaths, listener),
+                replicationExecutor));
+        }
+        return replications;
+    }
+
+    /**
+     * Reads the replication status from the page content that was loaded for the migration anyway, instead of
+     * looking it up for every page.
+     */
+    private boolean isActivated(final Resource page) {
+        Resource pageContent = getJcrContent(page);
+        return pageContent != null && ReplicationActionType.ACTIVATE.getName().equals(
+            pageContent.getValueMap().get(ReplicationStatus.NODE_PROPERTY_LAST_REPLICATION_ACTION, String.class));
+    }
+
+    /**
+     * Replicates the chunk and tells the listener whether it succeeded.
+     */
+    private void replicateChunk(final String[] paths, final MigrationListener listener) {
+        replicationRateLimiter.acquire(paths.length);
+
+        try {
+            systemUtils.callWithPooledResourceResolver(SystemUtils.SUBSERVICE, resourceResolver -> {
+                try {
+                    replicator.replicate(
+                        resourceResolver.adaptTo(Session.class),
+                        ReplicationActionType.ACTIVATE,
+                        paths,
+                        new ReplicationOptions());
+                } catch (ReplicationException e) {
+                    throw new RepositoryException("Failed to replicate " + paths.length + " migrated pages", e);
+                }
+                LOG.debug("Replicated {} migrated pages", paths.length);
+                return null;
+            });
+        } catch (LoginException | RepositoryException | RuntimeException e) {
+            listener.onReplicationFailed(paths);
+            throw new CompletionException(e);
+        }
+        listener.onReplicated(paths);
+    }
+}
@@ -0,0 +1,260 @@
+package org.cru.contentscoring.core.service.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.cru.contentscoring.core.service.SyncScoreCoalescer;
+import org.cru.contentscoring.core.service.SyncScoreExecutor;
+import org.cru.contentscoring.core.service.SyncScoreService;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+
+/**
+ * Debounces score syncs by resource path. Scores are held for a short window in which a newer score for
+ * the same page replaces the older one; then all pending pages are written by one task on the
+ * {@link SyncScoreExecutor}, with one service resolver and one save. A page whose write keeps failing is
+ * given up on after {@value #MAX_ATTEMPTS} attempts.
+ */
+@Component(service = SyncScoreCoalescer.class)
+@Designate(ocd = SyncScoreCoalescerImpl.Config.class)
+public class SyncScoreCoalescerImpl implements SyncScoreCoalescer {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Window",
+                description = "Time (in milliseconds) scores are held before they are written.")
+        long window();
+
+        @AttributeDefinition(
+                name = "Max Pending",
+                description = "Max number of pages waiting to be written. Further syncs are rejected with a 429.")
+        int maxPending();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyncScoreCoalescerImpl.class);
+
+    static final String WINDOW = "window";
+    private static final long DEFAULT_WINDOW = 500L;
+
+    static final String MAX_PENDING = "maxPending";
+    private static final int DEFAULT_MAX_PENDING = 5000;
+
+    static final int MAX_ATTEMPTS = 5;
+
+    @Reference
+    private SyncScoreService syncScoreService;
+
+    @Reference
+    private SyncScoreExecutor syncScoreExecutor;
+
+    @Reference
+    private SystemUtils systemUtils;
+
+    private final Map<String, Integer> pending = new ConcurrentHashMap<>();
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> failedAttempts = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private long window = DEFAULT_WINDOW;
+    private int maxPending = DEFAULT_MAX_PENDING;
+    private ScheduledExecutorService scheduler;
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        window = PropertiesUtil.toLong(config.get(WINDOW), DEFAULT_WINDOW);
+        maxPending = Math.max(1, PropertiesUtil.toInteger(config.get(MAX_PENDING), DEFAULT_MAX_PENDING));
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "content-scoring-sync-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOG.debug("configure: window={}, maxPending={}", window, maxPending);
+    }
+
+    @Deactivate
+    void deactivate() {
+        scheduler.shutdownNow();
+        flush();
+    }
+
+    @Override
+    public boolean offer(final String resourcePath, final int score) {
+        if (pending.size() >= maxPending && !pending.containsKey(resourcePath)) {
+            return false;
+        }
+
+        if (pending.put(resourcePath, score) != null) {
+            coalesced.incrementAndGet();
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    @Override
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true) && !scheduler.isShutdown()) {
+            scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Hands every pending score to the sync executor as one task. Pages that an earlier task is still writing
+     * stay pending for the next flush, so two tasks never write the same page. If the executor is saturated the
+     * scores are put back, unless a newer score came in meanwhile, and the flush is retried after another window.
+     */
+    @VisibleForTesting
+    void flush() {
+        flushScheduled.set(false);
+
+        Map<String, Integer> batch = Maps.newHashMap();
+        for (String resourcePath : pending.keySet()) {
+            if (!inFlight.add(resourcePath)) {
+                continue;
+            }
+            Integer score = pending.remove(resourcePath);
+            if (score != null) {
+                batch.put(resourcePath, score);
+            } else {
+                inFlight.remove(resourcePath);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        if (!syncScoreExecutor.trySubmit(() -> write(batch))) {
+            LOG.warn("Sync executor is saturated, retrying {} coalesced scores", batch.size());
+            requeue(batch);
+            inFlight.removeAll(batch.keySet());
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Stages every page on its own, so a page that fails is dropped without losing the others. If the save fails,
+     * e.g. on a conflicting change, the pages are staged again on fresh state and saved once more; if that fails
+     * too, they are put back to be written by a later flush.
+     */
+    private void write(final Map<String, Integer> batch) {
+        Map<String, Integer> scores = Maps.newHashMap(batch);
+        try {
+            systemUtils.callWithPooledResourceResolver(SystemUtils.SUBSERVICE, resourceResolver -> {
+                Session session = resourceResolver.adaptTo(Session.class);
+                stage(resourceResolver, session, scores);
+                try {
+                    save(session);
+                } catch (RepositoryException e) {
+                    LOG.warn("Failed to save {} coalesced scores, staging them again", scores.size(), e);
+                    session.refresh(false);
+                    stage(resourceResolver, session, scores);
+                    save(session);
+                }
+                return null;
+            });
+            failedAttempts.keySet().removeAll(batch.keySet());
+            LOG.debug("Synced {} of {} coalesced scores", scores.size(), batch.size());
+        } catch (Exception e) {
+            LOG.warn("Failed to sync {} scores from scale-of-belief-lambda, retrying later", scores.size(), e);
+            retry(scores);
+        } finally {
+            inFlight.removeAll(batch.keySet());
+            if (!pending.isEmpty()) {
+                scheduleFlush();
+            }
+        }
+    }
+
+    /**
+     * Stages the scores, removing the pages that fail. A failed page may have left part of its changes in the
+     * session, so then the session is discarded and the remaining pages are staged again.
+     */
+    private void stage(
+        final ResourceResolver resourceResolver,
+        final Session session,
+        final Map<String, Integer> scores) throws RepositoryException {
+
+        boolean failed = true;
+        while (failed && !scores.isEmpty()) {
+            failed = false;
+            Iterator<Map.Entry<String, Integer>> entries = scores.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, Integer> entry = entries.next();
+                try {
+                    syncScoreService.stageScore(resourceResolver, entry.getValue(), entry.getKey());
+                } catch (RepositoryException | RuntimeException e) {
+                    LOG.error("Failed to sync score {} to {}, dropping it", entry.getValue(), entry.getKey(), e);
+                    entries.remove();
+                    failed = true;
+                }
+            }
+            if (failed) {
+                session.refresh(false);
+            }
+        }
+    }
+
+    private void save(final Session session) throws RepositoryException {
+        if (session.hasPendingChanges()) {
+            session.save();
+        }
+    }
+
+    /**
+     * Puts the scores back to be written by a later flush, dropping the pages that have failed
+     * {@value #MAX_ATTEMPTS} times.
+     */
+    private void retry(final Map<String, Integer> scores) {
+        Map<String, Integer> retried = Maps.newHashMap();
+        for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+            int attempts = failedAttempts.merge(entry.getKey(), 1, Integer::sum);
+            if (attempts >= MAX_ATTEMPTS) {
+                LOG.error("Giving up on score {} for {} after {} attempts", entry.getValue(), entry.getKey(), attempts);
+                failedAttempts.remove(entry.getKey());
+            } else {
+                retried.put(entry.getKey(), entry.getValue());
+            }
+        }
+        requeue(retried);
+    }
+
+    private void requeue(final Map<String, Integer> scores) {
+        for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+            pending.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+}
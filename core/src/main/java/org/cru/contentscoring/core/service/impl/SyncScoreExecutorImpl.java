@@ -0,0 +1,146 @@
+package org.cru.contentscoring.core.service.impl;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.cru.contentscoring.core.service.SyncScoreExecutor;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@Component(service = SyncScoreExecutor.class)
+@Designate(ocd = SyncScoreExecutorImpl.Config.class)
+public class SyncScoreExecutorImpl implements SyncScoreExecutor {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Worker Threads",
+                description = "Number of threads applying synced scores.")
+        int workerThreads();
+
+        @AttributeDefinition(
+                name = "Queue Capacity",
+                description = "Max number of sync tasks waiting for a worker. Further syncs are rejected with a 429.")
+        int queueCapacity();
+
+        @AttributeDefinition(
+                name = "Retry After",
+                description = "Time (in seconds) a rejected caller is asked to wait before retrying.")
+        int retryAfter();
+
+        @AttributeDefinition(
+                name = "Shutdown Timeout",
+                description = "Time (in seconds) to let queued tasks finish when the executor is deactivated.")
+        long shutdownTimeout();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyncScoreExecutorImpl.class);
+
+    static final String WORKER_THREADS = "workerThreads";
+    private static final int DEFAULT_WORKER_THREADS = 2;
+
+    static final String QUEUE_CAPACITY = "queueCapacity";
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    static final String RETRY_AFTER = "retryAfter";
+    private static final int DEFAULT_RETRY_AFTER = 30;
+
+    static final String SHUTDOWN_TIMEOUT = "shutdownTimeout";
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT = 10L;
+
+    private ThreadPoolExecutor executor;
+    private int retryAfter;
+    private long shutdownTimeout;
+
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong rejectedTasks = new AtomicLong();
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        int workerThreads = Math.max(
+            1,
+            PropertiesUtil.toInteger(config.get(WORKER_THREADS), DEFAULT_WORKER_THREADS));
+        int queueCapacity = Math.max(
+            1,
+            PropertiesUtil.toInteger(config.get(QUEUE_CAPACITY), DEFAULT_QUEUE_CAPACITY));
+        retryAfter = PropertiesUtil.toInteger(config.get(RETRY_AFTER), DEFAULT_RETRY_AFTER);
+        shutdownTimeout = PropertiesUtil.toLong(config.get(SHUTDOWN_TIMEOUT), DEFAULT_SHUTDOWN_TIMEOUT);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+            workerThreads,
+            workerThreads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+                Thread thread = new Thread(runnable, "content-scoring-sync-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+        LOG.debug("configure: workerThreads={}, queueCapacity={}", workerThreads, queueCapacity);
+    }
+
+    @Deactivate
+    void deactivate() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(shutdownTimeout, TimeUnit.SECONDS)) {
+            LOG.warn("Dropping {} sync tasks on shutdown", executor.shutdownNow().size());
+        }
+    }
+
+    @Override
+    public boolean trySubmit(final Runnable task) {
+        long submittedAt = System.currentTimeMillis();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    completedTasks.incrementAndGet();
+                    totalLatency.addAndGet(System.currentTimeMillis() - submittedAt);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedTasks.incrementAndGet();
+            LOG.warn("Sync executor is saturated ({} tasks waiting), rejecting sync", executor.getQueue().size());
+            return false;
+        }
+    }
+
+    @Override
+    public int getRetryAfterSeconds() {
+        return retryAfter;
+    }
+
+    @Override
+    public int getBacklogDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public long getAverageTaskLatency() {
+        long completed = completedTasks.get();
+        return completed == 0 ? 0 : totalLatency.get() / completed;
+    }
+
+    @Override
+    public long getRejectedTaskCount() {
+        return rejectedTasks.get();
+    }
+}
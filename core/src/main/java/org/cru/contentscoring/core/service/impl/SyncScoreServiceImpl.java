@@ -1,27 +1,104 @@
 package org.cru.contentscoring.core.service.impl;
 
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.cru.contentscoring.core.models.SyncStatus;
 import org.cru.contentscoring.core.service.SyncScoreService;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.day.cq.tagging.Tag;
+import com.day.cq.tagging.TagConstants;
 import com.day.cq.tagging.TagManager;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Applies synced scores as scale-of-belief tags. The IDs of the eleven score tags are cached for a short time,
+ * or until the tag taxonomy changes, and the tags themselves are resolved with the caller's session.
+ * When writing cq:tags directly, tags stored as paths are rewritten as tag IDs so a page doesn't end up with
+ * the same tag twice.
+ */
+@Component(service = { SyncScoreService.class, ResourceChangeListener.class }, property = {
+        ResourceChangeListener.PATHS + "=/content/cq:tags/target-audience",
+        ResourceChangeListener.PATHS + "=/etc/tags/target-audience" })
+@Designate(ocd = SyncScoreServiceImpl.Config.class)
+public class SyncScoreServiceImpl implements SyncScoreService, ResourceChangeListener {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Direct Tag Write",
+                description = "Rewrite the cq:tags property directly instead of going through the TagManager.")
+        boolean directTagWrite();
+
+        @AttributeDefinition(
+                name = "Tag Cache TTL",
+                description = "Time (in seconds) the IDs of the score tags are cached.")
+        long tagCacheTtl();
+    }
 
-@Component(service = SyncScoreService.class)
-public class SyncScoreServiceImpl implements SyncScoreService {
     private static final Logger LOG = LoggerFactory.getLogger(SyncScoreServiceImpl.class);
 
     public static final String SCALE_OF_BELIEF_TAG_PREFIX = "target-audience:scale-of-belief/";
+    private static final int MAX_SCORE = 10;
+
+    // Stands in for a score tag that doesn't exist, since the cache can't hold nulls
+    private static final String NO_TAG = "";
+
+    private static final String[] TAG_ROOTS = { "/content/cq:tags/", "/etc/tags/" };
+
+    static final String DIRECT_TAG_WRITE = "directTagWrite";
+
+    static final String TAG_CACHE_TTL = "tagCacheTtl";
+    private static final long DEFAULT_TAG_CACHE_TTL = 5L * 60L;
+
+    private boolean directTagWrite;
+
+    private Cache<Integer, String> scoreTagIds = buildScoreTagIdCache(DEFAULT_TAG_CACHE_TTL);
+
+    private final AtomicLong unchangedScores = new AtomicLong();
+    private final AtomicLong changedScores = new AtomicLong();
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        directTagWrite = PropertiesUtil.toBoolean(config.get(DIRECT_TAG_WRITE), false);
+        long tagCacheTtl = PropertiesUtil.toLong(config.get(TAG_CACHE_TTL), DEFAULT_TAG_CACHE_TTL);
+        LOG.debug("configure: directTagWrite={}, tagCacheTtl={}", directTagWrite, tagCacheTtl);
+
+        scoreTagIds = buildScoreTagIdCache(tagCacheTtl);
+    }
+
+    private static Cache<Integer, String> buildScoreTagIdCache(final long tagCacheTtl) {
+        return CacheBuilder.newBuilder()
+            .maximumSize(MAX_SCORE + 1)
+            .expireAfterWrite(tagCacheTtl, TimeUnit.SECONDS)
+            .build();
+    }
 
     @Override
     public void syncScore(
@@ -34,19 +111,73 @@ public class SyncScoreServiceImpl implements SyncScoreService {
         if (resource == null) {
             return;
         }
-        updateScore(resourceResolver, score, resource);
+        updateScore(resourceResolver, score, resource, true);
     }
 
-    private void updateScore(
+    @Override
+    public SyncStatus stageScore(
         final ResourceResolver resourceResolver,
         final int score,
-        final Resource resource) throws RepositoryException {
+        final String resourcePath) throws RepositoryException {
+
+        Resource resource = resourceResolver.getResource(resourcePath);
+
+        if (resource == null) {
+            return SyncStatus.NOT_FOUND;
+        }
+        return updateScore(resourceResolver, score, resource, false);
+    }
+
+    @Override
+    public long getUnchangedScores() {
+        return unchangedScores.get();
+    }
+
+    @Override
+    public long getChangedScores() {
+        return changedScores.get();
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes) {
+        LOG.debug("Tag taxonomy changed, dropping cached score tag IDs");
+        scoreTagIds.invalidateAll();
+    }
+
+    private SyncStatus updateScore(
+        final ResourceResolver resourceResolver,
+        final int score,
+        final Resource resource,
+        final boolean autoSave) throws RepositoryException {
 
         Resource contentResource = resource.getChild("jcr:content");
 
         if (contentResource != null) {
             Node node = contentResource.adaptTo(Node.class);
             if (node != null) {
+                TagManager tagManager = resourceResolver.adaptTo(TagManager.class);
+                String scoreTagId = getScoreTagId(tagManager, score);
+
+                Tag[] existingTags = null;
+                String[] existingTagIds;
+                if (directTagWrite) {
+                    existingTagIds = Arrays.stream(contentResource.getValueMap()
+                        .get(TagConstants.PN_TAGS, new String[0]))
+                        .map(SyncScoreServiceImpl::normalizeTagId)
+                        .toArray(String[]::new);
+                } else {
+                    existingTags = tagManager.getTags(contentResource);
+                    existingTagIds = Arrays.stream(existingTags).map(Tag::getTagID).toArray(String[]::new);
+                }
+
+                // Writing the same score again would only mark the page modified
+                if (hasOnlyScoreTag(existingTagIds, score)) {
+                    unchangedScores.incrementAndGet();
+                    LOG.debug("Score on {} is already {}", node.getPath(), score);
+                    return SyncStatus.UNCHANGED;
+                }
+                changedScores.incrementAndGet();
+
                 LOG.debug("Setting score on {} to {}", node.getPath(), score);
 
                 Calendar now = Calendar.getInstance();
@@ -55,19 +186,84 @@ public class SyncScoreServiceImpl implements SyncScoreService {
                 node.setProperty("cq:lastModified", now);
                 node.setProperty("cq:lastModifiedBy", "scale-of-belief");
 
-                TagManager tagManager = resourceResolver.adaptTo(TagManager.class);
-                List<Tag> newTags = buildTagsWithScore(contentResource, tagManager, score);
-                tagManager.setTags(contentResource, newTags.toArray(new Tag[0]));
+                if (directTagWrite) {
+                    node.setProperty(TagConstants.PN_TAGS, buildTagIdsWithScore(existingTagIds, scoreTagId));
+                    if (autoSave) {
+                        resourceResolver.adaptTo(Session.class).save();
+                    }
+                } else {
+                    Tag scoreTag = scoreTagId != null ? tagManager.resolve(scoreTagId) : null;
+                    List<Tag> newTags = buildTagsWithScore(existingTags, scoreTag);
+                    if (autoSave) {
+                        tagManager.setTags(contentResource, newTags.toArray(new Tag[0]));
+                    } else {
+                        tagManager.setTags(contentResource, newTags.toArray(new Tag[0]), false);
+                    }
+                }
+                return SyncStatus.UPDATED;
             }
         }
+        return SyncStatus.NOT_FOUND;
     }
 
-    private List<Tag> buildTagsWithScore(
-        final Resource contentResource,
+    /**
+     * @return the ID of the tag for the score, or null if the tag doesn't exist
+     */
+    private String getScoreTagId(
         final TagManager tagManager,
-        final int score) {
+        final int score) throws RepositoryException {
+
+        if (score < 0 || score > MAX_SCORE) {
+            return null;
+        }
+
+        try {
+            String tagId = scoreTagIds.get(score, () -> {
+                Tag tag = tagManager.resolve(SCALE_OF_BELIEF_TAG_PREFIX + score);
+                return tag != null ? tag.getTagID() : NO_TAG;
+            });
+            return NO_TAG.equals(tagId) ? null : tagId;
+        } catch (ExecutionException e) {
+            throw new RepositoryException("Failed to resolve score tag", e.getCause());
+        }
+    }
+
+    /**
+     * Turns a tag stored by path, e.g. /content/cq:tags/namespace/some/tag, into its ID, namespace:some/tag.
+     * Values that are already IDs are returned as they are.
+     */
+    @VisibleForTesting
+    static String normalizeTagId(final String tagId) {
+        for (String tagRoot : TAG_ROOTS) {
+            if (tagId.startsWith(tagRoot)) {
+                String relativePath = tagId.substring(tagRoot.length());
+                int slash = relativePath.indexOf('/');
+                if (slash < 0) {
+                    return relativePath + ":";
+                }
+                return relativePath.substring(0, slash) + ":" + relativePath.substring(slash + 1);
+            }
+        }
+        return tagId;
+    }
+
+    private boolean hasOnlyScoreTag(final String[] existingTagIds, final int score) {
+        boolean found = false;
+        for (String tagId : existingTagIds) {
+            if (tagId.startsWith(SCALE_OF_BELIEF_TAG_PREFIX)) {
+                if (found || !tagId.equals(SCALE_OF_BELIEF_TAG_PREFIX + score)) {
+                    return false;
+                }
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    private List<Tag> buildTagsWithScore(
+        final Tag[] existingTags,
+        final Tag scoreTag) {
 
-        Tag[] existingTags = tagManager.getTags(contentResource);
         List<Tag> newTags = Lists.newArrayList();
 
         for (Tag existingTag : existingTags) {
@@ -77,11 +273,31 @@ public class SyncScoreServiceImpl implements SyncScoreService {
             newTags.add(existingTag);
         }
 
-        Tag scoreTag = tagManager.resolve(SCALE_OF_BELIEF_TAG_PREFIX + score);
         if (scoreTag != null) {
             newTags.add(scoreTag);
         }
 
         return newTags;
     }
+
+    private String[] buildTagIdsWithScore(
+        final String[] existingTagIds,
+        final String scoreTagId) {
+
+        // Normalized paths can repeat tags that were also stored by ID
+        Set<String> newTagIds = Sets.newLinkedHashSet();
+
+        for (String existingTagId : existingTagIds) {
+            if (existingTagId.startsWith(SCALE_OF_BELIEF_TAG_PREFIX)) {
+                continue;
+            }
+            newTagIds.add(existingTagId);
+        }
+
+        if (scoreTagId != null) {
+            newTagIds.add(scoreTagId);
+        }
+
+        return newTagIds.toArray(new String[0]);
+    }
 }
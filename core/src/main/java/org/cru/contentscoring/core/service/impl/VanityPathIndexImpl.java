@@ -0,0 +1,309 @@
+package org.cru.contentscoring.core.service.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * Indexes the sling:vanityPath of every page under /content, in both directions: vanity path to pages and page to
+ * vanity paths. The index is built once with a query on activation and then kept up to date from resource changes.
+ * Readers never lock; changes are applied one at a time.
+ * There is at most one build queued or running. Changes that come in during a build make it run the query again
+ * instead of queueing another build, and a build that fails is retried with a growing delay.
+ */
+@Component(service = { VanityPathIndex.class, ResourceChangeListener.class }, property = {
+        ResourceChangeListener.PATHS + "=" + VanityPathIndexImpl.CONTENT_ROOT,
+        ResourceChangeListener.CHANGES + "=ADDED",
+        ResourceChangeListener.CHANGES + "=CHANGED",
+        ResourceChangeListener.CHANGES + "=REMOVED" })
+public class VanityPathIndexImpl implements VanityPathIndex, ResourceChangeListener {
+    private static final Logger LOG = LoggerFactory.getLogger(VanityPathIndexImpl.class);
+
+    static final String CONTENT_ROOT = "/content";
+    static final String VANITY_PATH = "sling:vanityPath";
+
+    private static final String CONTENT_SUFFIX = "/" + JcrConstants.JCR_CONTENT;
+
+    private static final long MIN_RETRY_DELAY = 1000L;
+    private static final long MAX_RETRY_DELAY = 5L * 60L * 1000L;
+
+    @Reference
+    private QueryBuilder queryBuilder;
+
+    @Reference
+    private SystemUtils systemUtils;
+
+    private final Map<String, Set<String>> pagesByVanityPath = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> vanityPathsByPage = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean ready;
+    private ScheduledExecutorService builder;
+
+    // Guarded by this
+    private boolean buildScheduled;
+    private boolean rebuildNeeded;
+    private long retryDelay = MIN_RETRY_DELAY;
+
+    @Activate
+    public void activate() {
+        builder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "content-scoring-vanity-path-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        synchronized (this) {
+            scheduleBuild(0);
+        }
+    }
+
+    @Deactivate
+    void deactivate() {
+        builder.shutdownNow();
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public Set<String> getPagePaths(final String vanityPath) {
+        Set<String> pagePaths = pagesByVanityPath.get(vanityPath);
+        return pagePaths == null ? Collections.emptySet() : pagePaths;
+    }
+
+    @Override
+    public boolean isAmbiguous(final String vanityPath) {
+        return getPagePaths(vanityPath).size() > 1;
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes) {
+        synchronized (this) {
+            if (!ready) {
+                // Lookups search the repository until the index is ready, and without the previous state there is
+                // no telling which changes affect them, so every change makes earlier results outdated
+                generation.incrementAndGet();
+                // A running build may have read the repository before these changes
+                rebuildNeeded = true;
+                scheduleBuild(0);
+                return;
+            }
+        }
+
+        try {
+            systemUtils.callWithPooledResourceResolver(SystemUtils.SUBSERVICE, resourceResolver -> {
+                for (ResourceChange change : changes) {
+                    apply(change, resourceResolver);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            LOG.error("Failed to update the vanity path index, rebuilding it", e);
+            synchronized (this) {
+                ready = false;
+                rebuildNeeded = true;
+                scheduleBuild(0);
+            }
+        }
+    }
+
+    /**
+     * Queues a build, unless one is already queued or running. The caller must hold the lock.
+     */
+    private void scheduleBuild(final long delay) {
+        if (!buildScheduled) {
+            buildScheduled = true;
+            builder.schedule(this::build, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Loads every page with a vanity path. Builds again as long as changes came in while building, and schedules
+     * a retry if the query fails.
+     */
+    @VisibleForTesting
+    void build() {
+        while (!Thread.currentThread().isInterrupted()) {
+            synchronized (this) {
+                rebuildNeeded = false;
+            }
+
+            Map<String, Set<String>> vanityPaths;
+            try {
+                vanityPaths = systemUtils.callWithPooledResourceResolver(SystemUtils.SUBSERVICE, this::findVanityPaths);
+            } catch (Exception e) {
+                synchronized (this) {
+                    LOG.error(
+                        "Failed to build the vanity path index, retrying in {} ms, vanity paths are searched",
+                        retryDelay,
+                        e);
+                    buildScheduled = false;
+                    scheduleBuild(retryDelay);
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                }
+                return;
+            }
+
+            synchronized (this) {
+                pagesByVanityPath.clear();
+                vanityPathsByPage.clear();
+                for (Map.Entry<String, Set<String>> entry : vanityPaths.entrySet()) {
+                    update(entry.getKey(), entry.getValue());
+                }
+                generation.incrementAndGet();
+                LOG.info("Indexed {} vanity paths of {} pages", pagesByVanityPath.size(), vanityPathsByPage.size());
+
+                if (!rebuildNeeded) {
+                    // From now on changes are applied to the index as they come in
+                    ready = true;
+                    buildScheduled = false;
+                    retryDelay = MIN_RETRY_DELAY;
+                    return;
+                }
+            }
+        }
+
+        synchronized (this) {
+            buildScheduled = false;
+        }
+    }
+
+    private Map<String, Set<String>> findVanityPaths(final ResourceResolver resourceResolver)
+        throws RepositoryException {
+
+        Map<String, String> predicates = Maps.newHashMap();
+        predicates.put("path", CONTENT_ROOT);
+        predicates.put("type", "cq:PageContent");
+        predicates.put("property", VANITY_PATH);
+        predicates.put("property.operation", "exists");
+        predicates.put("p.limit", "-1");
+
+        Query query = queryBuilder.createQuery(
+            PredicateGroup.create(predicates),
+            resourceResolver.adaptTo(Session.class));
+
+        Map<String, Set<String>> vanityPaths = Maps.newHashMap();
+        for (Hit hit : query.getResult().getHits()) {
+            Resource pageContent = hit.getResource();
+            vanityPaths.put(pageContent.getParent().getPath(), readVanityPaths(pageContent));
+        }
+        return vanityPaths;
+    }
+
+    private void apply(final ResourceChange change, final ResourceResolver resourceResolver) {
+        String path = change.getPath();
+        if (path.contains(CONTENT_SUFFIX + "/")) {
+            // Components of a page don't have vanity paths
+            return;
+        }
+        String pagePath = path.endsWith(CONTENT_SUFFIX)
+            ? path.substring(0, path.length() - CONTENT_SUFFIX.length())
+            : path;
+
+        if (change.getType() == ResourceChange.ChangeType.ADDED
+            || change.getType() == ResourceChange.ChangeType.REMOVED) {
+            // A new page may be what an earlier URL was looking for, and a removed one is no longer found
+            generation.incrementAndGet();
+        }
+        if (change.getType() == ResourceChange.ChangeType.REMOVED && !path.endsWith(CONTENT_SUFFIX)) {
+            removeTree(pagePath);
+            return;
+        }
+
+        Resource pageContent = resourceResolver.getResource(pagePath + CONTENT_SUFFIX);
+        update(pagePath, pageContent == null ? Collections.emptySet() : readVanityPaths(pageContent));
+    }
+
+    private Set<String> readVanityPaths(final Resource pageContent) {
+        return ImmutableSet.copyOf(pageContent.getValueMap().get(VANITY_PATH, new String[0]));
+    }
+
+    /**
+     * Replaces the vanity paths of a page. Sets in the maps are immutable and replaced as a whole, so readers
+     * always see a consistent set.
+     */
+    private synchronized void update(final String pagePath, final Set<String> vanityPaths) {
+        Set<String> previous = vanityPaths.isEmpty()
+            ? vanityPathsByPage.remove(pagePath)
+            : vanityPathsByPage.put(pagePath, vanityPaths);
+
+        if (!vanityPaths.equals(previous == null ? Collections.emptySet() : previous)) {
+            generation.incrementAndGet();
+        }
+        if (previous != null) {
+            for (String vanityPath : previous) {
+                if (!vanityPaths.contains(vanityPath)) {
+                    removePage(vanityPath, pagePath);
+                }
+            }
+        }
+        for (String vanityPath : vanityPaths) {
+            Set<String> pagePaths = getPagePaths(vanityPath);
+            if (!pagePaths.contains(pagePath)) {
+                pagesByVanityPath.put(
+                    vanityPath,
+                    ImmutableSet.<String>builder().addAll(pagePaths).add(pagePath).build());
+                if (!pagePaths.isEmpty()) {
+                    LOG.debug("Vanity path {} is ambiguous, it is used by {} and {}", vanityPath, pagePaths, pagePath);
+                }
+            }
+        }
+    }
+
+    private void removePage(final String vanityPath, final String pagePath) {
+        Set<String> pagePaths = getPagePaths(vanityPath);
+        if (pagePaths.size() <= 1) {
+            pagesByVanityPath.remove(vanityPath);
+        } else {
+            Set<String> remaining = ImmutableSet.copyOf(
+                pagePaths.stream().filter(path -> !path.equals(pagePath)).iterator());
+            pagesByVanityPath.put(vanityPath, remaining);
+        }
+    }
+
+    private synchronized void removeTree(final String rootPath) {
+        String prefix = rootPath + "/";
+        for (String pagePath : vanityPathsByPage.keySet()) {
+            if (pagePath.equals(rootPath) || pagePath.startsWith(prefix)) {
+                update(pagePath, Collections.emptySet());
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package org.cru.contentscoring.core.servlets;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.Servlet;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.cru.contentscoring.core.models.ContentScoreUpdateRequest;
+import org.cru.contentscoring.core.models.SyncScoreResult;
+import org.cru.contentscoring.core.models.SyncStatus;
+import org.cru.contentscoring.core.service.ResourcePathFinder;
+import org.cru.contentscoring.core.service.SyncScoreService;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Syncs many scores in one request. The body is either a JSON array or newline delimited JSON
+ * (application/x-ndjson) of {@code {"uri": ..., "score": ...}} objects, which is read as a stream.
+ * The items are read in chunks of {@code chunkSize}: the pages of a chunk are looked up together, without
+ * waiting for each other, and its scores are applied with one service resolver and saved together. An item
+ * that fails leaves nothing behind to be saved with the rest of its chunk.
+ * The response is a JSON array with the status of every item, in request order. If the body turns out to be
+ * malformed after some items were read, those items are still saved and the response is a 207 with their
+ * statuses only, so the caller resends just the items after the last one listed.
+ */
+@Component(service = Servlet.class, property = {
+        "sling.servlet.methods=" + HttpConstants.METHOD_POST,
+        "sling.servlet.paths=/bin/cru/content-scoring/sync/batch" })
+@Designate(ocd = BatchSyncScoreServlet.Config.class)
+public class BatchSyncScoreServlet extends SlingAllMethodsServlet {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Chunk Size",
+                description = "Number of items looked up and saved together.")
+        int chunkSize();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchSyncScoreServlet.class);
+
+    static final String CHUNK_SIZE = "chunkSize";
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final int MULTI_STATUS = 207;
+
+    @Reference
+    private SyncScoreService syncScoreService;
+
+    @Reference
+    private ResourcePathFinder resourcePathFinder;
+
+    @Reference
+    private SystemUtils systemUtils;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        chunkSize = Math.max(1, PropertiesUtil.toInteger(config.get(CHUNK_SIZE), DEFAULT_CHUNK_SIZE));
+        LOG.debug("configure: chunkSize={}", chunkSize);
+    }
+
+    @Override
+    protected void doPost(
+        final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response) throws IOException {
+
+        List<SyncScoreResult> results = Lists.newArrayList();
+        boolean truncated = false;
+        try (ResourceResolver resourceResolver = systemUtils.getResourceResolver(SystemUtils.SUBSERVICE);
+             MappingIterator<ContentScoreUpdateRequest> items = OBJECT_MAPPER
+                 .readerFor(ContentScoreUpdateRequest.class)
+                 .readValues(request.getReader())) {
+
+            Map<String, CompletableFuture<String>> resolvedPaths = Maps.newHashMap();
+            List<ContentScoreUpdateRequest> chunk = Lists.newArrayList();
+
+            while (true) {
+                try {
+                    if (!items.hasNextValue()) {
+                        break;
+                    }
+                    chunk.add(items.nextValue());
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Batch score sync request is malformed after {} items",
+                        results.size() + chunk.size(), e);
+                    truncated = true;
+                    break;
+                }
+
+                if (chunk.size() >= chunkSize) {
+                    results.addAll(sync(request, resourceResolver, chunk, resolvedPaths));
+                    chunk.clear();
+                }
+            }
+            results.addAll(sync(request, resourceResolver, chunk, resolvedPaths));
+        } catch (LoginException e) {
+            LOG.error("Failed to get resource resolver for batch score sync", e);
+            response.sendError(500, "Failed to sync scores");
+            return;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to read batch score sync request", e);
+            response.sendError(400, "Invalid request body");
+            return;
+        }
+
+        if (truncated && results.isEmpty()) {
+            response.sendError(400, "Invalid request body");
+            return;
+        }
+        if (truncated) {
+            response.setStatus(MULTI_STATUS);
+        }
+        response.setHeader("Content-Type", "application/json");
+        OBJECT_MAPPER.writeValue(response.getWriter(), results);
+    }
+
+    /**
+     * Looks up the paths of the chunk together, then stages and saves its scores.
+     *
+     * @return the results of the chunk, in request order
+     */
+    private List<SyncScoreResult> sync(
+        final SlingHttpServletRequest request,
+        final ResourceResolver resourceResolver,
+        final List<ContentScoreUpdateRequest> chunk,
+        final Map<String, CompletableFuture<String>> resolvedPaths) {
+
+        // Each URI is looked up once per request, even if it is listed several times
+        for (ContentScoreUpdateRequest item : chunk) {
+            if (isValid(item) && !resolvedPaths.containsKey(item.getUri())) {
+                resolvedPaths.put(item.getUri(), resourcePathFinder.findResourcePathAsync(request, item.getUri()));
+            }
+        }
+
+        List<SyncScoreResult> results = Lists.newArrayList();
+        Map<SyncScoreResult, String> staged = new LinkedHashMap<>();
+        for (ContentScoreUpdateRequest item : chunk) {
+            SyncScoreResult result = stage(resourceResolver, item, resolvedPaths, staged);
+            results.add(result);
+            if (result.getStatus() == SyncStatus.FAILED) {
+                restage(resourceResolver, staged);
+            }
+        }
+        commit(resourceResolver, staged.keySet());
+        return results;
+    }
+
+    private boolean isValid(final ContentScoreUpdateRequest item) {
+        Integer score = item.getScore();
+        String uri = item.getUri();
+        return score != null && score >= 0 && score <= 10 && uri != null && uri.startsWith("http");
+    }
+
+    private SyncScoreResult stage(
+        final ResourceResolver resourceResolver,
+        final ContentScoreUpdateRequest item,
+        final Map<String, CompletableFuture<String>> resolvedPaths,
+        final Map<SyncScoreResult, String> staged) {
+
+        String uri = item.getUri();
+        Integer score = item.getScore();
+
+        if (score == null || score < 0 || score > 10) {
+            return new SyncScoreResult(uri, score, SyncStatus.INVALID_SCORE);
+        }
+        if (uri == null || !uri.startsWith("http")) {
+            return new SyncScoreResult(uri, score, SyncStatus.SKIPPED);
+        }
+
+        try {
+            String resourcePath = resolvedPaths.get(uri).get();
+            if (resourcePath == null) {
+                return new SyncScoreResult(uri, score, SyncStatus.NOT_FOUND);
+            }
+            SyncScoreResult result = new SyncScoreResult(
+                uri,
+                score,
+                syncScoreService.stageScore(resourceResolver, score, resourcePath));
+            if (result.getStatus() == SyncStatus.UPDATED) {
+                staged.put(result, resourcePath);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new SyncScoreResult(uri, score, SyncStatus.FAILED);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof URISyntaxException) {
+                LOG.debug("Invalid URI {}", uri);
+                return new SyncScoreResult(uri, score, SyncStatus.NOT_FOUND);
+            }
+            LOG.error("Failed to find the page of {}", uri, e.getCause());
+            return new SyncScoreResult(uri, score, SyncStatus.FAILED);
+        } catch (Exception e) {
+            LOG.error("Failed to sync score for {}", uri, e);
+            return new SyncScoreResult(uri, score, SyncStatus.FAILED);
+        }
+    }
+
+    /**
+     * A score that failed to stage may have left some of its changes in the session. They are discarded with
+     * all unsaved changes, and the scores staged before it are staged again, so the failed item saves nothing.
+     */
+    private void restage(final ResourceResolver resourceResolver, final Map<SyncScoreResult, String> staged) {
+        Session session = resourceResolver.adaptTo(Session.class);
+        boolean clean = false;
+        while (!clean) {
+            clean = true;
+            try {
+                session.refresh(false);
+            } catch (RepositoryException e) {
+                LOG.error("Failed to discard unsaved scores", e);
+                failAll(staged.keySet());
+                staged.clear();
+                return;
+            }
+
+            Iterator<Map.Entry<SyncScoreResult, String>> entries = staged.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<SyncScoreResult, String> entry = entries.next();
+                SyncScoreResult result = entry.getKey();
+                try {
+                    result.setStatus(
+                        syncScoreService.stageScore(resourceResolver, result.getScore(), entry.getValue()));
+                } catch (Exception e) {
+                    LOG.error("Failed to sync score for {}", result.getUri(), e);
+                    result.setStatus(SyncStatus.FAILED);
+                }
+                if (result.getStatus() != SyncStatus.UPDATED) {
+                    entries.remove();
+                    if (result.getStatus() == SyncStatus.FAILED) {
+                        // Its changes have to be discarded as well, so the remaining scores are staged once more
+                        clean = false;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the staged scores of the chunk. If the save fails the changes are dropped and every item of the
+     * chunk is reported as failed, so the caller knows which ones to resend.
+     */
+    private void commit(final ResourceResolver resourceResolver, final Collection<SyncScoreResult> chunk) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+
+        Session session = resourceResolver.adaptTo(Session.class);
+        try {
+            session.save();
+        } catch (RepositoryException e) {
+            LOG.error("Failed to save {} synced scores", chunk.size(), e);
+            failAll(chunk);
+            try {
+                session.refresh(false);
+            } catch (RepositoryException refreshException) {
+                LOG.error("Failed to discard unsaved scores", refreshException);
+            }
+        }
+    }
+
+    private void failAll(final Collection<SyncScoreResult> results) {
+        for (SyncScoreResult result : results) {
+            result.setStatus(SyncStatus.FAILED);
+        }
+    }
+}
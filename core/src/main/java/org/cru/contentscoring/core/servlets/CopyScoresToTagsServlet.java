@@ -1,59 +1,68 @@
 package org.cru.contentscoring.core.servlets;
 
-import static org.cru.contentscoring.core.service.impl.SyncScoreServiceImpl.SCALE_OF_BELIEF_TAG_PREFIX;
-
 import java.io.IOException;
+import java.net.URLEncoder;
 import java.security.Principal;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Set;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
 
-import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.servlet.Servlet;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.HttpConstants;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
-import org.apache.sling.settings.SlingSettingsService;
-import org.cru.contentscoring.core.util.ExperienceFragmentUtil;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.event.jobs.JobManager.QueryType;
+import org.cru.contentscoring.core.listeners.ScoreMigrationJobConsumer;
+import org.cru.contentscoring.core.models.MigrationState;
+import org.cru.contentscoring.core.models.MigrationStatus;
+import org.cru.contentscoring.core.util.MigrationStatusUtil;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.day.cq.commons.jcr.JcrConstants;
-import com.day.cq.replication.ReplicationActionType;
-import com.day.cq.replication.ReplicationException;
-import com.day.cq.replication.ReplicationOptions;
-import com.day.cq.replication.Replicator;
-import com.day.cq.search.Predicate;
-import com.day.cq.search.SimpleSearch;
-import com.day.cq.search.result.Hit;
-import com.day.cq.search.result.SearchResult;
-import com.day.cq.tagging.Tag;
-import com.day.cq.tagging.TagManager;
+import com.day.cq.commons.jcr.JcrUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 
+/**
+ * Moves the legacy score property of every page under a root to a scale-of-belief tag. A PUT queues a
+ * migration job, optionally as a dry run that only counts the pages; a GET reports its progress.
+ * A status left running by a job that is gone, because it was dropped or stopped saving progress, doesn't block
+ * a new migration and is reported as failed.
+ * Checking the status and adding the job aren't atomic, so a PUT first creates a claim node under the status. Of two
+ * concurrent requests only one can save it; the other gets a 409, like a request made while the job is queued.
+ */
 @Component(service = Servlet.class, property = {
         "sling.servlet.methods=" + HttpConstants.METHOD_PUT,
+        "sling.servlet.methods=" + HttpConstants.METHOD_GET,
         "sling.servlet.paths=/bin/cru/content-scoring/move-scores-to-tags" })
 public class CopyScoresToTagsServlet extends SlingAllMethodsServlet {
     private static final Logger LOG = LoggerFactory.getLogger(CopyScoresToTagsServlet.class);
 
-    private static final String PRIMARY_XF_NAME = "primaryExperienceFragment";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final int ACCEPTED = 202;
+    private static final int CONFLICT = 409;
 
-    @Reference
-    private SlingSettingsService slingSettingsService;
+    // A running migration saves its progress after every batch, so one that hasn't for this long is stuck
+    private static final long STALE_AFTER = 60L * 60L * 1000L;
+
+    // A claim holds until its job can be found, and is left to be replaced after that
+    private static final long CLAIM_TIMEOUT = 60L * 1000L;
 
     @Reference
-    private Replicator replicator;
+    private JobManager jobManager;
 
     @Override
     protected void doPut(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
@@ -65,184 +74,174 @@ public class CopyScoresToTagsServlet extends SlingAllMethodsServlet {
             return;
         }
 
-        Principal principal = request.getUserPrincipal();
-        if (principal == null || !principal.getName().equals("admin")) {
-            LOG.error(
-                "Unauthorized attempt to move scores to tags by {}",
-                principal == null ? "Anonymous" : principal.getName());
+        if (!isAuthorized(request)) {
             response.sendError(401, "You are not authorized to perform this command.");
             return;
         }
 
-        ResourceResolver resourceResolver = request.getResourceResolver();
-        Resource root = resourceResolver.getResource(path);
-        if (root == null) {
+        if (request.getResourceResolver().getResource(path) == null) {
             response.sendError(400, "Invalid path");
             return;
         }
 
-        TagManager tagManager = resourceResolver.adaptTo(TagManager.class);
-
-        List<Hit> results = findPagesWithScoreProperty(root);
-
-        try {
-            moveScoresToTags(results, tagManager, resourceResolver);
-        } catch (RepositoryException | ReplicationException e) {
-            LOG.error(e.getMessage(), e);
-            response.sendError(500, e.getMessage());
+        MigrationStatus status = MigrationStatusUtil.getStatus(request.getResourceResolver(), path);
+        boolean running = status != null && status.getState() == MigrationState.RUNNING;
+        boolean stale = running && isStale(status);
+        if (running && !stale) {
+            response.sendError(CONFLICT, "A migration of " + path + " is already running");
+            return;
         }
-    }
-
-    private List<Hit> findPagesWithScoreProperty(final Resource root) {
-        SimpleSearch search = root.adaptTo(SimpleSearch.class);
-        search.addPredicate(buildScorePredicate());
-        search.addPredicate(buildTypePredicate());
-        search.setSearchIn(root.getPath());
-        search.setHitsPerPage(0L); // 0 means unlimited
 
         try {
-            SearchResult searchResult = search.getResult();
-            LOG.debug("Search took {} seconds", searchResult.getExecutionTime());
-            return searchResult.getHits();
+            if (!claim(request.getResourceResolver(), path, stale)) {
+                response.sendError(CONFLICT, "A migration of " + path + " is already queued");
+                return;
+            }
         } catch (RepositoryException e) {
-            LOG.error("Failed to search for pages with a score property under path {}", root.getPath(), e);
+            LOG.error("Failed to claim the migration of {}", path, e);
+            response.sendError(500, "Failed to queue the migration");
+            return;
         }
-        return Lists.newArrayList();
-    }
 
-    private Predicate buildScorePredicate() {
-        Predicate scorePredicate = new Predicate("score", "property");
-        scorePredicate.set("property", JcrConstants.JCR_CONTENT + "/" + "score");
-        scorePredicate.set("operation", "exists");
-        return scorePredicate;
-    }
+        Map<String, Object> jobProperties = new HashMap<>();
+        jobProperties.put(ScoreMigrationJobConsumer.PATH_PARAM, path);
+        jobProperties.put(
+            ScoreMigrationJobConsumer.DRY_RUN_PARAM,
+            Boolean.parseBoolean(request.getParameter("dryRun")));
 
-    private Predicate buildTypePredicate() {
-        Predicate typePredicate = new Predicate("type", "type");
-        typePredicate.set("type", "cq:Page");
-        return typePredicate;
+        Job job = jobManager.addJob(ScoreMigrationJobConsumer.MIGRATION_JOB_NAME, jobProperties);
+        if (job == null) {
+            release(request.getResourceResolver(), path);
+            response.sendError(500, "Failed to queue the migration");
+            return;
+        }
+
+        LOG.info("Queued migration of scores to tags under {} as job {}", path, job.getId());
+        response.setStatus(ACCEPTED);
+        response.setHeader("Location", request.getRequestURI() + "?path=" + URLEncoder.encode(path, "UTF-8"));
     }
 
-    private void moveScoresToTags(
-        final List<Hit> results,
-        final TagManager tagManager,
-        final ResourceResolver resourceResolver) throws RepositoryException, ReplicationException {
+    @Override
+    protected void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+        throws IOException {
 
-        List<Resource> pages = Lists.newArrayList();
-        for (Hit result : results) {
-            Resource page = result.getResource();
-            copyScoreTagToPrimaryExperienceFragment(page, resourceResolver, tagManager);
-            moveScoreToTag(page, tagManager);
-            pages.add(page);
+        String path = request.getParameter("path");
+        if (Strings.isNullOrEmpty(path)) {
+            response.sendError(400, "Path is required");
+            return;
         }
 
-        replicatePages(pages, resourceResolver);
-    }
+        if (!isAuthorized(request)) {
+            response.sendError(401, "You are not authorized to perform this command.");
+            return;
+        }
 
-    private void moveScoreToTag(final Resource page, final TagManager tagManager) throws RepositoryException {
-        Resource pageContent = getJcrContent(page);
+        MigrationStatus status = MigrationStatusUtil.getStatus(request.getResourceResolver(), path);
+        if (status == null) {
+            response.sendError(404, "No migration found for " + path);
+            return;
+        }
+        if (status.getState() == MigrationState.RUNNING && isStale(status)) {
+            status.setState(MigrationState.FAILED);
+            status.setEtaSeconds(null);
+            status.setLastError("The migration job is no longer running");
+        }
 
-        String score = pageContent.getValueMap().get("score", String.class);
-        pageContent.adaptTo(Node.class).getProperty("score").remove();
-        setTags(pageContent, tagManager, score);
+        response.setHeader("Content-Type", "application/json");
+        OBJECT_MAPPER.writeValue(response.getWriter(), status);
     }
 
-    private void copyScoreTagToPrimaryExperienceFragment(
-        final Resource page,
-        final ResourceResolver resourceResolver,
-        final TagManager tagManager) {
-
-        Resource pageContent = getJcrContent(page);
-
-        String score = pageContent.getValueMap().get("score", String.class);
-        String primaryExperienceFragmentPath = pageContent.getValueMap().get(PRIMARY_XF_NAME, String.class);
+    /**
+     * @return true if the status says running, but no job for the root is queued or active, or it hasn't saved
+     *         progress for {@link #STALE_AFTER}
+     */
+    private boolean isStale(final MigrationStatus status) {
+        if (System.currentTimeMillis() - status.getUpdated() > STALE_AFTER) {
+            return true;
+        }
 
-        if (!Strings.isNullOrEmpty(primaryExperienceFragmentPath)) {
-            Resource primaryExperienceFragment = resourceResolver.getResource(primaryExperienceFragmentPath);
-            Resource experienceFragment;
+        // A job interrupted by a restart is queued again, and resumes from the checkpoint
+        return !hasJob(status.getPath());
+    }
 
-            if (primaryExperienceFragment != null) {
-                Resource jcrContent = getJcrContent(primaryExperienceFragment);
-                if (ExperienceFragmentUtil.isExperienceFragmentVariation(jcrContent)) {
-                    experienceFragment = primaryExperienceFragment.getParent();
-                } else if (ExperienceFragmentUtil.isExperienceFragment(jcrContent)) {
-                    experienceFragment = primaryExperienceFragment;
-                } else {
-                    return;
-                }
+    @SuppressWarnings("unchecked")
+    private boolean hasJob(final String path) {
+        String topic = ScoreMigrationJobConsumer.MIGRATION_JOB_NAME;
+        Map<String, Object> template = Collections.singletonMap(ScoreMigrationJobConsumer.PATH_PARAM, path);
+        return !jobManager.findJobs(QueryType.ACTIVE, topic, 1, template).isEmpty()
+            || !jobManager.findJobs(QueryType.QUEUED, topic, 1, template).isEmpty();
+    }
 
-                Resource experienceFragmentContent = getJcrContent(experienceFragment);
-                setTags(experienceFragmentContent, tagManager, score);
+    /**
+     * Saves a new claim for the migration of the root. A claim that is still held, because it was made within
+     * {@link #CLAIM_TIMEOUT} or its job is queued or active, is kept. Two requests that both find no claim, or the
+     * same released one, each save a claim with their own token, so the save of the second one conflicts and fails.
+     *
+     * @param staleRun true if the job of the claim is stuck, so it doesn't hold the claim
+     * @return false if the migration is claimed by another request
+     */
+    private boolean claim(
+        final ResourceResolver resourceResolver,
+        final String path,
+        final boolean staleRun) throws RepositoryException {
+
+        String statusPath = MigrationStatusUtil.getStatusPath(path);
+        Resource statusResource = resourceResolver.getResource(statusPath);
+        if (statusResource == null) {
+            JcrUtil.createPath(statusPath, "sling:Folder", "nt:unstructured",
+                resourceResolver.adaptTo(Session.class), false);
+            statusResource = resourceResolver.getResource(statusPath);
+        }
 
-                for (Resource child : experienceFragment.getChildren()) {
-                    Resource childContent = getJcrContent(child);
-                    if (childContent != null) {
-                        setTags(childContent, tagManager, score);
-                    }
+        try {
+            Resource claim = statusResource.getChild(MigrationStatusUtil.NN_CLAIM);
+            if (claim != null) {
+                long claimed = claim.getValueMap().get(MigrationStatusUtil.PN_CLAIMED, 0L);
+                if (System.currentTimeMillis() - claimed < CLAIM_TIMEOUT || !staleRun && hasJob(path)) {
+                    return false;
                 }
+                resourceResolver.delete(claim);
             }
-        }
-    }
 
-    private Resource getJcrContent(final Resource resource) {
-        if (resource != null && resource.getResourceType().equals("cq:Page")) {
-            return resource.getChild(JcrConstants.JCR_CONTENT);
+            Map<String, Object> properties = new HashMap<>();
+            properties.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
+            properties.put(MigrationStatusUtil.PN_CLAIMED, System.currentTimeMillis());
+            properties.put(MigrationStatusUtil.PN_CLAIM_TOKEN, UUID.randomUUID().toString());
+            resourceResolver.create(statusResource, MigrationStatusUtil.NN_CLAIM, properties);
+            resourceResolver.commit();
+            return true;
+        } catch (PersistenceException e) {
+            LOG.debug("Another request claimed the migration of {}", path, e);
+            resourceResolver.revert();
+            return false;
         }
-        return null;
-    }
-
-    private void setTags(final Resource jcrContent, final TagManager tagManager, final String score) {
-        Set<Tag> childTags = buildTagsWithScore(jcrContent, tagManager, score);
-        tagManager.setTags(jcrContent, childTags.toArray(new Tag[0]));
     }
 
-    private Set<Tag> buildTagsWithScore(
-        final Resource contentResource,
-        final TagManager tagManager,
-        final String score) {
-
-        Tag[] existingTags = tagManager.getTags(contentResource);
-        Set<Tag> newTags = Sets.newHashSet();
-
-        for (Tag existingTag : existingTags) {
-            // If there is already a score tag on this resource, prefer it over the property.
-            if (existingTag.getTagID().startsWith(SCALE_OF_BELIEF_TAG_PREFIX)) {
-                return Sets.newHashSet(Arrays.asList(existingTags));
-            }
-            newTags.add(existingTag);
+    /**
+     * Removes the claim of a migration whose job couldn't be added, so it can be requested again right away.
+     */
+    private void release(final ResourceResolver resourceResolver, final String path) {
+        Resource claim = resourceResolver.getResource(MigrationStatusUtil.getClaimPath(path));
+        if (claim == null) {
+            return;
         }
-
-        Tag scoreTag = tagManager.resolve(SCALE_OF_BELIEF_TAG_PREFIX + score);
-        if (scoreTag != null) {
-            newTags.add(scoreTag);
+        try {
+            resourceResolver.delete(claim);
+            resourceResolver.commit();
+        } catch (PersistenceException e) {
+            LOG.warn("Failed to release the claim of the migration of {}", path, e);
+            resourceResolver.revert();
         }
-
-        return newTags;
     }
 
-    private void replicatePages(final List<Resource> pages, final ResourceResolver resourceResolver)
-        throws ReplicationException {
-
-        if (slingSettingsService.getRunModes().contains("author")) {
-            Session session = resourceResolver.adaptTo(Session.class);
-
-            List<String> pathsToReplicate = Lists.newArrayList();
-            for (Resource page : pages) {
-                // Only replicate pages that have already been replicated
-                if (replicator.getReplicationStatus(session, page.getPath()).isActivated()) {
-                    pathsToReplicate.add(page.getPath());
-                }
-            }
-
-            if (pathsToReplicate.isEmpty()) {
-                return;
-            }
-
-            replicator.replicate(
-                session,
-                ReplicationActionType.ACTIVATE,
-                pathsToReplicate.toArray(new String[]{}),
-                new ReplicationOptions());
+    private boolean isAuthorized(final SlingHttpServletRequest request) {
+        Principal principal = request.getUserPrincipal();
+        if (principal == null || !principal.getName().equals("admin")) {
+            LOG.error(
+                "Unauthorized attempt to move scores to tags by {}",
+                principal == null ? "Anonymous" : principal.getName());
+            return false;
         }
+        return true;
     }
 }
@@ -1,6 +1,7 @@
 package org.cru.contentscoring.core.servlets;
 
 import java.io.IOException;
+import java.util.Map;
 
 import javax.servlet.Servlet;
 
@@ -8,7 +9,15 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.HttpConstants;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+import org.cru.contentscoring.core.util.CacheValidatorUtil;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
 /**
  * This resource finder servlet is the primary one to find resource paths. It handles most URLs,
@@ -18,9 +27,36 @@ import org.osgi.service.component.annotations.Component;
         "sling.servlet.resourceTypes=cq/Page",
         "sling.servlet.methods=" + HttpConstants.METHOD_GET,
         "sling.servlet.selectors=find.path" })
+@Designate(ocd = ResourcePathFinderServlet.Config.class)
 public class ResourcePathFinderServlet extends SlingSafeMethodsServlet {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Max Age",
+                description = "Time (in seconds) a response may be cached without revalidating its ETag.")
+        long maxAge();
+    }
+
+    static final String MAX_AGE = "maxAge";
+    private static final long DEFAULT_MAX_AGE = 300L;
+
+    @Reference
+    private VanityPathIndex vanityPathIndex;
+
+    private long maxAge = DEFAULT_MAX_AGE;
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        maxAge = PropertiesUtil.toLong(config.get(MAX_AGE), DEFAULT_MAX_AGE);
+    }
+
     @Override
     protected void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException {
+        String eTag = CacheValidatorUtil.getMappingETag(vanityPathIndex);
+        if (CacheValidatorUtil.isNotModified(request, response, eTag, maxAge)) {
+            return;
+        }
         response.getWriter().write(request.getResource().getPath());
     }
 }
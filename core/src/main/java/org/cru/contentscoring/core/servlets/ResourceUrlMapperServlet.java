@@ -1,19 +1,26 @@
 package org.cru.contentscoring.core.servlets;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.net.URI;
-import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.Servlet;
 
-import com.google.common.collect.ImmutableSet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -21,32 +28,103 @@ import org.apache.sling.api.resource.external.URIProvider;
 import org.apache.sling.api.resource.external.URIProvider.Scope;
 import org.apache.sling.api.resource.external.URIProvider.Operation;
 import org.apache.sling.api.servlets.HttpConstants;
-import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.settings.SlingSettingsService;
 import org.cru.contentscoring.core.provider.AbsolutePathUriProvider;
 import org.cru.contentscoring.core.provider.VanityPathUriProvider;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+import org.cru.contentscoring.core.util.CacheValidatorUtil;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.osgi.service.component.annotations.Reference;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 
 /**
  * This resource url mapper servlet is used to determine the external URL(s) of a given resource
  * based on the publisher's sling mapping.
+ *
+ * A GET maps the path parameters to one set of URLs. A POST takes a JSON object of page to paths and answers
+ * with a JSON object of page to URLs; large requests are mapped in parallel chunks, and requests of more than
+ * {@code maxPages} pages are rejected with a 413 as soon as the page over the limit is read. GET responses carry
+ * an ETag of the mapping configuration, see {@link CacheValidatorUtil}.
  */
 @Component(service = Servlet.class, property = {
         "sling.servlet.methods=" + HttpConstants.METHOD_GET,
+        "sling.servlet.methods=" + HttpConstants.METHOD_POST,
         "sling.servlet.paths=/bin/cru/url/mapper" })
-public class ResourceUrlMapperServlet extends SlingSafeMethodsServlet {
+@Designate(ocd = ResourceUrlMapperServlet.Config.class)
+public class ResourceUrlMapperServlet extends SlingAllMethodsServlet {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Chunk Size",
+                description = "Number of pages of a POST mapped together. Larger requests are mapped in parallel.")
+        int chunkSize();
+
+        @AttributeDefinition(
+                name = "Parallelism",
+                description = "Number of chunks mapped in parallel. Defaults to the number of cores.")
+        int parallelism();
+
+        @AttributeDefinition(
+                name = "Max Pages",
+                description = "Maximum number of pages of a POST. Larger requests are rejected with a 413.")
+        int maxPages();
+
+        @AttributeDefinition(
+                name = "Max Age",
+                description = "Time (in seconds) a GET response may be cached without revalidating its ETag.")
+        long maxAge();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResourceUrlMapperServlet.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<List<String>> PATHS = new TypeReference<List<String>>() {};
+
+    static final String CHUNK_SIZE = "chunkSize";
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+
+    static final String PARALLELISM = "parallelism";
+
+    static final String MAX_PAGES = "maxPages";
+    private static final int DEFAULT_MAX_PAGES = 1000;
+
+    static final String MAX_AGE = "maxAge";
+    private static final long DEFAULT_MAX_AGE = 60L;
+
     URIProvider absolutePathUriProvider;
     VanityPathUriProvider vanityPathUriProvider;
 
     @Reference
-    private SlingSettingsService slingSettingsService;
+    VanityPathIndex vanityPathIndex;
+
+    @Reference
+    SlingSettingsService slingSettingsService;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxPages = DEFAULT_MAX_PAGES;
+    private long maxAge = DEFAULT_MAX_AGE;
+    private ExecutorService executor;
 
     @Activate
-    public void activate() {
+    public void activate(final Map<String, Object> config) {
         String environment = determineEnvironment();
 
         if (absolutePathUriProvider == null) {
@@ -55,6 +133,31 @@ public class ResourceUrlMapperServlet extends SlingSafeMethodsServlet {
         if (vanityPathUriProvider == null) {
             vanityPathUriProvider = new VanityPathUriProvider(environment);
         }
+
+        chunkSize = Math.max(1, PropertiesUtil.toInteger(config.get(CHUNK_SIZE), DEFAULT_CHUNK_SIZE));
+        int parallelism = Math.max(
+            1,
+            PropertiesUtil.toInteger(config.get(PARALLELISM), Runtime.getRuntime().availableProcessors()));
+        maxPages = Math.max(1, PropertiesUtil.toInteger(config.get(MAX_PAGES), DEFAULT_MAX_PAGES));
+        maxAge = PropertiesUtil.toLong(config.get(MAX_AGE), DEFAULT_MAX_AGE);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "content-scoring-url-mapper-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOG.debug(
+            "configure: chunkSize={}, parallelism={}, maxPages={}, maxAge={}",
+            chunkSize,
+            parallelism,
+            maxPages,
+            maxAge);
+    }
+
+    @Deactivate
+    void deactivate() {
+        executor.shutdownNow();
     }
 
     private String determineEnvironment() {
@@ -77,43 +180,187 @@ public class ResourceUrlMapperServlet extends SlingSafeMethodsServlet {
             return;
         }
 
-        Set<String> urls = determineUrls(pathParameters, request.getResourceResolver());
+        String eTag = CacheValidatorUtil.getMappingETag(vanityPathIndex);
+        if (CacheValidatorUtil.isNotModified(request, response, eTag, maxAge)) {
+            return;
+        }
+
+        ResourceResolver resourceResolver = request.getResourceResolver();
 
+        // Every URL is written as soon as it is resolved; the set keeps the array free of duplicates
         response.setHeader("Content-Type", "application/json");
-        ObjectMapper objectMapper = new ObjectMapper();
-        String json = objectMapper.writeValueAsString(urls);
-        response.getWriter().write(json);
+        try (JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(response.getWriter())) {
+            Set<String> urls = new HashSet<>();
+            generator.writeStartArray();
+            for (RequestParameter pathParameter : pathParameters) {
+                String url = determineUrl(pathParameter.getString(), resourceResolver);
+                if (url != null && urls.add(url)) {
+                    generator.writeString(url);
+                }
+            }
+            generator.writeEndArray();
+        }
     }
 
-    private Set<String> determineUrls(
-        final RequestParameter[] pathParameters,
+    @Override
+    protected void doPost(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+        throws IOException {
+
+        Map<String, List<String>> pathsByPage = readPathsByPage(request.getReader());
+        if (pathsByPage == null) {
+            response.setStatus(400);
+            response.getWriter().write("Request body must be a JSON object of page to paths.");
+            return;
+        }
+        if (pathsByPage.size() > maxPages) {
+            response.setStatus(413);
+            response.getWriter().write("Request body must not contain more than " + maxPages + " pages.");
+            return;
+        }
+
+        List<List<Map.Entry<String, List<String>>>> chunks =
+            Lists.partition(Lists.newArrayList(pathsByPage.entrySet()), chunkSize);
+
+        // Chunks are mapped in parallel, but written in the order of the request as soon as each is done
+        List<Future<Map<String, Set<String>>>> results = Lists.newArrayList();
+        List<ResourceResolver> clones = Lists.newArrayList();
+        ResourceResolver resourceResolver = request.getResourceResolver();
+        if (chunks.size() <= 1) {
+            for (List<Map.Entry<String, List<String>>> chunk : chunks) {
+                results.add(CompletableFuture.completedFuture(determineUrls(chunk, resourceResolver)));
+            }
+        } else {
+            try {
+                clones.addAll(cloneResolvers(resourceResolver, chunks.size()));
+            } catch (LoginException e) {
+                LOG.error("Failed to clone the resource resolver of a url mapper request", e);
+                response.setStatus(500);
+                response.getWriter().write("Failed to map the urls.");
+                return;
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                List<Map.Entry<String, List<String>>> chunk = chunks.get(i);
+                ResourceResolver clone = clones.get(i);
+                results.add(executor.submit(() -> determineUrls(chunk, clone)));
+            }
+        }
+
+        response.setHeader("Content-Type", "application/json");
+        try (JsonGenerator generator = OBJECT_MAPPER.getFactory()
+            .createGenerator(response.getWriter())
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT)) {
+            generator.writeStartObject();
+            for (Future<Map<String, Set<String>>> result : results) {
+                for (Map.Entry<String, Set<String>> urls : result.get().entrySet()) {
+                    generator.writeFieldName(urls.getKey());
+                    generator.writeStartArray();
+                    for (String url : urls.getValue()) {
+                        generator.writeString(url);
+                    }
+                    generator.writeEndArray();
+                }
+                generator.flush();
+            }
+            generator.writeEndObject();
+        } catch (ExecutionException e) {
+            // The response is already committed, so the truncated JSON tells the caller it failed
+            throw new IOException("Failed to map the urls of a chunk of pages", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while mapping urls", e);
+        } finally {
+            results.forEach(result -> result.cancel(true));
+            clones.forEach(ResourceResolver::close);
+        }
+    }
+
+    /**
+     * Reads the JSON object of page to paths, but stops after the first page over {@code maxPages}; the rest of
+     * an oversized request is not parsed.
+     *
+     * @return the paths by page, or null if the body is not a JSON object of page to paths
+     */
+    private Map<String, List<String>> readPathsByPage(final Reader reader) throws IOException {
+        Map<String, List<String>> pathsByPage = new LinkedHashMap<>();
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(reader)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (pathsByPage.size() <= maxPages && parser.nextToken() == JsonToken.FIELD_NAME) {
+                String page = parser.getCurrentName();
+                parser.nextToken();
+                pathsByPage.put(page, parser.readValueAs(PATHS));
+            }
+        } catch (JsonProcessingException e) {
+            LOG.debug("Invalid url mapper request", e);
+            return null;
+        }
+        return pathsByPage;
+    }
+
+    /**
+     * Resource resolvers can't be shared between threads, so every chunk works with a clone of the request's
+     * resolver. The clones are made on the request thread, before any chunk is submitted. Each clone is its own
+     * session, so chunks may see the repository as of different times; a page changed while a request is mapped
+     * can be mapped as before the change in one chunk and as after it in another.
+     *
+     * @return one clone per chunk; the clones made so far are closed if one can't be made
+     */
+    private List<ResourceResolver> cloneResolvers(final ResourceResolver requestResolver, final int count)
+        throws LoginException {
+
+        List<ResourceResolver> clones = Lists.newArrayList();
+        try {
+            for (int i = 0; i < count; i++) {
+                clones.add(requestResolver.clone(null));
+            }
+        } catch (LoginException e) {
+            clones.forEach(ResourceResolver::close);
+            throw e;
+        }
+        return clones;
+    }
+
+    private Map<String, Set<String>> determineUrls(
+        final List<Map.Entry<String, List<String>>> chunk,
         final ResourceResolver resourceResolver) {
 
-        List<String> paths = Arrays.stream(pathParameters)
-            .map(RequestParameter::getString)
-            .collect(Collectors.toList());
+        Map<String, Set<String>> urlsByPage = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : chunk) {
+            List<String> paths = entry.getValue() == null ? Lists.newArrayList() : entry.getValue();
+            urlsByPage.put(entry.getKey(), determineUrls(paths, resourceResolver));
+        }
+        return urlsByPage;
+    }
+
+    private Set<String> determineUrls(
+        final List<String> paths,
+        final ResourceResolver resourceResolver) {
 
         Set<String> urls = new HashSet<>();
         for (String path : paths) {
-            Resource resource = resourceResolver.getResource(path);
-            if (resource != null) {
-                URI absoluteUri = absolutePathUriProvider.toURI(resource, Scope.EXTERNAL, Operation.READ);
-                if (absoluteUri != null) {
-                    urls.add(absoluteUri.toString());
-                }
-            } else {
-                resource = resourceResolver.resolve(path);
-                if (resource instanceof NonExistingResource) {
-                    continue;
-                }
-                // This means that a resource exists that can be mapped by the given vanity URL
-                URI vanityUri = vanityPathUriProvider.toURI(path, resourceResolver);
-                if (vanityUri != null) {
-                    urls.add(vanityUri.toString());
-                }
+            String url = determineUrl(path, resourceResolver);
+            if (url != null) {
+                urls.add(url);
             }
         }
 
         return urls;
     }
+
+    private String determineUrl(final String path, final ResourceResolver resourceResolver) {
+        Resource resource = resourceResolver.getResource(path);
+        if (resource != null) {
+            URI absoluteUri = absolutePathUriProvider.toURI(resource, Scope.EXTERNAL, Operation.READ);
+            return absoluteUri == null ? null : absoluteUri.toString();
+        }
+
+        resource = resourceResolver.resolve(path);
+        if (resource instanceof NonExistingResource) {
+            return null;
+        }
+        // This means that a resource exists that can be mapped by the given vanity URL
+        URI vanityUri = vanityPathUriProvider.toURI(path, resourceResolver);
+        return vanityUri == null ? null : vanityUri.toString();
+    }
 }
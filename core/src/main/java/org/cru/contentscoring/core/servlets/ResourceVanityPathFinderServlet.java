@@ -2,44 +2,67 @@ package org.cru.contentscoring.core.servlets;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.servlet.Servlet;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
-import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.HttpConstants;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.cru.contentscoring.core.service.ResourceLocator;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+import org.cru.contentscoring.core.util.CacheValidatorUtil;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.day.cq.search.PredicateGroup;
-import com.day.cq.search.Query;
-import com.day.cq.search.QueryBuilder;
-import com.day.cq.search.result.Hit;
-import com.day.cq.search.result.SearchResult;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Maps;
-
 /**
  * This servlet is good for finding resource paths for home pages and vanity URLs that don't end with an extension.
+ *
+ * A found path may be cached for {@code maxAge} seconds and is then revalidated with its ETag, see
+ * {@link CacheValidatorUtil}. A path that isn't found is an empty response that has to be revalidated every time, so
+ * a page that is added is found right away.
  */
 @Component(service = Servlet.class, property = {
         "sling.servlet.methods=" + HttpConstants.METHOD_GET,
         "sling.servlet.paths=/bin/cru/path/finder" })
+@Designate(ocd = ResourceVanityPathFinderServlet.Config.class)
 public class ResourceVanityPathFinderServlet extends SlingSafeMethodsServlet {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Max Age",
+                description = "Time (in seconds) a response may be cached without revalidating its ETag.")
+        long maxAge();
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(ResourceVanityPathFinderServlet.class);
 
+    static final String MAX_AGE = "maxAge";
+    private static final long DEFAULT_MAX_AGE = 300L;
+
+    @Reference
+    private ResourceLocator resourceLocator;
+
     @Reference
-    private QueryBuilder queryBuilder;
+    private VanityPathIndex vanityPathIndex;
+
+    private long maxAge = DEFAULT_MAX_AGE;
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        maxAge = PropertiesUtil.toLong(config.get(MAX_AGE), DEFAULT_MAX_AGE);
+    }
 
     @Override
     protected void doGet(
@@ -48,66 +71,25 @@ public class ResourceVanityPathFinderServlet extends SlingSafeMethodsServlet {
 
         String incomingPath = request.getParameter("path");
         LOG.debug("Incoming path: {}", incomingPath);
-        ResourceResolver resourceResolver = request.getResourceResolver();
-        try {
-            ResolverRequest resolverRequest = new ResolverRequest(request, incomingPath);
-            Resource resource = resourceResolver.resolve(resolverRequest, resolverRequest.getPathInfo());
 
-            // This will be the case if resourceResolver found a vanity path (e.g. ministry designation pages)
-            if (resource instanceof NonExistingResource) {
-                LOG.debug("Resource is non-existing, looking at vanity paths.");
-                Resource parent = resourceResolver.resolve("/content");
-
-                try {
-                    resource = searchForResourceWithVanityPath(resource.getPath(), parent, resourceResolver);
-
-                    if (resource == null) {
-                        return;
-                    }
-                } catch (RepositoryException e) {
-                    response.sendError(500);
-                    return;
-                }
+        String eTag = CacheValidatorUtil.getMappingETag(vanityPathIndex);
+        if (CacheValidatorUtil.isNotModified(request, response, eTag, maxAge)) {
+            return;
+        }
+        try {
+            Resource resource = resourceLocator.locate(request, request.getResourceResolver(), incomingPath);
+            if (resource == null) {
+                response.setHeader("Cache-Control", "no-cache");
+                return;
             }
             LOG.debug("Returning {}", resource.getPath());
             response.getWriter().write(resource.getPath());
         } catch (URISyntaxException e) {
+            response.setHeader("Cache-Control", "no-store");
             response.sendError(400, "Invalid URI");
+        } catch (RepositoryException e) {
+            response.setHeader("Cache-Control", "no-store");
+            response.sendError(500);
         }
     }
-
-    private Resource searchForResourceWithVanityPath(
-        final String vanityPath,
-        final Resource parent,
-        final ResourceResolver resourceResolver) throws RepositoryException {
-
-
-        Map<String, String> searchPredicates = Maps.newHashMap();
-        searchPredicates.put("property", "sling:vanityPath");
-        searchPredicates.put("property.value", vanityPath);
-
-        searchPredicates.put("type", "cq:PageContent");
-        searchPredicates.put("path", parent.getPath());
-
-        Session session = resourceResolver.adaptTo(Session.class);
-        Query query = queryBuilder.createQuery(PredicateGroup.create(searchPredicates), session);
-        SearchResult searchResult = query.getResult();
-        List<Hit> hits = searchResult.getHits();
-
-        if (hits.isEmpty()) {
-            LOG.debug("No resource found for {}", vanityPath);
-            return null;
-        }
-
-        for (Hit hit : hits) {
-            LOG.debug("Found path: {} for sling:vanityPath", hit.getPath());
-        }
-
-        if (hits.size() > 1) {
-            LOG.warn("Found more than one page with vanity path {}, skipping score sync.", vanityPath);
-            return null;
-        }
-
-        return Iterables.getOnlyElement(hits).getResource().getParent();
-    }
 }
@@ -1,47 +1,53 @@
 package org.cru.contentscoring.core.servlets;
 
 import java.io.IOException;
-import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Servlet;
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.core.Response;
+import javax.servlet.http.HttpServletResponse;
 
-import org.apache.http.client.utils.URIBuilder;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
-import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.HttpConstants;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
-import org.cru.contentscoring.core.service.SyncScoreService;
-import org.cru.contentscoring.core.util.SystemUtils;
+import org.cru.contentscoring.core.service.ResourcePathFinder;
+import org.cru.contentscoring.core.service.SyncScoreCoalescer;
+import org.cru.contentscoring.core.service.SyncScoreExecutor;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Strings;
 
+/**
+ * Syncs a score from the scale-of-belief-lambda. When the container supports it the request is processed
+ * asynchronously: the request thread is released while the resource path is looked up, and the response
+ * is completed from the lookup's callback. A lookup that outlasts the async timeout is answered with a 503,
+ * and its result is dropped, so the caller resends the score.
+ */
 @Component(service = Servlet.class, property = {
         "sling.servlet.methods=" + HttpConstants.METHOD_POST,
         "sling.servlet.paths=/bin/cru/content-scoring/sync" })
 public class SyncScoreServlet extends SlingAllMethodsServlet {
     private static final Logger LOG = LoggerFactory.getLogger(SyncScoreServlet.class);
 
-    private static final String SUBSERVICE = "contentScoreSync";
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVICE_UNAVAILABLE = 503;
+    private static final long ASYNC_TIMEOUT = 30L * 1000L;
 
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    @Reference
+    private SyncScoreCoalescer syncScoreCoalescer;
 
     @Reference
-    private SyncScoreService syncScoreService;
+    private SyncScoreExecutor syncScoreExecutor;
 
     @Reference
-    private SystemUtils systemUtils;
+    private ResourcePathFinder resourcePathFinder;
 
     @Override
     protected void doPost(
@@ -62,66 +68,86 @@ public class SyncScoreServlet extends SlingAllMethodsServlet {
             return;
         }
 
+        if (request.isAsyncSupported()) {
+            syncAsync(request, incomingUri, score);
+            return;
+        }
+
         String resourcePath;
-        Client client = ClientBuilder.newBuilder().build();
         try {
-            resourcePath = determineResourcePath(client, incomingUri);
+            resourcePath = resourcePathFinder.findResourcePath(request, incomingUri);
             if (resourcePath == null) {
                 return;
             }
         } catch (URISyntaxException e) {
           LOG.error(e.getMessage());
           return;
-        } finally {
-            client.close();
         }
 
+        offerScore(resourcePath, score, response);
+    }
+
+    private void syncAsync(
+        final SlingHttpServletRequest request,
+        final String incomingUri,
+        final int score) {
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(ASYNC_TIMEOUT);
+
+        // Whichever comes first, the lookup or the timeout, writes the response
+        AtomicBoolean responded = new AtomicBoolean();
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(final AsyncEvent event) {
+                if (responded.compareAndSet(false, true)) {
+                    LOG.warn("Timed out looking up the resource path of {}", incomingUri);
+                    ((HttpServletResponse) asyncContext.getResponse()).setStatus(SERVICE_UNAVAILABLE);
+                    asyncContext.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(final AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(final AsyncEvent event) {
+            }
 
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
+            }
+        });
 
-        executor.submit(() -> {
-            try (ResourceResolver resourceResolver = systemUtils.getResourceResolver(SUBSERVICE)) {
-                syncScoreService.syncScore(
-                    resourceResolver,
-                    score,
-                    resourcePath);
-            } catch (Exception e) {
-                LOG.error("Failed to sync score from scale-of-belief-lambda", e);
+        resourcePathFinder.findResourcePathAsync(request, incomingUri).whenComplete((resourcePath, error) -> {
+            if (!responded.compareAndSet(false, true)) {
+                LOG.warn("Score sync for {} completed after the request timed out, dropping it", incomingUri);
+                return;
+            }
+            try {
+                if (error != null) {
+                    LOG.error("Failed to find resource path for {}", incomingUri, error);
+                } else if (resourcePath != null) {
+                    offerScore(resourcePath, score, (HttpServletResponse) asyncContext.getResponse());
+                }
+            } catch (IOException e) {
+                LOG.error("Failed to respond to score sync", e);
+            } finally {
+                asyncContext.complete();
             }
         });
     }
 
-    @VisibleForTesting
-    String determineResourcePath(final Client client, final String incomingUri) throws URISyntaxException {
-        Response pathFinderResponse;
-
-        // We're only scoring html pages
-        if (incomingUri.endsWith(".html")) {
-            pathFinderResponse = client.target(incomingUri.replace(".html", "") + ".find.path.txt")
-                .request()
-                .get();
-        } else {
-            URI uri = new URI(incomingUri);
-            // This should be the load-balanced URL (e.g. https://www.cru.org), but could be a publisher URL.
-            String serverUri = new URIBuilder()
-                .setScheme(uri.getScheme())
-                .setPort(uri.getPort())
-                .setHost(uri.getHost())
-                .build()
-                .toString();
-            LOG.debug("Calling {} with path {}", serverUri + "/bin/cru/path/finder.txt", incomingUri);
-            pathFinderResponse = client.target(serverUri + "/bin/cru/path/finder.txt")
-                .queryParam("path", incomingUri)
-                .request()
-                .get();
-        }
-
-        String resourcePath = pathFinderResponse.readEntity(String.class);
+    private void offerScore(
+        final String resourcePath,
+        final int score,
+        final HttpServletResponse response) throws IOException {
 
-        if (Strings.isNullOrEmpty(resourcePath) || !resourcePath.startsWith("/")) {
-            LOG.warn("Resource path not found");
-            return null;
+        if (!syncScoreCoalescer.offer(resourcePath, score)) {
+            response.setHeader("Retry-After", String.valueOf(syncScoreExecutor.getRetryAfterSeconds()));
+            response.sendError(TOO_MANY_REQUESTS, "Too many score syncs in progress");
         }
-        return resourcePath;
     }
 
     @VisibleForTesting
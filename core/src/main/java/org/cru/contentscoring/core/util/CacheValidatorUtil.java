@@ -0,0 +1,85 @@
+package org.cru.contentscoring.core.util;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.cru.contentscoring.core.provider.UriProviderUtil;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+
+/**
+ * Validators for responses that only depend on how URLs map to pages: the sling maps, the pages under /content
+ * and their vanity paths. The ETag is made of the generations of the sling maps and the {@link VanityPathIndex},
+ * which start over on restart, so it also carries the time this class was loaded.
+ *
+ * The generations only count the changes seen by this instance, so the ETag is only valid on the instance that
+ * issued it. In a farm of publishers, a client that revalidates with another publisher gets a full response rather
+ * than a 304, so revalidation only pays off with sticky sessions. It never serves an outdated response though: the
+ * load time makes sure a tag of one instance never matches on another.
+ *
+ * Until the {@link VanityPathIndex} is ready, its generation doesn't cover the pages it hasn't read yet, so no ETag
+ * is issued and every response has to be fetched again.
+ */
+public class CacheValidatorUtil {
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+    private static final int NOT_MODIFIED = 304;
+
+    private CacheValidatorUtil() {}
+
+    /**
+     * @return the ETag of the current mapping, or null while the vanity path index is not ready
+     */
+    public static String getMappingETag(final VanityPathIndex vanityPathIndex) {
+        if (!vanityPathIndex.isReady()) {
+            return null;
+        }
+        return "\"" + EPOCH + "-" + UriProviderUtil.getGeneration() + "-" + vanityPathIndex.getGeneration() + "\"";
+    }
+
+    /**
+     * Sets the ETag and Cache-Control headers of the response. The ETag has to be taken before the response is
+     * computed, so a change in the meantime leaves the client with an outdated tag rather than outdated content.
+     *
+     * @param eTag the ETag of the response, or null if it can't be validated, which then is never cached
+     * @param maxAge seconds the response may be used without asking again; 0 to always revalidate
+     * @return true if the client already has the current response, which has then been answered with a 304
+     */
+    public static boolean isNotModified(
+        final HttpServletRequest request,
+        final HttpServletResponse response,
+        final String eTag,
+        final long maxAge) {
+
+        if (eTag == null) {
+            response.setHeader("Cache-Control", "no-store");
+            return false;
+        }
+
+        response.setHeader("ETag", eTag);
+        response.setHeader("Cache-Control", maxAge > 0 ? "max-age=" + maxAge : "no-cache");
+
+        if (matches(request.getHeader("If-None-Match"), eTag)) {
+            response.setStatus(NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compares weakly, as If-None-Match requires, since proxies that compress the response may weaken the tag.
+     */
+    static boolean matches(final String ifNoneMatch, final String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,79 @@
+package org.cru.contentscoring.core.util;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.cru.contentscoring.core.models.MigrationState;
+import org.cru.contentscoring.core.models.MigrationStatus;
+
+/**
+ * Score-to-tag migrations keep their checkpoint and counters under {@link #MIGRATION_ROOT}, at the path of the
+ * migrated root, e.g. /var/cru/content-scoring/migration/content/site/us/en.
+ */
+public class MigrationStatusUtil {
+    public static final String MIGRATION_ROOT = "/var/cru/content-scoring/migration";
+
+    public static final String PN_DRY_RUN = "dryRun";
+    public static final String PN_STATE = "state";
+    public static final String PN_STARTED = "started";
+    public static final String PN_UPDATED = "updated";
+    public static final String PN_TOTAL = "total";
+    public static final String PN_PROCESSED = "processed";
+    public static final String PN_PROCESSED_BEFORE_RESUME = "processedBeforeResume";
+    public static final String PN_ERRORS = "errors";
+    public static final String PN_LAST_ERROR = "lastError";
+    public static final String PN_MIGRATED_SUBTREES = "migratedSubtrees";
+    public static final String PN_UNREPLICATED_PATHS = "unreplicatedPaths";
+
+    public static final String NN_CLAIM = "claim";
+    public static final String PN_CLAIMED = "claimed";
+    public static final String PN_CLAIM_TOKEN = "token";
+
+    private MigrationStatusUtil() {}
+
+    public static String getStatusPath(final String rootPath) {
+        return MIGRATION_ROOT + rootPath;
+    }
+
+    /**
+     * @return the path of the node a request creates to queue the migration of the root, so that concurrent
+     *         requests don't both queue one
+     */
+    public static String getClaimPath(final String rootPath) {
+        return getStatusPath(rootPath) + "/" + NN_CLAIM;
+    }
+
+    /**
+     * @return the status of the last migration of the root, or null if it was never migrated
+     */
+    public static MigrationStatus getStatus(final ResourceResolver resourceResolver, final String rootPath) {
+        Resource statusResource = resourceResolver.getResource(getStatusPath(rootPath));
+        if (statusResource == null) {
+            return null;
+        }
+
+        ValueMap properties = statusResource.getValueMap();
+        MigrationStatus status = new MigrationStatus();
+        status.setPath(rootPath);
+        status.setDryRun(properties.get(PN_DRY_RUN, false));
+        status.setState(MigrationState.valueOf(properties.get(PN_STATE, MigrationState.FAILED.name())));
+        status.setStarted(properties.get(PN_STARTED, 0L));
+        status.setUpdated(properties.get(PN_UPDATED, 0L));
+        status.setTotal(properties.get(PN_TOTAL, 0L));
+        status.setProcessed(properties.get(PN_PROCESSED, 0L));
+        status.setErrors(properties.get(PN_ERRORS, 0L));
+        status.setLastError(properties.get(PN_LAST_ERROR, String.class));
+
+        // A resumed run restarts the clock, so the rate only covers the pages of this run
+        long processedInRun = status.getProcessed() - properties.get(PN_PROCESSED_BEFORE_RESUME, 0L);
+        long elapsed = status.getUpdated() - status.getStarted();
+        if (processedInRun > 0 && elapsed > 0) {
+            status.setPagesPerSecond(processedInRun * 1000.0 / elapsed);
+            if (status.getState() == MigrationState.RUNNING) {
+                long remaining = Math.max(0, status.getTotal() - status.getProcessed());
+                status.setEtaSeconds(Math.round(remaining / status.getPagesPerSecond()));
+            }
+        }
+        return status;
+    }
+}
@@ -0,0 +1,59 @@
+package org.cru.contentscoring.core.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable trie of repository path segments with include and exclude roots.
+ * A path is accepted when the deepest root it lies under is an include root.
+ */
+public final class PathPrefixFilter {
+    private final Node root = new Node();
+
+    public PathPrefixFilter(final String[] includeRoots, final String[] excludeRoots) {
+        for (String includeRoot : includeRoots) {
+            add(includeRoot, Boolean.TRUE);
+        }
+        for (String excludeRoot : excludeRoots) {
+            add(excludeRoot, Boolean.FALSE);
+        }
+    }
+
+    public boolean accepts(final String path) {
+        if (path == null || !path.startsWith("/")) {
+            return false;
+        }
+
+        Node node = root;
+        boolean accepted = Boolean.TRUE.equals(root.include);
+        for (String segment : path.substring(1).split("/")) {
+            node = node.children.get(segment);
+            if (node == null) {
+                break;
+            }
+            if (node.include != null) {
+                accepted = node.include;
+            }
+        }
+        return accepted;
+    }
+
+    private void add(final String rootPath, final Boolean include) {
+        if (rootPath == null || !rootPath.startsWith("/")) {
+            return;
+        }
+
+        Node node = root;
+        for (String segment : rootPath.substring(1).split("/")) {
+            if (!segment.isEmpty()) {
+                node = node.children.computeIfAbsent(segment, k -> new Node());
+            }
+        }
+        node.include = include;
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private Boolean include;
+    }
+}
@@ -1,9 +1,16 @@
 package org.cru.contentscoring.core.util;
 
+import javax.jcr.RepositoryException;
+
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 
 public interface SystemUtils {
+    /**
+     * The subservice the content scoring bundle syncs, indexes and migrates scores with.
+     */
+    String SUBSERVICE = "contentScoreSync";
+
     /**
      * Retrieves the correct resource resolver for the subservice with according permissions.
      *
@@ -12,4 +19,23 @@ public interface SystemUtils {
      * @throws LoginException if system user can't be retrieved correctly
      */
     ResourceResolver getResourceResolver(final String subservice) throws LoginException;
+
+    /**
+     * Runs the callback with a long-lived resource resolver borrowed from a pool shared by all threads, and
+     * returns it to the pool afterwards. The resolver is only used by one caller at a time. It is refreshed
+     * before it is handed out, and replaced once it is too old or after the callback failed.
+     * Changes left unsaved by the callback are reverted. The caller must not close the resolver.
+     *
+     * @param subservice the subservice the system user is registered with in User Mapper OSGI Config,
+     *                   or null for the default service user of the bundle
+     * @return the result of the callback
+     * @throws LoginException if system user can't be retrieved correctly
+     */
+    <T> T callWithPooledResourceResolver(
+        final String subservice,
+        final ResourceResolverCallback<T> callback) throws LoginException, RepositoryException;
+
+    interface ResourceResolverCallback<T> {
+        T call(ResourceResolver resourceResolver) throws RepositoryException;
+    }
 }
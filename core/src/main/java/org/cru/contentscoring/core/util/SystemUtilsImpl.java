@@ -1,25 +1,224 @@
 package org.cru.contentscoring.core.util;
 
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.RepositoryException;
 
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
 
 @Component(service = SystemUtils.class, immediate = true, property = {
         Constants.SERVICE_DESCRIPTION + "=SystemUtils for the Cru content scoring application" })
+@Designate(ocd = SystemUtilsImpl.Config.class)
 public class SystemUtilsImpl implements SystemUtils {
+
+    @ObjectClassDefinition
+    @interface Config {
+        @AttributeDefinition(
+                name = "Max Pooled Resolvers",
+                description = "Max number of long-lived service resolvers kept across all subservices. "
+                    + "Callers beyond this limit get a resolver that is closed after use.")
+        int maxPooledResolvers();
+
+        @AttributeDefinition(
+                name = "Max Resolver Age",
+                description = "Time (in milliseconds) after which a pooled service resolver is closed and replaced.")
+        long maxResolverAge();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(SystemUtilsImpl.class);
+
+    static final String MAX_POOLED_RESOLVERS = "maxPooledResolvers";
+    private static final int DEFAULT_MAX_POOLED_RESOLVERS = 20;
+
+    static final String MAX_RESOLVER_AGE = "maxResolverAge";
+    private static final long DEFAULT_MAX_RESOLVER_AGE = 60L * 1000L;
+
+    private static final String DEFAULT_SUBSERVICE_KEY = "";
+
     @Reference
     private ResourceResolverFactory resourceResolverFactory;
 
+    private int maxPooledResolvers = DEFAULT_MAX_POOLED_RESOLVERS;
+    private long maxResolverAge = DEFAULT_MAX_RESOLVER_AGE;
+
+    // Resolvers that are not borrowed, by subservice. Taking one out of its deque is what lends it to a caller,
+    // so a resolver is never in use by two callers and is only ever closed by whoever holds it.
+    private final Map<String, Deque<PooledResolver>> idleResolvers = new ConcurrentHashMap<>();
+    private final AtomicInteger pooledResolverCount = new AtomicInteger();
+    private volatile boolean deactivated;
+
+    @Activate
+    public void activate(final Map<String, Object> config) {
+        maxPooledResolvers = PropertiesUtil.toInteger(config.get(MAX_POOLED_RESOLVERS), DEFAULT_MAX_POOLED_RESOLVERS);
+        maxResolverAge = PropertiesUtil.toLong(config.get(MAX_RESOLVER_AGE), DEFAULT_MAX_RESOLVER_AGE);
+        LOG.debug("configure: maxPooledResolvers={}, maxResolverAge={}", maxPooledResolvers, maxResolverAge);
+        deactivated = false;
+    }
+
+    /**
+     * Closes the idle resolvers. Borrowed resolvers are left to their callers, which close them when they are
+     * returned instead of putting them back.
+     */
+    @Deactivate
+    void deactivate() {
+        deactivated = true;
+        closeIdleResolvers();
+    }
+
     @Override
     public ResourceResolver getResourceResolver(final String subservice) throws LoginException {
         Map<String, Object> authenticationInfo = new HashMap<>();
         authenticationInfo.put(ResourceResolverFactory.SUBSERVICE, subservice);
         return resourceResolverFactory.getServiceResourceResolver(authenticationInfo);
     }
+
+    @Override
+    public <T> T callWithPooledResourceResolver(
+        final String subservice,
+        final ResourceResolverCallback<T> callback) throws LoginException, RepositoryException {
+
+        String key = subservice == null ? DEFAULT_SUBSERVICE_KEY : subservice;
+        PooledResolver pooled = borrow(key);
+
+        ResourceResolver resourceResolver;
+        if (pooled != null) {
+            resourceResolver = pooled.resourceResolver;
+            resourceResolver.refresh();
+        } else {
+            resourceResolver = login(subservice);
+            if (reserveSlot()) {
+                pooled = new PooledResolver(resourceResolver);
+            }
+        }
+
+        boolean failed = true;
+        try {
+            T result = callback.call(resourceResolver);
+            if (resourceResolver.hasChanges()) {
+                resourceResolver.revert();
+            }
+            failed = false;
+            return result;
+        } finally {
+            if (pooled == null) {
+                resourceResolver.close();
+            } else {
+                // After a failure the session may be in an inconsistent state, don't hand it out again
+                giveBack(key, pooled, failed);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getPooledResolverCount() {
+        return pooledResolverCount.get();
+    }
+
+    private ResourceResolver login(final String subservice) throws LoginException {
+        if (subservice == null) {
+            return resourceResolverFactory.getServiceResourceResolver(null);
+        }
+        return getResourceResolver(subservice);
+    }
+
+    /**
+     * @return an idle resolver for the subservice, or null if there is none that can still be used
+     */
+    private PooledResolver borrow(final String key) {
+        if (deactivated) {
+            return null;
+        }
+        Deque<PooledResolver> idle = idleResolvers.get(key);
+        if (idle == null) {
+            return null;
+        }
+        PooledResolver pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (pooled.isUsable()) {
+                return pooled;
+            }
+            retire(pooled);
+        }
+        return null;
+    }
+
+    private void giveBack(final String key, final PooledResolver pooled, final boolean failed) {
+        if (failed || deactivated || !pooled.isUsable()) {
+            retire(pooled);
+            return;
+        }
+        // Most recently used first, so the resolvers beyond the steady load age out
+        idleResolvers.computeIfAbsent(key, k -> new ConcurrentLinkedDeque<>()).offerFirst(pooled);
+        if (deactivated) {
+            // Deactivated while this one was being put back
+            closeIdleResolvers();
+        }
+    }
+
+    private void closeIdleResolvers() {
+        for (Deque<PooledResolver> idle : idleResolvers.values()) {
+            PooledResolver pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                retire(pooled);
+            }
+        }
+    }
+
+    private void retire(final PooledResolver pooled) {
+        pooledResolverCount.decrementAndGet();
+        pooled.close();
+    }
+
+    /**
+     * @return true if there is room in the pool for another resolver
+     */
+    private boolean reserveSlot() {
+        if (deactivated) {
+            return false;
+        }
+        if (pooledResolverCount.incrementAndGet() > maxPooledResolvers) {
+            pooledResolverCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private class PooledResolver {
+        private final ResourceResolver resourceResolver;
+        private final long openedAt = System.currentTimeMillis();
+
+        PooledResolver(final ResourceResolver resourceResolver) {
+            this.resourceResolver = resourceResolver;
+        }
+
+        boolean isUsable() {
+            return resourceResolver.isLive() && System.currentTimeMillis() - openedAt <= maxResolverAge;
+        }
+
+        void close() {
+            if (resourceResolver.isLive()) {
+                resourceResolver.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,338 @@
+package org.cru.contentscoring.core.listeners;
+
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.PageManager;
+import com.google.common.collect.Maps;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.event.jobs.consumer.JobConsumer.JobResult;
+import org.apache.sling.settings.SlingSettingsService;
+import org.cru.contentscoring.core.service.ContentScoreUpdateService;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.cru.contentscoring.core.util.SystemUtils.ResourceResolverCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.cru.contentscoring.core.listeners.IndexerJobConsumer.ATTEMPT_PARAM;
+import static org.cru.contentscoring.core.listeners.IndexerJobConsumer.MAX_ATTEMPTS;
+import static org.cru.contentscoring.core.listeners.IndexerJobConsumer.MAX_PATHS_PER_RESOLVER;
+import static org.cru.contentscoring.core.listeners.IndexerJobConsumer.PARALLELISM;
+import static org.cru.contentscoring.core.listeners.ReplicationEventHandler.PATHS_PARAM;
+import static org.cru.contentscoring.core.listeners.ReplicationEventHandler.SCORING_JOB_NAME;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class IndexerJobConsumerTest {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexerJobConsumerTest.class);
+    private static final int PAGE_COUNT = 64;
+    private static final int JOB_COUNT = 4;
+    private static final long UPDATE_TIME = 5L;
+
+    @Mock
+    private SystemUtils systemUtils;
+
+    @Mock
+    private SlingSettingsService slingSettingsService;
+
+    @Mock
+    private JobManager jobManager;
+
+    @Spy
+    private StubContentScoreUpdateService service = new StubContentScoreUpdateService();
+
+    @InjectMocks
+    private IndexerJobConsumer consumer;
+
+    private final Queue<Session> sessions = new ConcurrentLinkedQueue<>();
+
+    @Before
+    public void setup() throws Exception {
+        when(slingSettingsService.getRunModes()).thenReturn(Collections.singleton("author"));
+        when(systemUtils.callWithPooledResourceResolver((String) isNull(), any(ResourceResolverCallback.class)))
+            .thenAnswer(invocation ->
+                ((ResourceResolverCallback<?>) invocation.getArguments()[1]).call(mockResolver()));
+    }
+
+    @After
+    public void tearDown() {
+        consumer.deactivate();
+    }
+
+    @Test
+    public void testPathStaysInItsPartition() {
+        activate(4);
+        String[] paths = buildPaths(PAGE_COUNT);
+
+        List<List<String>> first = consumer.partition(paths);
+        List<List<String>> second = consumer.partition(new String[] { paths[7], paths[3] });
+
+        for (List<String> partition : second) {
+            for (List<String> original : first) {
+                if (original.contains(partition.get(0))) {
+                    assertThat(original.containsAll(partition), is(equalTo(true)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEveryPathIsProcessed() {
+        activate(4);
+
+        JobResult result = consumer.process(mockJob(buildPaths(PAGE_COUNT)));
+
+        assertThat(result, is(equalTo(JobResult.OK)));
+        assertThat(service.updated.size(), is(equalTo(PAGE_COUNT)));
+    }
+
+    /**
+     * Each update waits for the other one to start, which only happens if the two partitions run at the same time.
+     */
+    @Test
+    public void testPartitionsAreProcessedInParallel() {
+        activate(2);
+        List<List<String>> partitions = consumer.partition(buildPaths(PAGE_COUNT));
+        String[] paths = new String[] { partitions.get(0).get(0), partitions.get(1).get(0) };
+        service.concurrentUpdates = new CountDownLatch(2);
+
+        JobResult result = consumer.process(mockJob(paths));
+
+        assertThat(result, is(equalTo(JobResult.OK)));
+        assertThat(service.overlapped.get(), is(equalTo(2)));
+    }
+
+    /**
+     * Benchmarks jobs/second with one partition, as the consumer ran before, and with four, against a stub update
+     * service that takes {@value UPDATE_TIME} ms per page. The rates are logged rather than compared, so a loaded
+     * build agent can't fail the build.
+     */
+    @Test
+    public void testJobsPerSecond() {
+        service.updateTime = UPDATE_TIME;
+        activate(1);
+        long serialTime = timeJobs();
+        consumer.deactivate();
+
+        activate(4);
+        long parallelTime = timeJobs();
+
+        LOG.info(
+            "Processed {} jobs/s with 1 partition, {} jobs/s with 4 partitions ({} pages per job)",
+            String.format("%.1f", JOB_COUNT * 1000.0 / Math.max(1L, serialTime)),
+            String.format("%.1f", JOB_COUNT * 1000.0 / Math.max(1L, parallelTime)),
+            PAGE_COUNT);
+        assertThat(service.updated.size(), is(equalTo(2 * JOB_COUNT * PAGE_COUNT)));
+    }
+
+    @Test
+    public void testPagesOfAChunkAreSavedTogether() throws Exception {
+        activate(1, 2);
+
+        JobResult result = consumer.process(mockJob(buildPaths(5)));
+
+        assertThat(result, is(equalTo(JobResult.OK)));
+        assertThat(sessions.size(), is(equalTo(3)));
+        for (Session session : sessions) {
+            verify(session).save();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOnlyFailedPathsAreRetried() throws Exception {
+        activate(1, 2);
+        String[] paths = buildPaths(3);
+        service.failing.add(paths[1]);
+        when(jobManager.addJob(eq(SCORING_JOB_NAME), anyMapOf(String.class, Object.class)))
+            .thenReturn(mock(Job.class));
+
+        JobResult result = consumer.process(mockJob(paths));
+
+        assertThat(result, is(equalTo(JobResult.OK)));
+        ArgumentCaptor<Map> jobProperties = ArgumentCaptor.forClass(Map.class);
+        verify(jobManager).addJob(eq(SCORING_JOB_NAME), jobProperties.capture());
+        assertThat((String[]) jobProperties.getValue().get(PATHS_PARAM), is(equalTo(new String[] { paths[1] })));
+        assertThat(jobProperties.getValue().get(ATTEMPT_PARAM), is(equalTo(2)));
+        // The page before the failed one is saved with its chunk
+        verify(sessions.peek()).save();
+    }
+
+    @Test
+    public void testFailedSaveRetriesTheWholeChunk() throws Exception {
+        activate(1, 2);
+        String[] paths = buildPaths(2);
+        service.failSave = true;
+        when(jobManager.addJob(eq(SCORING_JOB_NAME), anyMapOf(String.class, Object.class)))
+            .thenReturn(mock(Job.class));
+
+        JobResult result = consumer.process(mockJob(paths));
+
+        assertThat(result, is(equalTo(JobResult.OK)));
+        verify(jobManager).addJob(eq(SCORING_JOB_NAME), anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void testPathIsGivenUpOnAfterMaxAttempts() throws Exception {
+        activate(1);
+        String[] paths = buildPaths(1);
+        service.failing.add(paths[0]);
+        Job job = mockJob(paths);
+        when(job.getProperty(ATTEMPT_PARAM, 1)).thenReturn(MAX_ATTEMPTS);
+
+        JobResult result = consumer.process(job);
+
+        assertThat(result, is(equalTo(JobResult.OK)));
+        verify(jobManager, never()).addJob(anyString(), anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void testBatchIsRetriedWhenRetryJobCantBeAdded() throws Exception {
+        activate(1);
+        String[] paths = buildPaths(1);
+        service.failing.add(paths[0]);
+
+        JobResult result = consumer.process(mockJob(paths));
+
+        assertThat(result, is(equalTo(JobResult.FAILED)));
+        verify(jobManager, times(1)).addJob(anyString(), anyMapOf(String.class, Object.class));
+    }
+
+    private long timeJobs() {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < JOB_COUNT; i++) {
+            assertThat(consumer.process(mockJob(buildPaths(PAGE_COUNT))), is(equalTo(JobResult.OK)));
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private void activate(final int parallelism) {
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(PARALLELISM, parallelism);
+        consumer.activate(config);
+    }
+
+    private void activate(final int parallelism, final int maxPathsPerResolver) {
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(PARALLELISM, parallelism);
+        config.put(MAX_PATHS_PER_RESOLVER, maxPathsPerResolver);
+        consumer.activate(config);
+    }
+
+    private String[] buildPaths(final int count) {
+        String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = "/content/site/us/en/page-" + i;
+        }
+        return paths;
+    }
+
+    private Job mockJob(final String[] paths) {
+        Job job = mock(Job.class);
+        when(job.getProperty(ReplicationEventHandler.ACTION_TYPE_PARAM, String.class))
+            .thenReturn(ReplicationActionType.ACTIVATE.getName());
+        when(job.getProperty(ReplicationEventHandler.PATHS_PARAM, String[].class)).thenReturn(paths);
+        when(job.getProperty(ATTEMPT_PARAM, 1)).thenReturn(1);
+        return job;
+    }
+
+    private ResourceResolver mockResolver() throws RepositoryException {
+        ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        PageManager pageManager = mock(PageManager.class);
+        when(pageManager.getPage(anyString())).thenAnswer(invocation -> {
+            Page page = mock(Page.class);
+            when(page.getPath()).thenReturn((String) invocation.getArguments()[0]);
+            return page;
+        });
+        when(resourceResolver.adaptTo(PageManager.class)).thenReturn(pageManager);
+        Session session = mock(Session.class);
+        when(session.hasPendingChanges()).thenReturn(true);
+        if (service.failSave) {
+            doThrow(new RepositoryException("Save failed")).when(session).save();
+        }
+        sessions.add(session);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+        return resourceResolver;
+    }
+
+    static class StubContentScoreUpdateService implements ContentScoreUpdateService {
+        final Queue<String> updated = new ConcurrentLinkedQueue<>();
+        final Set<String> failing = ConcurrentHashMap.newKeySet();
+        volatile boolean failSave;
+        volatile long updateTime;
+        final AtomicInteger overlapped = new AtomicInteger();
+        volatile CountDownLatch concurrentUpdates;
+
+        @Override
+        public void updateContentScore(final Page page) throws RepositoryException {
+            if (failing.contains(page.getPath())) {
+                throw new RepositoryException("Update failed");
+            }
+            if (updateTime > 0) {
+                try {
+                    Thread.sleep(updateTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            CountDownLatch latch = concurrentUpdates;
+            if (latch != null) {
+                latch.countDown();
+                try {
+                    if (latch.await(10, TimeUnit.SECONDS)) {
+                        overlapped.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            updated.add(page.getPath());
+        }
+
+        @Override
+        public long getSendsQueued() {
+            return updated.size();
+        }
+
+        @Override
+        public long getSendsAvoided() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.cru.contentscoring.core.listeners;
+
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.google.common.collect.Maps;
+import org.apache.sling.event.jobs.JobManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.cru.contentscoring.core.listeners.ReplicationEventHandler.ACTION_TYPE_PARAM;
+import static org.cru.contentscoring.core.listeners.ReplicationEventHandler.BATCH_SIZE;
+import static org.cru.contentscoring.core.listeners.ReplicationEventHandler.BATCH_WINDOW;
+import static org.cru.contentscoring.core.listeners.ReplicationEventHandler.PATHS_PARAM;
+import static org.cru.contentscoring.core.listeners.ReplicationEventHandler.SCORING_JOB_NAME;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@SuppressWarnings("unchecked")
+@RunWith(MockitoJUnitRunner.class)
+public class ReplicationEventHandlerTest {
+    @Mock
+    private JobManager jobManager;
+
+    @InjectMocks
+    private ReplicationEventHandler eventHandler;
+
+    @Before
+    public void setup() {
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(BATCH_WINDOW, 60L * 1000L);
+        config.put(BATCH_SIZE, 2);
+        eventHandler.activate(config);
+    }
+
+    @After
+    public void tearDown() {
+        eventHandler.deactivate();
+    }
+
+    @Test
+    public void testPathsAreBufferedUntilFlush() {
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/site/a").toEvent());
+
+        verify(jobManager, never()).addJob(eq(SCORING_JOB_NAME), anyMapOf(String.class, Object.class));
+
+        eventHandler.flush();
+
+        ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+        verify(jobManager).addJob(eq(SCORING_JOB_NAME), captor.capture());
+        assertThat((String[]) captor.getValue().get(PATHS_PARAM), is(equalTo(new String[] { "/content/site/a" })));
+        assertThat(captor.getValue().get(ACTION_TYPE_PARAM), is(equalTo(ReplicationActionType.ACTIVATE.getName())));
+    }
+
+    @Test
+    public void testFullBatchIsEmittedImmediately() {
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/site/a").toEvent());
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/site/b").toEvent());
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/site/c").toEvent());
+
+        ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+        verify(jobManager).addJob(eq(SCORING_JOB_NAME), captor.capture());
+        assertThat(
+            (String[]) captor.getValue().get(PATHS_PARAM),
+            is(equalTo(new String[] { "/content/site/a", "/content/site/b" })));
+
+        eventHandler.flush();
+
+        verify(jobManager, times(2)).addJob(eq(SCORING_JOB_NAME), captor.capture());
+        List<Map> jobs = captor.getAllValues();
+        assertThat(
+            (String[]) jobs.get(jobs.size() - 1).get(PATHS_PARAM),
+            is(equalTo(new String[] { "/content/site/c" })));
+    }
+
+    @Test
+    public void testBufferedPathsAreAddedOnDeactivate() {
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/site/a").toEvent());
+
+        eventHandler.deactivate();
+
+        ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+        verify(jobManager).addJob(eq(SCORING_JOB_NAME), captor.capture());
+        assertThat((String[]) captor.getValue().get(PATHS_PARAM), is(equalTo(new String[] { "/content/site/a" })));
+    }
+
+    @Test
+    public void testDeactivationIsFiltered() {
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.DEACTIVATE, "/content/site/a").toEvent());
+        eventHandler.flush();
+
+        verify(jobManager, never()).addJob(eq(SCORING_JOB_NAME), anyMapOf(String.class, Object.class));
+        assertThat(eventHandler.getFilteredByActionType(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void testPathsOutsideRootsAreFiltered() {
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/dam/image.png").toEvent());
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.ACTIVATE, "/etc/designs/site").toEvent());
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/site/page").toEvent());
+        eventHandler.flush();
+
+        ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+        verify(jobManager).addJob(eq(SCORING_JOB_NAME), captor.capture());
+        assertThat((String[]) captor.getValue().get(PATHS_PARAM), is(equalTo(new String[] { "/content/site/page" })));
+        assertThat(eventHandler.getFilteredByPath(), is(equalTo(2L)));
+        assertThat(eventHandler.getAcceptedPaths(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void testRepeatedPathIsCoalesced() {
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/site/a").toEvent());
+        eventHandler.handleEvent(new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/site/a").toEvent());
+        eventHandler.flush();
+
+        ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+        verify(jobManager).addJob(eq(SCORING_JOB_NAME), captor.capture());
+        assertThat((String[]) captor.getValue().get(PATHS_PARAM), is(equalTo(new String[] { "/content/site/a" })));
+    }
+}
@@ -0,0 +1,192 @@
+package org.cru.contentscoring.core.listeners;
+
+import com.google.common.collect.Maps;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.wrappers.ModifiableValueMapDecorator;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobConsumer.JobResult;
+import org.cru.contentscoring.core.models.MigrationState;
+import org.cru.contentscoring.core.service.ScoreMigrationService;
+import org.cru.contentscoring.core.service.ScoreMigrationService.MigrationListener;
+import org.cru.contentscoring.core.util.MigrationStatusUtil;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.jcr.RepositoryException;
+import java.util.Map;
+
+import static org.cru.contentscoring.core.listeners.ScoreMigrationJobConsumer.DRY_RUN_PARAM;
+import static org.cru.contentscoring.core.listeners.ScoreMigrationJobConsumer.PATH_PARAM;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_DRY_RUN;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_LAST_ERROR;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_MIGRATED_SUBTREES;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_PROCESSED;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_PROCESSED_BEFORE_RESUME;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_STATE;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_TOTAL;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_UNREPLICATED_PATHS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ScoreMigrationJobConsumerTest {
+    private static final String ROOT = "/content/site/us/en";
+
+    @Mock
+    private ScoreMigrationService scoreMigrationService;
+
+    @Mock
+    private SystemUtils systemUtils;
+
+    @Mock
+    private ResourceResolver resourceResolver;
+
+    @InjectMocks
+    private ScoreMigrationJobConsumer consumer;
+
+    private Map<String, Object> status = Maps.newHashMap();
+
+    @Before
+    public void setup() throws Exception {
+        when(systemUtils.getResourceResolver("contentScoreSync")).thenReturn(resourceResolver);
+
+        Resource statusResource = mock(Resource.class);
+        when(statusResource.adaptTo(ModifiableValueMap.class)).thenReturn(new ModifiableValueMapDecorator(status));
+        when(resourceResolver.getResource(MigrationStatusUtil.getStatusPath(ROOT))).thenReturn(statusResource);
+    }
+
+    @Test
+    public void testMigrationSucceeds() throws Exception {
+        when(scoreMigrationService.count(ROOT)).thenReturn(10L);
+        when(scoreMigrationService.migrate(eq(ROOT), any(MigrationListener.class))).thenAnswer(invocation -> {
+            MigrationListener listener = (MigrationListener) invocation.getArguments()[1];
+            assertThat(status.get(PN_STATE), is(equalTo(MigrationState.RUNNING.name())));
+            listener.onBatch(10, 0);
+            listener.onSubtreeMigrated(ROOT + "/a");
+            return 10L;
+        });
+
+        assertThat(consumer.process(mockJob(ROOT, false)), is(equalTo(JobResult.OK)));
+
+        assertThat(status.get(PN_STATE), is(equalTo(MigrationState.SUCCEEDED.name())));
+        assertThat(status.get(PN_TOTAL), is(equalTo(10L)));
+        assertThat(status.get(PN_PROCESSED), is(equalTo(10L)));
+        assertThat((String[]) status.get(PN_MIGRATED_SUBTREES), is(equalTo(new String[] { ROOT + "/a" })));
+    }
+
+    @Test
+    public void testFailedMigrationIsResumedFromCheckpoint() throws Exception {
+        status.put(PN_STATE, MigrationState.FAILED.name());
+        status.put(PN_DRY_RUN, false);
+        status.put(PN_PROCESSED, 4L);
+        status.put(PN_MIGRATED_SUBTREES, new String[] { ROOT + "/a" });
+        status.put(PN_LAST_ERROR, "Earlier failure");
+
+        when(scoreMigrationService.count(ROOT)).thenReturn(6L);
+        when(scoreMigrationService.migrate(eq(ROOT), any(MigrationListener.class))).thenAnswer(invocation -> {
+            MigrationListener listener = (MigrationListener) invocation.getArguments()[1];
+            assertThat(listener.isMigrated(ROOT + "/a"), is(equalTo(true)));
+            assertThat(listener.isMigrated(ROOT + "/b"), is(equalTo(false)));
+            listener.onBatch(6, 0);
+            listener.onSubtreeMigrated(ROOT + "/b");
+            return 6L;
+        });
+
+        assertThat(consumer.process(mockJob(ROOT, false)), is(equalTo(JobResult.OK)));
+
+        assertThat(status.get(PN_STATE), is(equalTo(MigrationState.SUCCEEDED.name())));
+        assertThat(status.get(PN_TOTAL), is(equalTo(10L)));
+        assertThat(status.get(PN_PROCESSED), is(equalTo(10L)));
+        assertThat(status.get(PN_PROCESSED_BEFORE_RESUME), is(equalTo(4L)));
+        assertThat(status.containsKey(PN_LAST_ERROR), is(equalTo(false)));
+    }
+
+    @Test
+    public void testSucceededMigrationStartsOver() throws Exception {
+        status.put(PN_STATE, MigrationState.SUCCEEDED.name());
+        status.put(PN_DRY_RUN, false);
+        status.put(PN_PROCESSED, 10L);
+        status.put(PN_MIGRATED_SUBTREES, new String[] { ROOT + "/a" });
+
+        when(scoreMigrationService.migrate(eq(ROOT), any(MigrationListener.class))).thenAnswer(invocation -> {
+            MigrationListener listener = (MigrationListener) invocation.getArguments()[1];
+            assertThat(listener.isMigrated(ROOT + "/a"), is(equalTo(false)));
+            return 0L;
+        });
+
+        consumer.process(mockJob(ROOT, false));
+
+        assertThat(status.get(PN_PROCESSED), is(equalTo(0L)));
+        assertThat(status.get(PN_TOTAL), is(equalTo(0L)));
+    }
+
+    @Test
+    public void testUnreplicatedPathsAreKeptUntilReplicated() throws Exception {
+        status.put(PN_STATE, MigrationState.SUCCEEDED.name());
+        status.put(PN_DRY_RUN, false);
+        status.put(PN_UNREPLICATED_PATHS, new String[] { ROOT + "/a/one" });
+
+        when(scoreMigrationService.migrate(eq(ROOT), any(MigrationListener.class))).thenAnswer(invocation -> {
+            MigrationListener listener = (MigrationListener) invocation.getArguments()[1];
+            assertThat(listener.getUnreplicatedPaths(), is(equalTo(new String[] { ROOT + "/a/one" })));
+            listener.onReplicated(new String[] { ROOT + "/a/one" });
+            listener.onReplicationFailed(new String[] { ROOT + "/b/two" });
+            return 0L;
+        });
+
+        consumer.process(mockJob(ROOT, false));
+
+        assertThat((String[]) status.get(PN_UNREPLICATED_PATHS), is(equalTo(new String[] { ROOT + "/b/two" })));
+    }
+
+    @Test
+    public void testDryRunOnlyCounts() throws Exception {
+        when(scoreMigrationService.count(ROOT)).thenReturn(7L);
+
+        assertThat(consumer.process(mockJob(ROOT, true)), is(equalTo(JobResult.OK)));
+
+        verify(scoreMigrationService, never()).migrate(anyString(), any(MigrationListener.class));
+        assertThat(status.get(PN_STATE), is(equalTo(MigrationState.SUCCEEDED.name())));
+        assertThat(status.get(PN_TOTAL), is(equalTo(7L)));
+        assertThat(status.get(PN_DRY_RUN), is(equalTo(true)));
+    }
+
+    @Test
+    public void testFailedMigrationIsRecorded() throws Exception {
+        when(scoreMigrationService.migrate(eq(ROOT), any(MigrationListener.class)))
+            .thenThrow(new RepositoryException("Subtree failed"));
+
+        assertThat(consumer.process(mockJob(ROOT, false)), is(equalTo(JobResult.FAILED)));
+
+        verify(resourceResolver).revert();
+        assertThat(status.get(PN_STATE), is(equalTo(MigrationState.FAILED.name())));
+        assertThat(status.get(PN_LAST_ERROR), is(equalTo("Subtree failed")));
+    }
+
+    @Test
+    public void testJobWithoutPathIsCancelled() {
+        assertThat(consumer.process(mockJob(null, false)), is(equalTo(JobResult.CANCEL)));
+    }
+
+    private Job mockJob(final String path, final boolean dryRun) {
+        Job job = mock(Job.class);
+        when(job.getProperty(PATH_PARAM, String.class)).thenReturn(path);
+        when(job.getProperty(DRY_RUN_PARAM, false)).thenReturn(dryRun);
+        return job;
+    }
+}
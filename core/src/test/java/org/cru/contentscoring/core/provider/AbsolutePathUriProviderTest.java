@@ -28,6 +28,7 @@ public class AbsolutePathUriProviderTest {
     public void setup() {
         resourceResolver = mock(ResourceResolver.class);
         absolutePathUriProvider = new AbsolutePathUriProvider("local");
+        UriProviderUtil.invalidateAll();
     }
 
     @Test
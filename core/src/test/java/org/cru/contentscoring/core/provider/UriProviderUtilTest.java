@@ -0,0 +1,107 @@
+package org.cru.contentscoring.core.provider;
+
+import com.google.common.collect.Lists;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UriProviderUtilTest {
+    private static final String HTTPS_PATH = "/etc/map.publish.uat/https";
+    private static final String HTTP_PATH = "/etc/map.publish.uat/http";
+
+    private UriProviderUtil util;
+    private ResourceResolver resourceResolver;
+
+    @Before
+    public void setup() {
+        resourceResolver = mock(ResourceResolver.class);
+        util = UriProviderUtil.getInstance("uat");
+        UriProviderUtil.invalidateAll();
+
+        Resource httpsMap = mockMap("https", Lists.newArrayList(
+            mockEntry("site.org", "/content/site"),
+            mockEntry("es.site.org", "/content/site/es"),
+            mockEntry("es.site_org", "/content/site/es/home")));
+        Resource httpMap = mockMap("http", Lists.newArrayList(mockEntry("other.com", "/content/other")));
+        when(resourceResolver.getResource(HTTPS_PATH)).thenReturn(httpsMap);
+        when(resourceResolver.getResource(HTTP_PATH)).thenReturn(httpMap);
+    }
+
+    @Test
+    public void testLongestPrefixWins() {
+        SlingMapping slingMap = util.determineSlingMap("/content/site/es/home/page", resourceResolver);
+
+        assertThat(slingMap.getHost(), is(equalTo("es.site.org")));
+        assertThat(slingMap.getScheme(), is(equalTo("https")));
+    }
+
+    @Test
+    public void testHttpIsUsedWithoutHttpsMapping() {
+        SlingMapping slingMap = util.determineSlingMap("/content/other/page", resourceResolver);
+
+        assertThat(slingMap.getHost(), is(equalTo("other.com")));
+        assertThat(slingMap.getScheme(), is(equalTo("http")));
+        assertThat(util.determineSlingMap("/content/unmapped", resourceResolver), is(nullValue()));
+    }
+
+    @Test
+    public void testMapsAreReadOnceUntilInvalidated() {
+        util.determineSlingMap("/content/site/page", resourceResolver);
+        util.determineSlingMap("/content/other/page", resourceResolver);
+        verify(resourceResolver, times(1)).getResource(HTTPS_PATH);
+
+        long generation = UriProviderUtil.getGeneration();
+        UriProviderUtil.invalidateAll();
+        util.determineSlingMap("/content/site/page", resourceResolver);
+
+        verify(resourceResolver, times(2)).getResource(HTTPS_PATH);
+        assertThat(UriProviderUtil.getGeneration(), is(equalTo(generation + 1)));
+    }
+
+    @Test
+    public void testMapsAreCompiledPerUser() {
+        when(resourceResolver.getUserID()).thenReturn("content-scoring-service");
+        ResourceResolver anonymousResolver = mock(ResourceResolver.class);
+        when(anonymousResolver.getUserID()).thenReturn("anonymous");
+
+        // A user that can't read /etc/map doesn't leave empty maps for the others
+        assertThat(util.determineSlingMap("/content/site/page", anonymousResolver), is(nullValue()));
+        assertThat(util.determineSlingMap("/content/site/page", resourceResolver).getHost(), is(equalTo("site.org")));
+        assertThat(util.determineSlingMap("/content/site/page", anonymousResolver), is(nullValue()));
+    }
+
+    private Resource mockMap(final String scheme, final List<Resource> entries) {
+        Resource map = mock(Resource.class);
+        when(map.getName()).thenReturn(scheme);
+        when(map.hasChildren()).thenReturn(true);
+        when(map.getChildren()).thenReturn(entries);
+        return map;
+    }
+
+    private Resource mockEntry(final String name, final String internalRedirect) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("sling:internalRedirect", internalRedirect);
+
+        Resource entry = mock(Resource.class);
+        when(entry.getName()).thenReturn(name);
+        when(entry.getValueMap()).thenReturn(new ValueMapDecorator(properties));
+        when(entry.getChildren()).thenReturn(Collections.emptyList());
+        return entry;
+    }
+}
@@ -28,6 +28,7 @@ public class VanityPathUriProviderTest {
     public void setup() {
         resourceResolver = mock(ResourceResolver.class);
         vanityPathUriProvider = new VanityPathUriProvider("local");
+        UriProviderUtil.invalidateAll();
         mockSlingMaps();
     }
 
@@ -244,6 +244,43 @@ public class UploadQueueTest {
         verify(messageGateway).send(any(HtmlEmail.class));
     }
 
+    @Test
+    public void testHandleFailedRetryMaxedTellsListener() throws EmailException, AddressException {
+        UploadQueue.FailureListener failureListener = mock(UploadQueue.FailureListener.class);
+        uploadQueue = new UploadQueue(
+            WAIT_TIME,
+            MAX_RETRIES,
+            API_ENDPOINT,
+            API_KEY,
+            ERROR_EMAIL_RECIPIENTS,
+            messageGatewayService,
+            null,
+            failureListener);
+
+        List<ContentScoreUpdateRequest> batch = Lists.newArrayList(request);
+        uploadQueue.handleFailedRetry(new RetryElement(batch, MAX_RETRIES + 1), "Failed");
+
+        verify(failureListener).onGiveUp(batch);
+    }
+
+    @Test
+    public void testHandleFailedRetryNotMaxedDoesNotTellListener() throws EmailException, AddressException {
+        UploadQueue.FailureListener failureListener = mock(UploadQueue.FailureListener.class);
+        uploadQueue = new UploadQueue(
+            WAIT_TIME,
+            MAX_RETRIES,
+            API_ENDPOINT,
+            API_KEY,
+            ERROR_EMAIL_RECIPIENTS,
+            messageGatewayService,
+            null,
+            failureListener);
+
+        uploadQueue.handleFailedRetry(new RetryElement(Lists.newArrayList(request), 1), "Failed");
+
+        verify(failureListener, never()).onGiveUp(any(List.class));
+    }
+
     @Test
     public void testUpdateContentScoreRequestSuccess() throws Exception {
         List<ContentScoreUpdateRequest> batch = Lists.newArrayList(request);
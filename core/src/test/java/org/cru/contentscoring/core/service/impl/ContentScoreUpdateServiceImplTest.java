@@ -3,6 +3,7 @@ package org.cru.contentscoring.core.service.impl;
 import com.day.cq.tagging.Tag;
 import com.day.cq.wcm.api.Page;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.sling.api.resource.Resource;
@@ -12,6 +13,7 @@ import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.cru.contentscoring.core.models.ContentScoreUpdateRequest;
 import org.cru.contentscoring.core.queue.UploadQueue;
 import org.cru.contentscoring.core.util.ExperienceFragmentUtil;
+import org.cru.contentscoring.core.util.SystemUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -35,6 +37,7 @@ import java.util.Set;
 import java.util.UUID;
 
 import static org.cru.contentscoring.core.service.impl.ContentScoreUpdateServiceImpl.API_ENDPOINT;
+import static org.cru.contentscoring.core.service.impl.ContentScoreUpdateServiceImpl.CONTENT_SCORE_LAST_SENT;
 import static org.cru.contentscoring.core.service.impl.ContentScoreUpdateServiceImpl.CONTENT_SCORE_UPDATED;
 import static org.cru.contentscoring.core.service.impl.ContentScoreUpdateServiceImpl.ERROR_EMAIL_RECIPIENTS;
 import static org.cru.contentscoring.core.service.impl.ContentScoreUpdateServiceImpl.MAX_RETRIES;
@@ -69,6 +72,9 @@ public class ContentScoreUpdateServiceImplTest {
     @Mock
     private ResourceResolver resolver;
 
+    @Mock
+    private SystemUtils systemUtils;
+
     @InjectMocks
     private ContentScoreUpdateServiceImpl updateService;
 
@@ -302,6 +308,80 @@ public class ContentScoreUpdateServiceImplTest {
         assertThat(request.getUri(), is(equalTo(site + pagePath + HTML_EXTENSION)));
     }
 
+    @Test
+    public void testUnchangedScoreIsNotResent() throws Exception {
+        initializeQueue();
+        String pagePath = "/content/test/us/en/page-path";
+        String site = "https://page.com";
+
+        Page page = mockPage(pagePath);
+        page.getContentResource().getValueMap().put(
+            CONTENT_SCORE_LAST_SENT,
+            new String[] { ContentScoreUpdateServiceImpl.fingerprint(site + pagePath + HTML_EXTENSION, 6) });
+
+        mockResponse(Sets.newHashSet(site + pagePath + HTML_EXTENSION));
+
+        updateService.updateContentScore(page);
+        List<ContentScoreUpdateRequest> pending =
+            ContentScoreUpdateServiceImpl.internalQueueManager.getPendingBatches();
+
+        assertThat(pending.isEmpty(), is(equalTo(true)));
+        assertThat(updateService.getSendsAvoided(), is(equalTo(1L)));
+        verify(session, never()).save();
+    }
+
+    @Test
+    public void testChangedScoreIsResent() throws Exception {
+        initializeQueue();
+        String pagePath = "/content/test/us/en/page-path";
+        String site = "https://page.com";
+
+        Page page = mockPage(pagePath);
+        page.getContentResource().getValueMap().put(
+            CONTENT_SCORE_LAST_SENT,
+            new String[] { ContentScoreUpdateServiceImpl.fingerprint(site + pagePath + HTML_EXTENSION, 2) });
+
+        mockResponse(Sets.newHashSet(site + pagePath + HTML_EXTENSION));
+
+        updateService.updateContentScore(page);
+        List<ContentScoreUpdateRequest> pending =
+            ContentScoreUpdateServiceImpl.internalQueueManager.getPendingBatches();
+
+        ContentScoreUpdateRequest request = Iterables.getOnlyElement(pending);
+        assertThat(request.getScore(), is(equalTo(6)));
+        assertThat(updateService.getSendsQueued(), is(equalTo(1L)));
+
+        Node contentNode = page.getContentResource().adaptTo(Node.class);
+        verify(contentNode).setProperty(
+            CONTENT_SCORE_LAST_SENT,
+            new String[] { ContentScoreUpdateServiceImpl.fingerprint(site + pagePath + HTML_EXTENSION, 6) });
+    }
+
+    @Test
+    public void testScoresGivenUpOnAreForgotten() throws Exception {
+        String pagePath = "/content/test/us/en/page-path";
+        String url = "https://page.com" + pagePath + HTML_EXTENSION;
+        String failed = ContentScoreUpdateServiceImpl.fingerprint(url, 6);
+        String delivered = ContentScoreUpdateServiceImpl.fingerprint("https://page.com/vanity", 6);
+
+        Page page = mockPage(pagePath);
+        page.getContentResource().getValueMap().put(CONTENT_SCORE_LAST_SENT, new String[] { failed, delivered });
+        when(resolver.getResource(pagePath + "/jcr:content")).thenReturn(page.getContentResource());
+        when(resolver.adaptTo(Session.class)).thenReturn(session);
+        when(systemUtils.getResourceResolver(SystemUtils.SUBSERVICE)).thenReturn(resolver);
+
+        ContentScoreUpdateRequest request = new ContentScoreUpdateRequest();
+        request.setUri(url);
+        request.setScore(6);
+        request.setPagePath(pagePath);
+        updateService.forgetSentScores(Lists.newArrayList(request));
+
+        Node contentNode = page.getContentResource().adaptTo(Node.class);
+        verify(contentNode).setProperty(CONTENT_SCORE_LAST_SENT, new String[] { delivered });
+        verify(session).save();
+        verify(resolver).close();
+    }
+
     @Test
     public void testExperienceFragment() throws Exception {
         String xfPath = "/content/experience-fragments/shared/en/path";
@@ -0,0 +1,96 @@
+package org.cru.contentscoring.core.service.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks the index shipped by ui.apps against the predicates of the migration and vanity path queries, so a change
+ * to either side that leaves a query without the index fails the build. Tags are set and resolved through the
+ * TagManager, which relies on the OOTB cqPageLucene index for cq:tags.
+ */
+public class ContentScoringIndexDefinitionTest {
+    private static final String UI_APPS = "../ui.apps/src/main/content";
+    private static final String INDEX_PATH = "/oak:index/cruContentScoringLucene";
+
+    private Element index;
+
+    @Before
+    public void setup() throws Exception {
+        index = parse(UI_APPS + "/jcr_root/_oak_index/cruContentScoringLucene/.content.xml");
+    }
+
+    @Test
+    public void testIndexCoversTheContentRoot() {
+        assertThat(index.getAttribute("type"), is(equalTo("lucene")));
+        assertThat(index.getAttribute("includedPaths"), containsString(VanityPathIndexImpl.CONTENT_ROOT));
+        assertThat(index.getAttribute("queryPaths"), containsString(VanityPathIndexImpl.CONTENT_ROOT));
+        // The migration restricts every query to a subtree
+        assertThat(index.getAttribute("evaluatePathRestrictions"), is(equalTo("{Boolean}true")));
+    }
+
+    @Test
+    public void testMigrationQueryIsIndexed() {
+        // type=cq:Page, property=jcr:content/score, property.operation=exists
+        Element score = findProperty("cq:Page", "jcr:content/" + ScoreMigrationServiceImpl.SCORE);
+
+        assertThat(score.getAttribute("propertyIndex"), is(equalTo("{Boolean}true")));
+        assertThat(score.getAttribute("notNullCheck"), is(equalTo("{Boolean}true")));
+    }
+
+    @Test
+    public void testVanityPathQueryIsIndexed() {
+        // type=cq:PageContent, property=sling:vanityPath, with property.operation=exists or property.value
+        Element vanityPath = findProperty("cq:PageContent", VanityPathIndexImpl.VANITY_PATH);
+
+        assertThat(vanityPath.getAttribute("propertyIndex"), is(equalTo("{Boolean}true")));
+    }
+
+    @Test
+    public void testInstalledIndexIsMerged() throws Exception {
+        Element filter = null;
+        NodeList filters = parse(UI_APPS + "/META-INF/vault/filter.xml").getElementsByTagName("filter");
+        for (int i = 0; i < filters.getLength(); i++) {
+            Element candidate = (Element) filters.item(i);
+            if (INDEX_PATH.equals(candidate.getAttribute("root"))) {
+                filter = candidate;
+            }
+        }
+
+        assertThat(filter, is(notNullValue()));
+        assertThat(filter.getAttribute("mode"), is(equalTo("merge")));
+    }
+
+    private Element findProperty(final String nodeType, final String propertyName) {
+        Element indexRules = (Element) index.getElementsByTagName("indexRules").item(0);
+        Element rule = (Element) indexRules.getElementsByTagName(nodeType).item(0);
+        assertThat("No index rule for " + nodeType, rule, is(notNullValue()));
+
+        NodeList properties = ((Element) rule.getElementsByTagName("properties").item(0)).getChildNodes();
+        for (int i = 0; i < properties.getLength(); i++) {
+            if (properties.item(i) instanceof Element) {
+                Element property = (Element) properties.item(i);
+                if (propertyName.equals(property.getAttribute("name"))) {
+                    return property;
+                }
+            }
+        }
+        throw new AssertionError("No index rule for " + nodeType + "/" + propertyName);
+    }
+
+    private Element parse(final String path) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(path));
+        return document.getDocumentElement();
+    }
+}
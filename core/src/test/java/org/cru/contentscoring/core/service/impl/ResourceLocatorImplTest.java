@@ -0,0 +1,92 @@
+package org.cru.contentscoring.core.service.impl;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResourceLocatorImplTest {
+    private static final String URI = "https://www.cru.org/campaign";
+
+    @Mock
+    private VanityPathIndex vanityPathIndex;
+
+    @Mock
+    private HttpServletRequest request;
+
+    @Mock
+    private ResourceResolver resourceResolver;
+
+    @InjectMocks
+    private ResourceLocatorImpl resourceLocator;
+
+    @Before
+    public void setup() {
+        resourceLocator.activate(Maps.newHashMap());
+
+        when(resourceResolver.getUserID()).thenReturn("content-scoring-service");
+
+        NonExistingResource missing = new NonExistingResource(resourceResolver, "/campaign");
+        when(resourceResolver.resolve(any(HttpServletRequest.class), anyString())).thenReturn(missing);
+        when(vanityPathIndex.isReady()).thenReturn(true);
+        when(vanityPathIndex.getPagePaths("/campaign")).thenReturn(Collections.emptySet());
+    }
+
+    @Test
+    public void testMissIsRemembered() throws Exception {
+        assertThat(resourceLocator.locate(request, resourceResolver, URI), is(nullValue()));
+        assertThat(resourceLocator.locate(request, resourceResolver, URI), is(nullValue()));
+
+        verify(resourceResolver, times(1)).resolve(any(HttpServletRequest.class), anyString());
+    }
+
+    @Test
+    public void testMissIsOutdatedByIndexChange() throws Exception {
+        assertThat(resourceLocator.locate(request, resourceResolver, URI), is(nullValue()));
+
+        Resource page = mock(Resource.class);
+        when(vanityPathIndex.getGeneration()).thenReturn(1L);
+        when(vanityPathIndex.getPagePaths("/campaign")).thenReturn(ImmutableSet.of("/content/site/us/en/campaign"));
+        when(resourceResolver.getResource("/content/site/us/en/campaign")).thenReturn(page);
+
+        assertThat(resourceLocator.locate(request, resourceResolver, URI), is(equalTo(page)));
+        verify(resourceResolver, times(2)).resolve(any(HttpServletRequest.class), anyString());
+    }
+
+    @Test
+    public void testMissIsRememberedPerUser() throws Exception {
+        assertThat(resourceLocator.locate(request, resourceResolver, URI), is(nullValue()));
+
+        Resource page = mock(Resource.class);
+        ResourceResolver anonymousResolver = mock(ResourceResolver.class);
+        when(anonymousResolver.getUserID()).thenReturn("anonymous");
+        when(anonymousResolver.resolve(any(HttpServletRequest.class), anyString())).thenReturn(page);
+
+        assertThat(resourceLocator.locate(request, anonymousResolver, URI), is(equalTo(page)));
+        assertThat(resourceLocator.locate(request, resourceResolver, URI), is(nullValue()));
+        verify(resourceResolver, times(1)).resolve(any(HttpServletRequest.class), anyString());
+    }
+}
@@ -0,0 +1,275 @@
+package org.cru.contentscoring.core.service.impl;
+
+import com.google.common.collect.Maps;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.cru.contentscoring.core.service.ResourceLocator;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.client.AsyncInvoker;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Invocation.Builder;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
+import java.util.Map;
+
+import static org.cru.contentscoring.core.service.impl.ResourcePathFinderImpl.LOCAL_RESOLUTION;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResourcePathFinderImplTest {
+    @Mock
+    private ResourceLocator resourceLocator;
+
+    @Mock
+    private SystemUtils systemUtils;
+
+    @Mock
+    private ResourceResolver resourceResolver;
+
+    @Mock
+    private HttpServletRequest request;
+
+    @InjectMocks
+    private ResourcePathFinderImpl resourcePathFinder;
+
+    @Before
+    public void setup() {
+        resourcePathFinder.activate(Maps.newHashMap());
+    }
+
+    @After
+    public void tearDown() {
+        resourcePathFinder.deactivate();
+    }
+
+    @Test
+    public void testUrlWithoutHtml() throws Exception {
+        String incomingUri = "https://somewhere.com/path";
+        String resourcePath = "/content/somewhere/us/en/path";
+
+        Response mockResponse = mock(Response.class);
+        when(mockResponse.readEntity(String.class)).thenReturn(resourcePath);
+
+        Builder mockBuilder = mock(Builder.class);
+        when(mockBuilder.get()).thenReturn(mockResponse);
+
+        WebTarget mockTarget = mock(WebTarget.class);
+        when(mockTarget.queryParam(anyString(), anyString())).thenReturn(mockTarget);
+        when(mockTarget.request()).thenReturn(mockBuilder);
+
+        Client client = mock(Client.class);
+        when(client.target("https://somewhere.com/bin/cru/path/finder.txt")).thenReturn(mockTarget);
+
+
+        String returnedPath = resourcePathFinder.determineResourcePath(client, incomingUri);
+        assertThat(returnedPath, is(equalTo(resourcePath)));
+    }
+
+    @Test
+    public void testUrlWithHtml() throws Exception {
+        String incomingUri = "http://somewhere.com/path.html";
+        String resourcePath = "/content/somewhere/us/en/path";
+
+        Response mockResponse = mock(Response.class);
+        when(mockResponse.readEntity(String.class)).thenReturn(resourcePath);
+
+        Builder mockBuilder = mock(Builder.class);
+        when(mockBuilder.get()).thenReturn(mockResponse);
+
+        WebTarget mockTarget = mock(WebTarget.class);
+        when(mockTarget.request()).thenReturn(mockBuilder);
+
+        Client client = mock(Client.class);
+        when(client.target("http://somewhere.com/path.find.path.txt")).thenReturn(mockTarget);
+
+
+        String returnedPath = resourcePathFinder.determineResourcePath(client, incomingUri);
+        assertThat(returnedPath, is(equalTo(resourcePath)));
+    }
+
+    @Test
+    public void testRepeatedLookupIsCached() throws Exception {
+        String incomingUri = "http://somewhere.com/path.html";
+        String resourcePath = "/content/somewhere/us/en/path";
+        Client client = mockClient("http://somewhere.com/path.find.path.txt", resourcePath);
+
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(equalTo(resourcePath)));
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(equalTo(resourcePath)));
+
+        verify(client, times(1)).target("http://somewhere.com/path.find.path.txt");
+        assertThat(resourcePathFinder.getCacheHits(), is(equalTo(1L)));
+        assertThat(resourcePathFinder.getCacheMisses(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void testMissIsCached() throws Exception {
+        String incomingUri = "http://somewhere.com/missing.html";
+        Client client = mockClient("http://somewhere.com/missing.find.path.txt", "");
+
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(nullValue()));
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(nullValue()));
+
+        verify(client, times(1)).target("http://somewhere.com/missing.find.path.txt");
+    }
+
+    @Test
+    public void testNotFoundIsCachedAsMiss() throws Exception {
+        String incomingUri = "http://somewhere.com/missing.html";
+        Client client = mockClient("http://somewhere.com/missing.find.path.txt", "", 404);
+
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(nullValue()));
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(nullValue()));
+
+        verify(client, times(1)).target("http://somewhere.com/missing.find.path.txt");
+    }
+
+    @Test
+    public void testErrorIsNotCached() throws Exception {
+        String incomingUri = "http://somewhere.com/path.html";
+        Client client = mockClient("http://somewhere.com/path.find.path.txt", "", 503);
+
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(nullValue()));
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(nullValue()));
+
+        verify(client, times(2)).target("http://somewhere.com/path.find.path.txt");
+    }
+
+    @Test
+    public void testInvalidationDropsDescendantsButNotSiblings() throws Exception {
+        String childUri = "http://somewhere.com/path/child.html";
+        String siblingUri = "http://somewhere.com/path-sibling.html";
+        WebTarget childTarget = mockTarget("/content/somewhere/us/en/path/child", 200);
+        WebTarget siblingTarget = mockTarget("/content/somewhere/us/en/path-sibling", 200);
+
+        Client client = mock(Client.class);
+        when(client.target("http://somewhere.com/path/child.find.path.txt")).thenReturn(childTarget);
+        when(client.target("http://somewhere.com/path-sibling.find.path.txt")).thenReturn(siblingTarget);
+        resourcePathFinder.client = client;
+
+        resourcePathFinder.findResourcePath(request, childUri);
+        resourcePathFinder.findResourcePath(request, siblingUri);
+        resourcePathFinder.invalidate("/content/somewhere/us/en/path");
+        resourcePathFinder.findResourcePath(request, childUri);
+        resourcePathFinder.findResourcePath(request, siblingUri);
+
+        verify(client, times(2)).target("http://somewhere.com/path/child.find.path.txt");
+        verify(client, times(1)).target("http://somewhere.com/path-sibling.find.path.txt");
+    }
+
+    @Test
+    public void testInvalidationDropsPageAndMisses() throws Exception {
+        String incomingUri = "http://somewhere.com/path.html";
+        String resourcePath = "/content/somewhere/us/en/path";
+        Client client = mockClient("http://somewhere.com/path.find.path.txt", resourcePath);
+
+        resourcePathFinder.findResourcePath(request, incomingUri);
+        resourcePathFinder.invalidate("/content/somewhere/us/en/path");
+        resourcePathFinder.findResourcePath(request, incomingUri);
+
+        verify(client, times(2)).target("http://somewhere.com/path.find.path.txt");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAsyncLookupCompletesFromCallback() throws Exception {
+        String incomingUri = "http://somewhere.com/path.html";
+        String resourcePath = "/content/somewhere/us/en/path";
+        Client client = mockClient("http://somewhere.com/path.find.path.txt", resourcePath);
+
+        Builder mockBuilder = client.target("http://somewhere.com/path.find.path.txt").request();
+        Response mockResponse = mockBuilder.get();
+        AsyncInvoker asyncInvoker = mock(AsyncInvoker.class);
+        when(asyncInvoker.get(any(InvocationCallback.class))).thenAnswer(invocation -> {
+            ((InvocationCallback<Response>) invocation.getArguments()[0]).completed(mockResponse);
+            return null;
+        });
+        when(mockBuilder.async()).thenReturn(asyncInvoker);
+
+        String returnedPath = resourcePathFinder.findResourcePathAsync(request, incomingUri).get();
+
+        assertThat(returnedPath, is(equalTo(resourcePath)));
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(equalTo(resourcePath)));
+        assertThat(resourcePathFinder.getCacheHits(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void testLocalResolutionSkipsPublisher() throws Exception {
+        activateLocalResolution();
+        String incomingUri = "http://somewhere.com/path.html";
+        String resourcePath = "/content/somewhere/us/en/path";
+        Client client = mockClient("http://somewhere.com/path.find.path.txt", resourcePath);
+
+        Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(resourcePath);
+        when(resourceLocator.locate(request, resourceResolver, incomingUri)).thenReturn(resource);
+
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(equalTo(resourcePath)));
+        verify(client, never()).target(anyString());
+    }
+
+    @Test
+    public void testLocalMissFallsBackToPublisher() throws Exception {
+        activateLocalResolution();
+        String incomingUri = "http://somewhere.com/path.html";
+        String resourcePath = "/content/somewhere/us/en/path";
+        Client client = mockClient("http://somewhere.com/path.find.path.txt", resourcePath);
+
+        assertThat(resourcePathFinder.findResourcePath(request, incomingUri), is(equalTo(resourcePath)));
+        verify(client).target("http://somewhere.com/path.find.path.txt");
+    }
+
+    private void activateLocalResolution() throws Exception {
+        resourcePathFinder.deactivate();
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(LOCAL_RESOLUTION, true);
+        resourcePathFinder.activate(config);
+        when(systemUtils.getResourceResolver("contentScoreSync")).thenReturn(resourceResolver);
+    }
+
+    private Client mockClient(final String target, final String resourcePath) {
+        return mockClient(target, resourcePath, 200);
+    }
+
+    private Client mockClient(final String target, final String resourcePath, final int status) {
+        WebTarget mockTarget = mockTarget(resourcePath, status);
+
+        Client client = mock(Client.class);
+        when(client.target(target)).thenReturn(mockTarget);
+
+        resourcePathFinder.client = client;
+        return client;
+    }
+
+    private WebTarget mockTarget(final String resourcePath, final int status) {
+        Response mockResponse = mock(Response.class);
+        when(mockResponse.getStatus()).thenReturn(status);
+        when(mockResponse.readEntity(String.class)).thenReturn(resourcePath);
+
+        Builder mockBuilder = mock(Builder.class);
+        when(mockBuilder.get()).thenReturn(mockResponse);
+
+        WebTarget mockTarget = mock(WebTarget.class);
+        when(mockTarget.request()).thenReturn(mockBuilder);
+        return mockTarget;
+    }
+}
@@ -0,0 +1,410 @@
+package org.cru.contentscoring.core.service.impl;
+
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.Replicator;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import com.day.cq.tagging.Tag;
+import com.day.cq.tagging.TagManager;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.settings.SlingSettingsService;
+import org.cru.contentscoring.core.service.ScoreMigrationService.MigrationListener;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.cru.contentscoring.core.util.SystemUtils.ResourceResolverCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.cru.contentscoring.core.service.impl.ScoreMigrationServiceImpl.BATCH_SIZE;
+import static org.cru.contentscoring.core.service.impl.ScoreMigrationServiceImpl.MAX_INDEX_WAIT;
+import static org.cru.contentscoring.core.service.impl.ScoreMigrationServiceImpl.REPLICATION_CHUNK_SIZE;
+import static org.cru.contentscoring.core.service.impl.ScoreMigrationServiceImpl.REPLICATION_RATE;
+import static org.cru.contentscoring.core.service.impl.ScoreMigrationServiceImpl.WORKERS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.aryEq;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ScoreMigrationServiceImplTest {
+    private static final String ROOT = "/content/site/us/en";
+
+    @Mock
+    private SlingSettingsService slingSettingsService;
+
+    @Mock
+    private Replicator replicator;
+
+    @Mock
+    private QueryBuilder queryBuilder;
+
+    @Mock
+    private SystemUtils systemUtils;
+
+    @Mock
+    private ResourceResolver resourceResolver;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private TagManager tagManager;
+
+    @Mock
+    private MigrationListener listener;
+
+    @Mock
+    private Query query;
+
+    @Mock
+    private SearchResult searchResult;
+
+    @InjectMocks
+    private ScoreMigrationServiceImpl scoreMigrationService;
+
+    @Before
+    public void setup() throws Exception {
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(WORKERS, 2);
+        config.put(REPLICATION_CHUNK_SIZE, 2);
+        config.put(REPLICATION_RATE, 1000.0);
+        scoreMigrationService.activate(config);
+
+        when(systemUtils.callWithPooledResourceResolver(eq("contentScoreSync"), any(ResourceResolverCallback.class)))
+            .thenAnswer(invocation ->
+                ((ResourceResolverCallback<?>) invocation.getArguments()[1]).call(resourceResolver));
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+        when(resourceResolver.adaptTo(TagManager.class)).thenReturn(tagManager);
+        when(tagManager.getTags(any(Resource.class))).thenReturn(new Tag[0]);
+        when(queryBuilder.createQuery(any(PredicateGroup.class), eq(session))).thenReturn(query);
+        when(query.getResult()).thenReturn(searchResult);
+        when(searchResult.getHits()).thenReturn(Collections.emptyList());
+        when(listener.getUnreplicatedPaths()).thenReturn(new String[0]);
+
+        Resource root = mockPage(ROOT);
+        Resource jcrContent = mock(Resource.class);
+        when(jcrContent.getName()).thenReturn("jcr:content");
+        List<Resource> children = ImmutableList.of(jcrContent, mockPage(ROOT + "/a"), mockPage(ROOT + "/b"));
+        when(root.getChildren()).thenReturn(children);
+        when(resourceResolver.getResource(ROOT)).thenReturn(root);
+    }
+
+    @After
+    public void tearDown() {
+        scoreMigrationService.deactivate();
+    }
+
+    @Test
+    public void testEverySubtreeIsMigratedSeparately() throws Exception {
+        assertThat(scoreMigrationService.migrate(ROOT, listener), is(equalTo(0L)));
+
+        ArgumentCaptor<PredicateGroup> predicates = ArgumentCaptor.forClass(PredicateGroup.class);
+        verify(queryBuilder, atLeast(2)).createQuery(predicates.capture(), eq(session));
+
+        List<String> paths = predicates.getAllValues()
+            .stream()
+            .map(predicateGroup -> predicateGroup.getByName("path").get("path"))
+            .collect(Collectors.toList());
+        assertThat(paths, hasItems(ROOT + "/a", ROOT + "/b"));
+        assertThat(predicates.getValue().getByName("path").get("self"), is(equalTo("true")));
+        verify(listener).onSubtreeMigrated(ROOT + "/a");
+        verify(listener).onSubtreeMigrated(ROOT + "/b");
+    }
+
+    @Test
+    public void testMigratedSubtreesAreSkipped() throws Exception {
+        when(listener.isMigrated(ROOT + "/a")).thenReturn(true);
+
+        scoreMigrationService.migrate(ROOT, listener);
+
+        ArgumentCaptor<PredicateGroup> predicates = ArgumentCaptor.forClass(PredicateGroup.class);
+        verify(queryBuilder).createQuery(predicates.capture(), eq(session));
+        assertThat(predicates.getValue().getByName("path").get("path"), is(equalTo(ROOT + "/b")));
+    }
+
+    @Test
+    public void testActivatedPagesAreReplicatedInChunks() throws Exception {
+        when(slingSettingsService.getRunModes()).thenReturn(ImmutableSet.of("author"));
+        List<Hit> hits = ImmutableList.of(
+            mockHit(ROOT + "/a", "Activate"),
+            mockHit(ROOT + "/a/one", "Activate"),
+            mockHit(ROOT + "/a/two", "Activate"),
+            mockHit(ROOT + "/a/three", "Deactivate"));
+        when(searchResult.getHits()).thenReturn(hits).thenReturn(Collections.emptyList());
+
+        assertThat(scoreMigrationService.migrate(ROOT, listener), is(equalTo(4L)));
+
+        verify(listener).onBatch(4, 0);
+        verify(replicator, times(2)).replicate(
+            eq(session),
+            eq(ReplicationActionType.ACTIVATE),
+            any(String[].class),
+            any(ReplicationOptions.class));
+    }
+
+    @Test
+    public void testFailedReplicationIsReplayedOnResume() throws Exception {
+        when(slingSettingsService.getRunModes()).thenReturn(ImmutableSet.of("author"));
+        migrateOnly(ROOT + "/a");
+        Hit hit = mockHit(ROOT + "/a/one", "Activate");
+        when(searchResult.getHits()).thenReturn(ImmutableList.of(hit)).thenReturn(Collections.emptyList());
+        doThrow(new ReplicationException("Publisher is down")).doNothing().when(replicator).replicate(
+            eq(session),
+            eq(ReplicationActionType.ACTIVATE),
+            any(String[].class),
+            any(ReplicationOptions.class));
+
+        try {
+            scoreMigrationService.migrate(ROOT, listener);
+            fail();
+        } catch (RepositoryException e) {
+            // expected
+        }
+
+        // The subtree isn't checkpointed, and the page that lost its score is kept for the next run
+        verify(listener).onReplicationFailed(aryEq(new String[] { ROOT + "/a/one" }));
+        verify(listener, never()).onSubtreeMigrated(anyString());
+
+        when(listener.getUnreplicatedPaths()).thenReturn(new String[] { ROOT + "/a/one" });
+
+        assertThat(scoreMigrationService.migrate(ROOT, listener), is(equalTo(0L)));
+
+        verify(replicator, times(2)).replicate(
+            eq(session),
+            eq(ReplicationActionType.ACTIVATE),
+            aryEq(new String[] { ROOT + "/a/one" }),
+            any(ReplicationOptions.class));
+        verify(listener).onReplicated(aryEq(new String[] { ROOT + "/a/one" }));
+        verify(listener).onSubtreeMigrated(ROOT + "/a");
+    }
+
+    @Test(expected = RepositoryException.class)
+    public void testFailedSubtreeFailsMigration() throws Exception {
+        when(queryBuilder.createQuery(any(PredicateGroup.class), eq(session)))
+            .thenThrow(new IllegalStateException("Query failed"));
+
+        scoreMigrationService.migrate(ROOT, listener);
+    }
+
+    @Test
+    public void testSubtreeWaitsForIndexToCatchUp() throws Exception {
+        activate(5000L);
+        Hit stale = mockStaleHit(ROOT + "/a/migrated");
+        when(searchResult.getHits()).thenReturn(ImmutableList.of(stale)).thenReturn(Collections.emptyList());
+
+        scoreMigrationService.migrate(ROOT, listener);
+
+        verify(listener).onSubtreeMigrated(ROOT + "/a");
+        verify(listener).onSubtreeMigrated(ROOT + "/b");
+    }
+
+    @Test
+    public void testSubtreeFailsWhenIndexDoesNotCatchUp() throws Exception {
+        activate(0L);
+        Hit stale = mockStaleHit(ROOT + "/a/migrated");
+        when(searchResult.getHits()).thenReturn(ImmutableList.of(stale));
+
+        try {
+            scoreMigrationService.migrate(ROOT, listener);
+            fail();
+        } catch (RepositoryException e) {
+            // expected
+        }
+
+        verify(listener, never()).onSubtreeMigrated(anyString());
+    }
+
+    @Test
+    public void testPageThatKeepsFailingIsGivenUpOn() throws Exception {
+        Hit failing = mockHit(ROOT + "/a/broken", "Activate");
+        Node node = resourceResolver.getResource(ROOT + "/a/broken").getChild("jcr:content").adaptTo(Node.class);
+        when(node.getProperty("score")).thenThrow(new RepositoryException("Broken page"));
+        when(searchResult.getHits()).thenReturn(ImmutableList.of(failing));
+
+        try {
+            scoreMigrationService.migrate(ROOT, listener);
+            fail();
+        } catch (RepositoryException e) {
+            // expected
+        }
+
+        // Given up on after three attempts, in each of the two subtrees that found it
+        verify(listener, times(2)).onBatch(0, 1);
+        verify(listener, never()).onSubtreeMigrated(anyString());
+    }
+
+    @Test
+    public void testSubtreeIsMigratedInBatches() throws Exception {
+        activate(5000L, 2);
+        migrateOnly(ROOT + "/a");
+        Hit one = mockHit(ROOT + "/a/one", "Activate");
+        Hit two = mockHit(ROOT + "/a/two", "Activate");
+        Hit three = mockHit(ROOT + "/a/three", "Activate");
+        when(searchResult.getHits())
+            .thenReturn(ImmutableList.of(one, two))
+            .thenReturn(ImmutableList.of(three))
+            .thenReturn(Collections.emptyList());
+
+        assertThat(scoreMigrationService.migrate(ROOT, listener), is(equalTo(3L)));
+
+        verify(listener).onBatch(2, 0);
+        verify(listener).onBatch(1, 0);
+        verify(searchResult, times(3)).getHits();
+        verify(listener).onSubtreeMigrated(ROOT + "/a");
+    }
+
+    @Test
+    public void testAlreadyMigratedHitsAreSkipped() throws Exception {
+        migrateOnly(ROOT + "/a");
+        Hit stale = mockStaleHit(ROOT + "/a/migrated");
+        Hit hit = mockHit(ROOT + "/a/page", "Activate");
+        when(searchResult.getHits()).thenReturn(ImmutableList.of(stale, hit)).thenReturn(Collections.emptyList());
+
+        Resource pageContent = resourceResolver.getResource(ROOT + "/a/page").getChild("jcr:content");
+        Resource migratedContent = resourceResolver.getResource(ROOT + "/a/migrated").getChild("jcr:content");
+
+        assertThat(scoreMigrationService.migrate(ROOT, listener), is(equalTo(1L)));
+
+        // The page that was migrated means the batch made progress, so there is no need to wait for the index
+        verify(listener).onBatch(1, 0);
+        verify(tagManager).setTags(eq(pageContent), any(Tag[].class), eq(false));
+        verify(tagManager, never()).setTags(eq(migratedContent), any(Tag[].class), eq(false));
+        verify(listener).onSubtreeMigrated(ROOT + "/a");
+    }
+
+    @Test
+    public void testSubtreeStopsWhenOnlyGivenUpPagesAreLeft() throws Exception {
+        activate(5000L, 1);
+        migrateOnly(ROOT + "/a");
+        Hit failing = mockHit(ROOT + "/a/broken", "Activate");
+        Node node = resourceResolver.getResource(ROOT + "/a/broken").getChild("jcr:content").adaptTo(Node.class);
+        when(node.getProperty("score")).thenThrow(new RepositoryException("Broken page"));
+        Hit hit = mockHit(ROOT + "/a/page", "Activate");
+        when(searchResult.getHits())
+            .thenReturn(ImmutableList.of(failing))
+            .thenReturn(ImmutableList.of(failing))
+            .thenReturn(ImmutableList.of(failing))
+            .thenReturn(ImmutableList.of(failing, hit))
+            .thenReturn(ImmutableList.of(failing));
+
+        try {
+            scoreMigrationService.migrate(ROOT, listener);
+            fail();
+        } catch (RepositoryException e) {
+            // expected
+        }
+
+        // The page given up on doesn't take the place of the next one, and no progress ends the subtree
+        verify(listener).onBatch(0, 1);
+        verify(listener).onBatch(1, 0);
+        verify(searchResult, times(5)).getHits();
+        verify(listener, never()).onSubtreeMigrated(anyString());
+    }
+
+    private void activate(final long maxIndexWait) {
+        activate(maxIndexWait, 500);
+    }
+
+    private void activate(final long maxIndexWait, final int batchSize) {
+        scoreMigrationService.deactivate();
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(WORKERS, 2);
+        config.put(BATCH_SIZE, batchSize);
+        config.put(REPLICATION_CHUNK_SIZE, 2);
+        config.put(REPLICATION_RATE, 1000.0);
+        config.put(MAX_INDEX_WAIT, maxIndexWait);
+        scoreMigrationService.activate(config);
+    }
+
+    /**
+     * Leaves the root with a single subtree, so the hits of the search result go to one worker in order.
+     */
+    private void migrateOnly(final String subtreePath) {
+        Resource root = resourceResolver.getResource(ROOT);
+        List<Resource> children = ImmutableList.of(mockPage(subtreePath));
+        when(root.getChildren()).thenReturn(children);
+    }
+
+    /**
+     * A page that was migrated already, but is still found because the index hasn't caught up.
+     */
+    private Hit mockStaleHit(final String path) throws Exception {
+        Resource page = mockPage(path);
+        when(resourceResolver.getResource(path)).thenReturn(page);
+
+        Hit hit = mock(Hit.class);
+        when(hit.getPath()).thenReturn(path);
+        return hit;
+    }
+
+    private Hit mockHit(final String path, final String lastReplicationAction) throws Exception {
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put("score", "3");
+        properties.put("cq:lastReplicationAction", lastReplicationAction);
+
+        Resource pageContent = mock(Resource.class);
+        when(pageContent.getValueMap()).thenReturn(new ValueMapDecorator(properties));
+        Node node = mock(Node.class);
+        when(node.getProperty("score")).thenReturn(mock(Property.class));
+        when(pageContent.adaptTo(Node.class)).thenReturn(node);
+
+        Resource page = mock(Resource.class);
+        when(page.getPath()).thenReturn(path);
+        when(page.getResourceType()).thenReturn("cq:Page");
+        when(page.getChild("jcr:content")).thenReturn(pageContent);
+        when(resourceResolver.getResource(path)).thenReturn(page);
+
+        Hit hit = mock(Hit.class);
+        when(hit.getPath()).thenReturn(path);
+        return hit;
+    }
+
+    private Resource mockPage(final String path) {
+        Resource page = mock(Resource.class);
+        when(page.getPath()).thenReturn(path);
+        when(page.getName()).thenReturn(path.substring(path.lastIndexOf('/') + 1));
+        when(page.getResourceType()).thenReturn("cq:Page");
+
+        Resource pageContent = mock(Resource.class);
+        when(pageContent.getValueMap()).thenReturn(mock(ValueMap.class));
+        when(page.getChild("jcr:content")).thenReturn(pageContent);
+        return page;
+    }
+}
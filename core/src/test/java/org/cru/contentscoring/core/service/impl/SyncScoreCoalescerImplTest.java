@@ -0,0 +1,218 @@
+package org.cru.contentscoring.core.service.impl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.cru.contentscoring.core.service.SyncScoreExecutor;
+import org.cru.contentscoring.core.service.SyncScoreService;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.cru.contentscoring.core.util.SystemUtils.ResourceResolverCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.List;
+import java.util.Map;
+
+import static org.cru.contentscoring.core.service.impl.SyncScoreCoalescerImpl.MAX_ATTEMPTS;
+import static org.cru.contentscoring.core.service.impl.SyncScoreCoalescerImpl.MAX_PENDING;
+import static org.cru.contentscoring.core.service.impl.SyncScoreCoalescerImpl.WINDOW;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SyncScoreCoalescerImplTest {
+    private static final String PATH = "/content/site/us/en/page";
+
+    @Mock
+    private SyncScoreService syncScoreService;
+
+    @Mock
+    private SyncScoreExecutor syncScoreExecutor;
+
+    @Mock
+    private SystemUtils systemUtils;
+
+    @Mock
+    private ResourceResolver resourceResolver;
+
+    @Mock
+    private Session session;
+
+    @InjectMocks
+    private SyncScoreCoalescerImpl coalescer;
+
+    @Before
+    public void setup() throws Exception {
+        Map<String, Object> config = Maps.newHashMap();
+        // Flushes are triggered by the tests
+        config.put(WINDOW, 60L * 1000L);
+        config.put(MAX_PENDING, 2);
+        coalescer.activate(config);
+
+        when(systemUtils.callWithPooledResourceResolver(eq("contentScoreSync"), any(ResourceResolverCallback.class)))
+            .thenAnswer(invocation ->
+                ((ResourceResolverCallback<?>) invocation.getArguments()[1]).call(resourceResolver));
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+        when(session.hasPendingChanges()).thenReturn(true);
+        when(syncScoreExecutor.trySubmit(any(Runnable.class))).thenAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return true;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        coalescer.deactivate();
+    }
+
+    @Test
+    public void testOnlyLatestScoreIsWritten() throws Exception {
+        coalescer.offer(PATH, 3);
+        coalescer.offer(PATH, 4);
+        coalescer.offer(PATH, 5);
+        coalescer.flush();
+
+        verify(syncScoreService).stageScore(resourceResolver, 5, PATH);
+        verify(syncScoreService, never()).stageScore(resourceResolver, 3, PATH);
+        verify(syncScoreService, never()).stageScore(resourceResolver, 4, PATH);
+        assertThat(coalescer.getCoalescedCount(), is(equalTo(2L)));
+    }
+
+    @Test
+    public void testPendingPagesAreSavedTogether() throws Exception {
+        coalescer.offer(PATH, 3);
+        coalescer.offer(PATH + "-2", 4);
+        coalescer.flush();
+
+        verify(syncScoreService, times(2)).stageScore(any(ResourceResolver.class), anyInt(), anyString());
+        verify(session, times(1)).save();
+        assertThat(coalescer.getPendingCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testScoresAreKeptWhenExecutorIsSaturated() throws Exception {
+        when(syncScoreExecutor.trySubmit(any(Runnable.class))).thenReturn(false);
+
+        coalescer.offer(PATH, 3);
+        coalescer.flush();
+
+        verify(syncScoreService, never()).stageScore(any(ResourceResolver.class), anyInt(), anyString());
+        assertThat(coalescer.getPendingCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testNewPagesAreRejectedWhenFull() {
+        assertThat(coalescer.offer(PATH, 3), is(equalTo(true)));
+        assertThat(coalescer.offer(PATH + "-2", 3), is(equalTo(true)));
+
+        assertThat(coalescer.offer(PATH + "-3", 3), is(equalTo(false)));
+        assertThat(coalescer.offer(PATH, 4), is(equalTo(true)));
+    }
+
+    @Test
+    public void testFailingPageDoesNotDropTheOthers() throws Exception {
+        when(syncScoreService.stageScore(resourceResolver, 3, PATH)).thenThrow(new RepositoryException("broken"));
+
+        coalescer.offer(PATH, 3);
+        coalescer.offer(PATH + "-2", 4);
+        coalescer.flush();
+
+        // The good page is staged again after the session is discarded
+        verify(session).refresh(false);
+        verify(syncScoreService, times(2)).stageScore(resourceResolver, 4, PATH + "-2");
+        verify(session, times(1)).save();
+        assertThat(coalescer.getPendingCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testFailedSaveIsRetriedThenRequeued() throws Exception {
+        doThrow(new RepositoryException("conflict")).when(session).save();
+
+        coalescer.offer(PATH, 3);
+        coalescer.flush();
+
+        verify(session, times(2)).save();
+        verify(syncScoreService, times(2)).stageScore(resourceResolver, 3, PATH);
+        assertThat(coalescer.getPendingCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testPageIsGivenUpOnAfterMaxAttempts() throws Exception {
+        doThrow(new RepositoryException("conflict")).when(session).save();
+
+        coalescer.offer(PATH, 3);
+        for (int i = 1; i < MAX_ATTEMPTS; i++) {
+            coalescer.flush();
+            assertThat(coalescer.getPendingCount(), is(equalTo(1)));
+        }
+        coalescer.flush();
+
+        assertThat(coalescer.getPendingCount(), is(equalTo(0)));
+        verify(session, times(2 * MAX_ATTEMPTS)).save();
+
+        coalescer.flush();
+        verify(session, times(2 * MAX_ATTEMPTS)).save();
+    }
+
+    @Test
+    public void testAttemptsAreResetWhenPageIsWritten() throws Exception {
+        doThrow(new RepositoryException("conflict")).when(session).save();
+        coalescer.offer(PATH, 3);
+        for (int i = 1; i < MAX_ATTEMPTS; i++) {
+            coalescer.flush();
+        }
+
+        doNothing().when(session).save();
+        coalescer.flush();
+        assertThat(coalescer.getPendingCount(), is(equalTo(0)));
+
+        // A later failure starts counting again
+        doThrow(new RepositoryException("conflict")).when(session).save();
+        coalescer.offer(PATH, 4);
+        coalescer.flush();
+        assertThat(coalescer.getPendingCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testPageIsNotWrittenByOverlappingFlushes() throws Exception {
+        List<Runnable> tasks = Lists.newArrayList();
+        when(syncScoreExecutor.trySubmit(any(Runnable.class))).thenAnswer(invocation -> {
+            tasks.add((Runnable) invocation.getArguments()[0]);
+            return true;
+        });
+
+        coalescer.offer(PATH, 3);
+        coalescer.flush();
+        coalescer.offer(PATH, 4);
+        coalescer.flush();
+
+        assertThat(tasks.size(), is(equalTo(1)));
+        assertThat(coalescer.getPendingCount(), is(equalTo(1)));
+
+        tasks.get(0).run();
+        coalescer.flush();
+
+        assertThat(tasks.size(), is(equalTo(2)));
+        tasks.get(1).run();
+        verify(syncScoreService).stageScore(resourceResolver, 3, PATH);
+        verify(syncScoreService).stageScore(resourceResolver, 4, PATH);
+    }
+}
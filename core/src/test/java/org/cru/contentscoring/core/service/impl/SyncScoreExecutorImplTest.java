@@ -0,0 +1,101 @@
+package org.cru.contentscoring.core.service.impl;
+
+import com.google.common.collect.Maps;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.cru.contentscoring.core.service.impl.SyncScoreExecutorImpl.QUEUE_CAPACITY;
+import static org.cru.contentscoring.core.service.impl.SyncScoreExecutorImpl.RETRY_AFTER;
+import static org.cru.contentscoring.core.service.impl.SyncScoreExecutorImpl.SHUTDOWN_TIMEOUT;
+import static org.cru.contentscoring.core.service.impl.SyncScoreExecutorImpl.WORKER_THREADS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SyncScoreExecutorImplTest {
+    private SyncScoreExecutorImpl executor = new SyncScoreExecutorImpl();
+    private CountDownLatch workerStarted = new CountDownLatch(1);
+    private CountDownLatch release = new CountDownLatch(1);
+    private CountDownLatch workerStopped = new CountDownLatch(1);
+    private AtomicInteger completed = new AtomicInteger();
+
+    @Before
+    public void setup() {
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(WORKER_THREADS, 1);
+        config.put(QUEUE_CAPACITY, 1);
+        config.put(RETRY_AFTER, 15);
+        config.put(SHUTDOWN_TIMEOUT, 10L);
+        executor.activate(config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        executor.deactivate();
+    }
+
+    @Test
+    public void testTaskIsRejectedWhenQueueIsFull() throws Exception {
+        fillExecutor();
+
+        assertThat(executor.trySubmit(completed::incrementAndGet), is(equalTo(false)));
+        assertThat(executor.getRejectedTaskCount(), is(equalTo(1L)));
+        assertThat(executor.getBacklogDepth(), is(equalTo(1)));
+        assertThat(executor.getRetryAfterSeconds(), is(equalTo(15)));
+    }
+
+    @Test
+    public void testDeactivateDrainsQueuedTasks() throws Exception {
+        fillExecutor();
+
+        release.countDown();
+        executor.deactivate();
+
+        assertThat(completed.get(), is(equalTo(2)));
+    }
+
+    @Test
+    public void testDeactivateDropsQueuedTasksAfterTimeout() throws Exception {
+        executor.deactivate();
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(WORKER_THREADS, 1);
+        config.put(QUEUE_CAPACITY, 1);
+        config.put(SHUTDOWN_TIMEOUT, 0L);
+        executor.activate(config);
+        fillExecutor();
+
+        executor.deactivate();
+
+        // The blocked task is interrupted and the queued one never runs
+        assertThat(workerStopped.await(10, TimeUnit.SECONDS), is(equalTo(true)));
+        assertThat(completed.get(), is(equalTo(1)));
+        assertThat(executor.trySubmit(completed::incrementAndGet), is(equalTo(false)));
+    }
+
+    /**
+     * Occupies the only worker until {@link #release} is counted down and fills the queue behind it.
+     */
+    private void fillExecutor() throws InterruptedException {
+        assertThat(executor.trySubmit(this::block), is(equalTo(true)));
+        assertThat(workerStarted.await(10, TimeUnit.SECONDS), is(equalTo(true)));
+        assertThat(executor.trySubmit(completed::incrementAndGet), is(equalTo(true)));
+    }
+
+    private void block() {
+        workerStarted.countDown();
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        completed.incrementAndGet();
+        workerStopped.countDown();
+    }
+}
@@ -6,6 +6,9 @@ import com.day.crx.JcrConstants;
 import com.google.common.collect.Maps;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.cru.contentscoring.core.models.SyncStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -18,20 +21,26 @@ import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.Session;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Map;
 
+import static org.cru.contentscoring.core.service.impl.SyncScoreServiceImpl.DIRECT_TAG_WRITE;
 import static org.cru.contentscoring.core.service.impl.SyncScoreServiceImpl.SCALE_OF_BELIEF_TAG_PREFIX;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -128,6 +137,195 @@ public class SyncScoreServiceImplTest {
         assertSuccessful(propertyMap, new Tag[] { existingTag, scoreTag });
     }
 
+    @Test
+    public void testUnchangedScoreIsNotWritten() throws Exception {
+        Resource resource = mock(Resource.class);
+        when(resourceResolver.getResource(ABSOLUTE_PATH)).thenReturn(resource);
+
+        Tag existingTag = mock(Tag.class);
+        when(existingTag.getTagID()).thenReturn("namespace:someTag/1");
+
+        Tag existingScoreTag = mock(Tag.class);
+        when(existingScoreTag.getTagID()).thenReturn(SCALE_OF_BELIEF_TAG_PREFIX + SCORE);
+
+        when(tagManager.getTags(jcrContent)).thenReturn(new Tag[] { existingTag, existingScoreTag });
+
+        Map<String, Object> propertyMap = Maps.newHashMap();
+        mockForUpdateScore(resource, propertyMap);
+
+        SyncStatus status = syncScoreService.stageScore(resourceResolver, SCORE, ABSOLUTE_PATH);
+
+        assertThat(status, is(equalTo(SyncStatus.UNCHANGED)));
+        assertThat(propertyMap.get("cq:lastModified"), is(nullValue()));
+        verify(tagManager, never()).setTags(any(Resource.class), any(Tag[].class), anyBoolean());
+        assertThat(syncScoreService.getUnchangedScores(), is(equalTo(1L)));
+        assertThat(syncScoreService.getChangedScores(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void testDuplicateScoreTagsAreRewritten() throws Exception {
+        Resource resource = mock(Resource.class);
+        when(resourceResolver.getResource(ABSOLUTE_PATH)).thenReturn(resource);
+
+        Tag existingScoreTag = mock(Tag.class);
+        when(existingScoreTag.getTagID()).thenReturn(SCALE_OF_BELIEF_TAG_PREFIX + SCORE);
+
+        Tag otherScoreTag = mock(Tag.class);
+        when(otherScoreTag.getTagID()).thenReturn(SCALE_OF_BELIEF_TAG_PREFIX + 2);
+
+        when(tagManager.getTags(jcrContent)).thenReturn(new Tag[] { existingScoreTag, otherScoreTag });
+
+        Tag scoreTag = mock(Tag.class);
+        when(scoreTag.getTagID()).thenReturn(SCALE_OF_BELIEF_TAG_PREFIX + SCORE);
+        when(tagManager.resolve(SCALE_OF_BELIEF_TAG_PREFIX + SCORE)).thenReturn(scoreTag);
+
+        Map<String, Object> propertyMap = Maps.newHashMap();
+        mockForUpdateScore(resource, propertyMap);
+
+        syncScoreService.syncScore(resourceResolver, SCORE, ABSOLUTE_PATH);
+
+        assertSuccessful(propertyMap, new Tag[] { scoreTag });
+        assertThat(syncScoreService.getChangedScores(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void testScoreTagIdsAreCachedUntilTaxonomyChanges() throws Exception {
+        activateDirectTagWrite();
+        Resource resource = mock(Resource.class);
+        when(resourceResolver.getResource(ABSOLUTE_PATH)).thenReturn(resource);
+        when(jcrContent.getValueMap()).thenReturn(new ValueMapDecorator(Maps.newHashMap()));
+
+        Tag scoreTag = mock(Tag.class);
+        when(scoreTag.getTagID()).thenReturn(SCALE_OF_BELIEF_TAG_PREFIX + SCORE);
+        when(tagManager.resolve(SCALE_OF_BELIEF_TAG_PREFIX + SCORE)).thenReturn(scoreTag);
+
+        mockForUpdateScore(resource, Maps.newHashMap());
+
+        syncScoreService.stageScore(resourceResolver, SCORE, ABSOLUTE_PATH);
+        syncScoreService.stageScore(resourceResolver, SCORE, ABSOLUTE_PATH);
+        verify(tagManager, times(1)).resolve(SCALE_OF_BELIEF_TAG_PREFIX + SCORE);
+
+        syncScoreService.onChange(Collections.emptyList());
+        syncScoreService.stageScore(resourceResolver, SCORE, ABSOLUTE_PATH);
+        verify(tagManager, times(2)).resolve(SCALE_OF_BELIEF_TAG_PREFIX + SCORE);
+    }
+
+    @Test
+    public void testScoreTagIsResolvedWithEachCallersSession() throws Exception {
+        Resource resource = mock(Resource.class);
+        when(resourceResolver.getResource(ABSOLUTE_PATH)).thenReturn(resource);
+        when(tagManager.getTags(jcrContent)).thenReturn(new Tag[0]);
+
+        Tag scoreTag = mock(Tag.class);
+        when(scoreTag.getTagID()).thenReturn(SCALE_OF_BELIEF_TAG_PREFIX + SCORE);
+        when(tagManager.resolve(SCALE_OF_BELIEF_TAG_PREFIX + SCORE)).thenReturn(scoreTag);
+        mockForUpdateScore(resource, Maps.newHashMap());
+        syncScoreService.stageScore(resourceResolver, SCORE, ABSOLUTE_PATH);
+
+        ResourceResolver otherResolver = mock(ResourceResolver.class);
+        TagManager otherTagManager = mock(TagManager.class);
+        when(otherResolver.adaptTo(TagManager.class)).thenReturn(otherTagManager);
+        when(otherResolver.getResource(ABSOLUTE_PATH)).thenReturn(resource);
+        when(otherTagManager.getTags(jcrContent)).thenReturn(new Tag[0]);
+        Tag otherScoreTag = mock(Tag.class);
+        when(otherScoreTag.getTagID()).thenReturn(SCALE_OF_BELIEF_TAG_PREFIX + SCORE);
+        when(otherTagManager.resolve(SCALE_OF_BELIEF_TAG_PREFIX + SCORE)).thenReturn(otherScoreTag);
+
+        syncScoreService.stageScore(otherResolver, SCORE, ABSOLUTE_PATH);
+
+        verify(otherTagManager).setTags(eq(jcrContent), aryEq(new Tag[] { otherScoreTag }), eq(false));
+    }
+
+    @Test
+    public void testTagPathsAreNormalizedBeforeDirectWrite() throws Exception {
+        activateDirectTagWrite();
+        Resource resource = mock(Resource.class);
+        when(resourceResolver.getResource(ABSOLUTE_PATH)).thenReturn(resource);
+
+        Map<String, Object> contentProperties = Maps.newHashMap();
+        contentProperties.put("cq:tags", new String[] {
+            "namespace:someTag/1",
+            "/content/cq:tags/namespace/someTag/1",
+            "/etc/tags/target-audience/scale-of-belief/2" });
+        when(jcrContent.getValueMap()).thenReturn(new ValueMapDecorator(contentProperties));
+
+        Tag scoreTag = mock(Tag.class);
+        when(scoreTag.getTagID()).thenReturn(SCALE_OF_BELIEF_TAG_PREFIX + SCORE);
+        when(tagManager.resolve(SCALE_OF_BELIEF_TAG_PREFIX + SCORE)).thenReturn(scoreTag);
+
+        mockForUpdateScore(resource, Maps.newHashMap());
+
+        syncScoreService.syncScore(resourceResolver, SCORE, ABSOLUTE_PATH);
+
+        verify(jcrContent.adaptTo(Node.class)).setProperty(
+            eq("cq:tags"),
+            aryEq(new String[] { "namespace:someTag/1", SCALE_OF_BELIEF_TAG_PREFIX + SCORE }));
+    }
+
+    @Test
+    public void testScoreTagStoredAsPathIsUnchanged() throws Exception {
+        activateDirectTagWrite();
+        Resource resource = mock(Resource.class);
+        when(resourceResolver.getResource(ABSOLUTE_PATH)).thenReturn(resource);
+
+        Map<String, Object> contentProperties = Maps.newHashMap();
+        contentProperties.put("cq:tags", new String[] { "/content/cq:tags/target-audience/scale-of-belief/" + SCORE });
+        when(jcrContent.getValueMap()).thenReturn(new ValueMapDecorator(contentProperties));
+
+        mockForUpdateScore(resource, Maps.newHashMap());
+
+        SyncStatus status = syncScoreService.stageScore(resourceResolver, SCORE, ABSOLUTE_PATH);
+
+        assertThat(status, is(equalTo(SyncStatus.UNCHANGED)));
+    }
+
+    @Test
+    public void testNormalizeTagId() {
+        assertThat(SyncScoreServiceImpl.normalizeTagId("namespace:some/tag"), is(equalTo("namespace:some/tag")));
+        assertThat(
+            SyncScoreServiceImpl.normalizeTagId("/content/cq:tags/namespace/some/tag"),
+            is(equalTo("namespace:some/tag")));
+        assertThat(SyncScoreServiceImpl.normalizeTagId("/etc/tags/namespace/tag"), is(equalTo("namespace:tag")));
+        assertThat(SyncScoreServiceImpl.normalizeTagId("/etc/tags/namespace"), is(equalTo("namespace:")));
+    }
+
+    @Test
+    public void testScoreIsWrittenDirectlyToTags() throws Exception {
+        activateDirectTagWrite();
+
+        Resource resource = mock(Resource.class);
+        when(resourceResolver.getResource(ABSOLUTE_PATH)).thenReturn(resource);
+
+        Map<String, Object> contentProperties = Maps.newHashMap();
+        contentProperties.put("cq:tags", new String[] { "namespace:someTag/1", SCALE_OF_BELIEF_TAG_PREFIX + 2 });
+        ValueMap valueMap = new ValueMapDecorator(contentProperties);
+        when(jcrContent.getValueMap()).thenReturn(valueMap);
+
+        Tag scoreTag = mock(Tag.class);
+        when(scoreTag.getTagID()).thenReturn(SCALE_OF_BELIEF_TAG_PREFIX + SCORE);
+        when(tagManager.resolve(SCALE_OF_BELIEF_TAG_PREFIX + SCORE)).thenReturn(scoreTag);
+
+        Map<String, Object> propertyMap = Maps.newHashMap();
+        mockForUpdateScore(resource, propertyMap);
+
+        syncScoreService.syncScore(resourceResolver, SCORE, ABSOLUTE_PATH);
+
+        Node contentNode = jcrContent.adaptTo(Node.class);
+        verify(contentNode).setProperty(
+            eq("cq:tags"),
+            aryEq(new String[] { "namespace:someTag/1", SCALE_OF_BELIEF_TAG_PREFIX + SCORE }));
+        verify(session).save();
+        verify(tagManager, never()).getTags(any(Resource.class));
+        verify(tagManager, never()).setTags(any(Resource.class), any(Tag[].class));
+        assertThat(propertyMap.get("cq:lastModifiedBy"), is(equalTo("scale-of-belief")));
+    }
+
+    private void activateDirectTagWrite() {
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(DIRECT_TAG_WRITE, true);
+        syncScoreService.activate(config);
+    }
+
     private void mockForUpdateScore(final Resource resource, final Map<String, Object> propertyMap) throws Exception {
         when(resource.getPath()).thenReturn(ABSOLUTE_PATH);
         when(resource.getChild("jcr:content")).thenReturn(jcrContent);
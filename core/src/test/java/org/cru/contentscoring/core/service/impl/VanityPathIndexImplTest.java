@@ -0,0 +1,232 @@
+package org.cru.contentscoring.core.service.impl;
+
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.cru.contentscoring.core.util.SystemUtils.ResourceResolverCallback;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.jcr.Session;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VanityPathIndexImplTest {
+    private static final String SITE = "/content/site/us/en";
+
+    @Mock
+    private QueryBuilder queryBuilder;
+
+    @Mock
+    private SystemUtils systemUtils;
+
+    @Mock
+    private ResourceResolver resourceResolver;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Query query;
+
+    @Mock
+    private SearchResult searchResult;
+
+    @InjectMocks
+    private VanityPathIndexImpl vanityPathIndex;
+
+    // Not built in setup, for the tests of the background build
+    @InjectMocks
+    private VanityPathIndexImpl unbuiltIndex;
+
+    @Before
+    public void setup() throws Exception {
+        when(systemUtils.callWithPooledResourceResolver(eq("contentScoreSync"), any(ResourceResolverCallback.class)))
+            .thenAnswer(invocation ->
+                ((ResourceResolverCallback<?>) invocation.getArguments()[1]).call(resourceResolver));
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+        when(queryBuilder.createQuery(any(PredicateGroup.class), eq(session))).thenReturn(query);
+        when(query.getResult()).thenReturn(searchResult);
+
+        List<Hit> hits = ImmutableList.of(
+            mockHit(SITE + "/give", "/give"),
+            mockHit(SITE + "/about", "/about", "/who-we-are"),
+            mockHit(SITE + "/about-us", "/about"));
+        when(searchResult.getHits()).thenReturn(hits);
+
+        vanityPathIndex.build();
+    }
+
+    @Test
+    public void testIndexIsBuiltFromQuery() {
+        assertThat(vanityPathIndex.isReady(), is(equalTo(true)));
+        assertThat(vanityPathIndex.getPagePaths("/give"), is(equalTo(ImmutableSet.of(SITE + "/give"))));
+        assertThat(vanityPathIndex.getPagePaths("/who-we-are"), is(equalTo(ImmutableSet.of(SITE + "/about"))));
+        assertThat(vanityPathIndex.getPagePaths("/missing").isEmpty(), is(equalTo(true)));
+    }
+
+    @Test
+    public void testAmbiguousVanityPathIsTracked() {
+        assertThat(vanityPathIndex.isAmbiguous("/about"), is(equalTo(true)));
+        assertThat(vanityPathIndex.isAmbiguous("/give"), is(equalTo(false)));
+    }
+
+    @Test
+    public void testChangedVanityPathIsUpdated() {
+        mockPageContent(SITE + "/about-us", "/about-us");
+
+        vanityPathIndex.onChange(
+            Collections.singletonList(mockChange(ChangeType.CHANGED, SITE + "/about-us/jcr:content")));
+
+        assertThat(vanityPathIndex.isAmbiguous("/about"), is(equalTo(false)));
+        assertThat(vanityPathIndex.getPagePaths("/about-us"), is(equalTo(ImmutableSet.of(SITE + "/about-us"))));
+    }
+
+    @Test
+    public void testRemovedPagesAreDropped() {
+        vanityPathIndex.onChange(Collections.singletonList(mockChange(ChangeType.REMOVED, SITE)));
+
+        assertThat(vanityPathIndex.getPagePaths("/give").isEmpty(), is(equalTo(true)));
+        assertThat(vanityPathIndex.getPagePaths("/about").isEmpty(), is(equalTo(true)));
+    }
+
+    @Test
+    public void testComponentChangesAreIgnored() {
+        vanityPathIndex.onChange(
+            Collections.singletonList(mockChange(ChangeType.REMOVED, SITE + "/give/jcr:content/par/text")));
+
+        assertThat(vanityPathIndex.getPagePaths("/give"), is(equalTo(ImmutableSet.of(SITE + "/give"))));
+    }
+
+    @Test
+    public void testChangesDuringBuildDoNotQueueMoreBuilds() throws Exception {
+        CountDownLatch buildStarted = new CountDownLatch(1);
+        CountDownLatch releaseBuild = new CountDownLatch(1);
+        AtomicInteger queries = new AtomicInteger();
+        when(queryBuilder.createQuery(any(PredicateGroup.class), eq(session))).thenAnswer(invocation -> {
+            if (queries.incrementAndGet() == 1) {
+                buildStarted.countDown();
+                releaseBuild.await(10, TimeUnit.SECONDS);
+            }
+            return query;
+        });
+
+        List<ResourceChange> changes = Collections.singletonList(mockChange(ChangeType.CHANGED, SITE + "/give"));
+
+        unbuiltIndex.activate();
+        try {
+            assertThat(buildStarted.await(10, TimeUnit.SECONDS), is(equalTo(true)));
+            for (int i = 0; i < 3; i++) {
+                unbuiltIndex.onChange(changes);
+            }
+            releaseBuild.countDown();
+
+            awaitReady(unbuiltIndex);
+            // The first query read the repository before the changes, so it runs once more, and only once
+            assertThat(queries.get(), is(equalTo(2)));
+        } finally {
+            unbuiltIndex.deactivate();
+        }
+    }
+
+    @Test
+    public void testChangesWhileNotReadyChangeGeneration() throws Exception {
+        CountDownLatch buildStarted = new CountDownLatch(1);
+        CountDownLatch releaseBuild = new CountDownLatch(1);
+        when(queryBuilder.createQuery(any(PredicateGroup.class), eq(session))).thenAnswer(invocation -> {
+            buildStarted.countDown();
+            releaseBuild.await(10, TimeUnit.SECONDS);
+            return query;
+        });
+
+        unbuiltIndex.activate();
+        try {
+            assertThat(buildStarted.await(10, TimeUnit.SECONDS), is(equalTo(true)));
+            long generation = unbuiltIndex.getGeneration();
+
+            unbuiltIndex.onChange(Collections.singletonList(mockChange(ChangeType.ADDED, SITE + "/new")));
+
+            assertThat(unbuiltIndex.isReady(), is(equalTo(false)));
+            assertThat(unbuiltIndex.getGeneration() == generation, is(equalTo(false)));
+        } finally {
+            releaseBuild.countDown();
+            unbuiltIndex.deactivate();
+        }
+    }
+
+    @Test
+    public void testFailedBuildIsRetried() throws Exception {
+        when(queryBuilder.createQuery(any(PredicateGroup.class), eq(session)))
+            .thenThrow(new IllegalStateException("Index not available"))
+            .thenReturn(query);
+
+        unbuiltIndex.activate();
+        try {
+            awaitReady(unbuiltIndex);
+            assertThat(unbuiltIndex.getPagePaths("/give"), is(equalTo(ImmutableSet.of(SITE + "/give"))));
+        } finally {
+            unbuiltIndex.deactivate();
+        }
+    }
+
+    private void awaitReady(final VanityPathIndexImpl index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (!index.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(index.isReady(), is(equalTo(true)));
+    }
+
+    private Hit mockHit(final String pagePath, final String... vanityPaths) throws Exception {
+        Resource pageContent = mockPageContent(pagePath, vanityPaths);
+        Hit hit = mock(Hit.class);
+        when(hit.getResource()).thenReturn(pageContent);
+        return hit;
+    }
+
+    private Resource mockPageContent(final String pagePath, final String... vanityPaths) {
+        Resource page = mock(Resource.class);
+        when(page.getPath()).thenReturn(pagePath);
+
+        Resource pageContent = mock(Resource.class);
+        when(pageContent.getParent()).thenReturn(page);
+        when(pageContent.getValueMap())
+            .thenReturn(new ValueMapDecorator(ImmutableMap.<String, Object>of("sling:vanityPath", vanityPaths)));
+        when(resourceResolver.getResource(pagePath + "/jcr:content")).thenReturn(pageContent);
+        return pageContent;
+    }
+
+    private ResourceChange mockChange(final ChangeType type, final String path) {
+        ResourceChange change = mock(ResourceChange.class);
+        when(change.getType()).thenReturn(type);
+        when(change.getPath()).thenReturn(path);
+        return change;
+    }
+}
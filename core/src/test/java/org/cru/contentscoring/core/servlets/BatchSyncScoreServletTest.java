@@ -0,0 +1,204 @@
+package org.cru.contentscoring.core.servlets;
+
+import com.google.common.collect.Maps;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.cru.contentscoring.core.models.SyncStatus;
+import org.cru.contentscoring.core.service.ResourcePathFinder;
+import org.cru.contentscoring.core.service.SyncScoreService;
+import org.cru.contentscoring.core.util.SystemUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.jcr.Session;
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.cru.contentscoring.core.servlets.BatchSyncScoreServlet.CHUNK_SIZE;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BatchSyncScoreServletTest {
+    @Mock
+    private SyncScoreService syncScoreService;
+
+    @Mock
+    private ResourcePathFinder resourcePathFinder;
+
+    @Mock
+    private SystemUtils systemUtils;
+
+    @Mock
+    private ResourceResolver resourceResolver;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private SlingHttpServletRequest request;
+
+    @Mock
+    private SlingHttpServletResponse response;
+
+    @InjectMocks
+    private BatchSyncScoreServlet servlet;
+
+    private ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    private PrintWriter printWriter = new PrintWriter(outputStream);
+
+    @Before
+    public void setup() throws Exception {
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(CHUNK_SIZE, 2);
+        servlet.activate(config);
+
+        when(systemUtils.getResourceResolver("contentScoreSync")).thenReturn(resourceResolver);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+        when(response.getWriter()).thenReturn(printWriter);
+
+        when(resourcePathFinder.findResourcePathAsync(any(HttpServletRequest.class), anyString())).thenAnswer(
+            invocation -> CompletableFuture.completedFuture(
+                ((String) invocation.getArguments()[1]).replace("https://www.cru.org", "/content/cru/us/en")));
+        when(syncScoreService.stageScore(
+            resourceResolver,
+            5,
+            "/content/cru/us/en/missing")).thenReturn(SyncStatus.NOT_FOUND);
+        when(syncScoreService.stageScore(
+            resourceResolver,
+            7,
+            "/content/cru/us/en/page")).thenReturn(SyncStatus.UPDATED);
+    }
+
+    @Test
+    public void testJsonArrayIsSyncedInChunks() throws Exception {
+        mockBody("["
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":7},"
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":7},"
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":7}"
+            + "]");
+
+        servlet.doPost(request, response);
+
+        verify(resourcePathFinder, times(1)).findResourcePathAsync(request, "https://www.cru.org/page");
+        verify(session, times(2)).save();
+        assertThat(responseBody(), is(equalTo("["
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":7,\"status\":\"UPDATED\"},"
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":7,\"status\":\"UPDATED\"},"
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":7,\"status\":\"UPDATED\"}"
+            + "]")));
+    }
+
+    @Test
+    public void testNdjsonReportsStatusPerItem() throws Exception {
+        mockBody("{\"uri\":\"https://www.cru.org/page\",\"score\":7}\n"
+            + "{\"uri\":\"https://www.cru.org/missing\",\"score\":5}\n"
+            + "{\"uri\":\"someapp://some/path\",\"score\":5}\n"
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":11}\n");
+
+        servlet.doPost(request, response);
+
+        verify(session, times(1)).save();
+        assertThat(responseBody(), is(equalTo("["
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":7,\"status\":\"UPDATED\"},"
+            + "{\"uri\":\"https://www.cru.org/missing\",\"score\":5,\"status\":\"NOT_FOUND\"},"
+            + "{\"uri\":\"someapp://some/path\",\"score\":5,\"status\":\"SKIPPED\"},"
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":11,\"status\":\"INVALID_SCORE\"}"
+            + "]")));
+    }
+
+    @Test
+    public void testItemWithoutScoreIsInvalid() throws Exception {
+        mockBody("[{\"uri\":\"https://www.cru.org/page\"}]");
+
+        servlet.doPost(request, response);
+
+        verify(syncScoreService, never()).stageScore(any(ResourceResolver.class), anyInt(), anyString());
+        verify(session, never()).save();
+        assertThat(responseBody(), is(equalTo("["
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":null,\"status\":\"INVALID_SCORE\"}"
+            + "]")));
+    }
+
+    @Test
+    public void testFailedItemIsNotSavedWithItsChunk() throws Exception {
+        when(syncScoreService.stageScore(
+            resourceResolver,
+            3,
+            "/content/cru/us/en/broken")).thenThrow(new RuntimeException("Failed halfway"));
+        mockBody("["
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":7},"
+            + "{\"uri\":\"https://www.cru.org/broken\",\"score\":3}"
+            + "]");
+
+        servlet.doPost(request, response);
+
+        // The changes of the failed item are discarded and the item before it is staged again
+        InOrder inOrder = inOrder(syncScoreService, session);
+        inOrder.verify(syncScoreService).stageScore(resourceResolver, 7, "/content/cru/us/en/page");
+        inOrder.verify(syncScoreService).stageScore(resourceResolver, 3, "/content/cru/us/en/broken");
+        inOrder.verify(session).refresh(false);
+        inOrder.verify(syncScoreService).stageScore(resourceResolver, 7, "/content/cru/us/en/page");
+        inOrder.verify(session).save();
+        verify(syncScoreService, times(1)).stageScore(eq(resourceResolver), anyInt(), eq("/content/cru/us/en/broken"));
+        assertThat(responseBody(), is(equalTo("["
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":7,\"status\":\"UPDATED\"},"
+            + "{\"uri\":\"https://www.cru.org/broken\",\"score\":3,\"status\":\"FAILED\"}"
+            + "]")));
+    }
+
+    @Test
+    public void testMalformedBodyIsRejected() throws Exception {
+        mockBody("[{\"uri\":");
+
+        servlet.doPost(request, response);
+
+        verify(response).sendError(400, "Invalid request body");
+        verify(syncScoreService, never()).stageScore(any(ResourceResolver.class), anyInt(), anyString());
+    }
+
+    @Test
+    public void testMalformedTailReportsItemsAlreadySynced() throws Exception {
+        mockBody("{\"uri\":\"https://www.cru.org/page\",\"score\":7}\n"
+            + "{\"uri\":");
+
+        servlet.doPost(request, response);
+
+        verify(response).setStatus(207);
+        verify(response, never()).sendError(anyInt(), anyString());
+        verify(session, times(1)).save();
+        assertThat(responseBody(), is(equalTo("["
+            + "{\"uri\":\"https://www.cru.org/page\",\"score\":7,\"status\":\"UPDATED\"}"
+            + "]")));
+    }
+
+    private void mockBody(final String body) throws Exception {
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(body)));
+    }
+
+    private String responseBody() {
+        printWriter.flush();
+        return outputStream.toString();
+    }
+}
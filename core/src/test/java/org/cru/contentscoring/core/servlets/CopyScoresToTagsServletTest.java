@@ -0,0 +1,231 @@
+package org.cru.contentscoring.core.servlets;
+
+import com.google.common.collect.Maps;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.event.jobs.JobManager.QueryType;
+import org.cru.contentscoring.core.listeners.ScoreMigrationJobConsumer;
+import org.cru.contentscoring.core.models.MigrationState;
+import org.cru.contentscoring.core.util.MigrationStatusUtil;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.NN_CLAIM;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_CLAIMED;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_STATE;
+import static org.cru.contentscoring.core.util.MigrationStatusUtil.PN_UPDATED;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CopyScoresToTagsServletTest {
+    private static final String ROOT = "/content/site/us/en";
+    private static final String SERVLET_PATH = "/bin/cru/content-scoring/move-scores-to-tags";
+
+    @Mock
+    private JobManager jobManager;
+
+    @Mock
+    private SlingHttpServletRequest request;
+
+    @Mock
+    private SlingHttpServletResponse response;
+
+    @Mock
+    private ResourceResolver resourceResolver;
+
+    @InjectMocks
+    private CopyScoresToTagsServlet servlet;
+
+    @Before
+    public void setup() {
+        Principal admin = mock(Principal.class);
+        when(admin.getName()).thenReturn("admin");
+        when(request.getUserPrincipal()).thenReturn(admin);
+        when(request.getParameter("path")).thenReturn(ROOT);
+        when(request.getRequestURI()).thenReturn(SERVLET_PATH);
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+        when(resourceResolver.getResource(ROOT)).thenReturn(mock(Resource.class));
+    }
+
+    @Test
+    public void testMigrationIsQueued() throws Exception {
+        mockStatus(MigrationState.SUCCEEDED, System.currentTimeMillis());
+        Job job = mock(Job.class);
+        when(job.getId()).thenReturn("job-1");
+        when(jobManager.addJob(eq(ScoreMigrationJobConsumer.MIGRATION_JOB_NAME), anyMapOf(String.class, Object.class)))
+            .thenReturn(job);
+
+        servlet.doPut(request, response);
+
+        verify(response).setStatus(202);
+        verify(response).setHeader("Location", SERVLET_PATH + "?path=%2Fcontent%2Fsite%2Fus%2Fen");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRunningMigrationIsConflict() throws Exception {
+        mockStatus(MigrationState.RUNNING, System.currentTimeMillis());
+        when(jobManager.findJobs(
+            eq(QueryType.ACTIVE),
+            eq(ScoreMigrationJobConsumer.MIGRATION_JOB_NAME),
+            eq(1L),
+            any(Map.class))).thenReturn(Collections.singletonList(mock(Job.class)));
+
+        servlet.doPut(request, response);
+
+        verify(response).sendError(eq(409), anyString());
+        verify(jobManager, never()).addJob(anyString(), anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void testRunningStatusWithoutJobDoesNotBlock() throws Exception {
+        mockStatus(MigrationState.RUNNING, System.currentTimeMillis());
+        when(jobManager.addJob(eq(ScoreMigrationJobConsumer.MIGRATION_JOB_NAME), anyMapOf(String.class, Object.class)))
+            .thenReturn(mock(Job.class));
+
+        servlet.doPut(request, response);
+
+        verify(response, never()).sendError(anyInt(), anyString());
+        verify(response).setStatus(202);
+    }
+
+    @Test
+    public void testConcurrentRequestIsConflict() throws Exception {
+        mockStatus(MigrationState.SUCCEEDED, System.currentTimeMillis());
+        when(jobManager.addJob(eq(ScoreMigrationJobConsumer.MIGRATION_JOB_NAME), anyMapOf(String.class, Object.class)))
+            .thenReturn(mock(Job.class));
+        // Both requests find no claim, and the save of the second one conflicts with the first
+        doNothing().doThrow(new PersistenceException("OakState0001: Unresolved conflicts"))
+            .when(resourceResolver).commit();
+
+        servlet.doPut(request, response);
+        servlet.doPut(request, response);
+
+        verify(response).setStatus(202);
+        verify(response).sendError(eq(409), anyString());
+        verify(resourceResolver).revert();
+        verify(jobManager, times(1)).addJob(anyString(), anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void testHeldClaimIsConflict() throws Exception {
+        Resource statusResource = mockStatus(MigrationState.SUCCEEDED, System.currentTimeMillis());
+        mockClaim(statusResource, System.currentTimeMillis());
+
+        servlet.doPut(request, response);
+
+        verify(response).sendError(eq(409), anyString());
+        verify(jobManager, never()).addJob(anyString(), anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void testClaimWithoutJobIsReplaced() throws Exception {
+        Resource statusResource = mockStatus(MigrationState.SUCCEEDED, System.currentTimeMillis());
+        Resource claim = mockClaim(statusResource, System.currentTimeMillis() - 2L * 60L * 1000L);
+        when(jobManager.addJob(eq(ScoreMigrationJobConsumer.MIGRATION_JOB_NAME), anyMapOf(String.class, Object.class)))
+            .thenReturn(mock(Job.class));
+
+        servlet.doPut(request, response);
+
+        verify(resourceResolver).delete(claim);
+        verify(resourceResolver).create(eq(statusResource), eq(NN_CLAIM), anyMapOf(String.class, Object.class));
+        verify(response).setStatus(202);
+    }
+
+    @Test
+    public void testNonAdminIsUnauthorized() throws Exception {
+        when(request.getUserPrincipal()).thenReturn(null);
+
+        servlet.doPut(request, response);
+
+        verify(response).sendError(eq(401), anyString());
+        verify(jobManager, never()).addJob(anyString(), anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void testStatusIsReported() throws Exception {
+        mockStatus(MigrationState.SUCCEEDED, System.currentTimeMillis());
+        StringWriter body = mockWriter();
+
+        servlet.doGet(request, response);
+
+        assertThat(body.toString(), containsString("\"state\":\"SUCCEEDED\""));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStuckMigrationIsReportedAsFailed() throws Exception {
+        mockStatus(MigrationState.RUNNING, System.currentTimeMillis() - 2L * 60L * 60L * 1000L);
+        when(jobManager.findJobs(any(QueryType.class), anyString(), anyLong(), any(Map.class)))
+            .thenReturn(Collections.singletonList(mock(Job.class)));
+        StringWriter body = mockWriter();
+
+        servlet.doGet(request, response);
+
+        assertThat(body.toString(), containsString("\"state\":\"FAILED\""));
+    }
+
+    @Test
+    public void testUnknownMigrationIsNotFound() throws Exception {
+        servlet.doGet(request, response);
+
+        verify(response).sendError(eq(404), anyString());
+    }
+
+    private Resource mockStatus(final MigrationState state, final long updated) {
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put(PN_STATE, state.name());
+        properties.put(PN_UPDATED, updated);
+
+        Resource statusResource = mock(Resource.class);
+        when(statusResource.getValueMap()).thenReturn(new ValueMapDecorator(properties));
+        when(resourceResolver.getResource(MigrationStatusUtil.getStatusPath(ROOT))).thenReturn(statusResource);
+        return statusResource;
+    }
+
+    private Resource mockClaim(final Resource statusResource, final long claimed) {
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put(PN_CLAIMED, claimed);
+
+        Resource claim = mock(Resource.class);
+        when(claim.getValueMap()).thenReturn(new ValueMapDecorator(properties));
+        when(statusResource.getChild(NN_CLAIM)).thenReturn(claim);
+        return claim;
+    }
+
+    private StringWriter mockWriter() throws Exception {
+        StringWriter body = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(body));
+        return body;
+    }
+}
@@ -0,0 +1,90 @@
+package org.cru.contentscoring.core.servlets;
+
+import com.google.common.collect.Maps;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+import org.cru.contentscoring.core.util.CacheValidatorUtil;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResourcePathFinderServletTest {
+    private static final String PAGE_PATH = "/content/site/us/en/page";
+
+    @Mock
+    private VanityPathIndex vanityPathIndex;
+
+    @Mock
+    private SlingHttpServletRequest request;
+
+    @Mock
+    private SlingHttpServletResponse response;
+
+    @InjectMocks
+    private ResourcePathFinderServlet servlet;
+
+    private StringWriter output;
+
+    @Before
+    public void setup() throws Exception {
+        servlet.activate(Maps.newHashMap());
+        when(vanityPathIndex.isReady()).thenReturn(true);
+
+        Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(PAGE_PATH);
+        when(request.getResource()).thenReturn(resource);
+
+        output = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(output, true));
+    }
+
+    @Test
+    public void testPathIsReturnedWithValidators() throws Exception {
+        String eTag = CacheValidatorUtil.getMappingETag(vanityPathIndex);
+
+        servlet.doGet(request, response);
+
+        assertThat(output.toString(), is(equalTo(PAGE_PATH)));
+        verify(response).setHeader("ETag", eTag);
+        verify(response).setHeader("Cache-Control", "max-age=300");
+    }
+
+    @Test
+    public void testCurrentETagIsNotModified() throws Exception {
+        when(request.getHeader("If-None-Match")).thenReturn(CacheValidatorUtil.getMappingETag(vanityPathIndex));
+
+        servlet.doGet(request, response);
+
+        verify(response).setStatus(304);
+        verify(response, never()).getWriter();
+    }
+
+    @Test
+    public void testOutdatedETagIsAnsweredInFull() throws Exception {
+        when(vanityPathIndex.getGeneration()).thenReturn(1L);
+        when(request.getHeader("If-None-Match")).thenReturn(CacheValidatorUtil.getMappingETag(vanityPathIndex));
+        when(vanityPathIndex.getGeneration()).thenReturn(2L);
+
+        servlet.doGet(request, response);
+
+        verify(response, never()).setStatus(304);
+        assertThat(output.toString(), is(equalTo(PAGE_PATH)));
+    }
+}
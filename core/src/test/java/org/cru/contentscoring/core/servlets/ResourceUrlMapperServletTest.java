@@ -1,26 +1,39 @@
 package org.cru.contentscoring.core.servlets;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.external.URIProvider;
 import org.apache.sling.api.resource.external.URIProvider.Scope;
 import org.apache.sling.api.resource.external.URIProvider.Operation;
+import org.apache.sling.settings.SlingSettingsService;
 import org.cru.contentscoring.core.provider.VanityPathUriProvider;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+import org.cru.contentscoring.core.util.CacheValidatorUtil;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.net.URI;
+import java.util.Map;
 
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -37,6 +50,16 @@ public class ResourceUrlMapperServletTest {
         resourceResolver = mock(ResourceResolver.class);
         servlet.absolutePathUriProvider = mock(URIProvider.class);
         servlet.vanityPathUriProvider = mock(VanityPathUriProvider.class);
+        servlet.vanityPathIndex = mock(VanityPathIndex.class);
+        servlet.slingSettingsService = mock(SlingSettingsService.class);
+        when(servlet.slingSettingsService.getRunModes()).thenReturn(ImmutableSet.of("local"));
+        when(servlet.vanityPathIndex.isReady()).thenReturn(true);
+        servlet.activate(Maps.newHashMap());
+    }
+
+    @After
+    public void tearDown() {
+        servlet.deactivate();
     }
 
     @Test
@@ -123,6 +146,206 @@ public class ResourceUrlMapperServletTest {
         assertThat(json.contains(BASE_URL + vanityPath), is(equalTo(true)));
     }
 
+    @Test
+    public void testGetWritesEveryUrlOnce() throws Exception {
+        String absolutePath = "/content/site/us/en/full/absolute/path";
+        StringParameter pathParam = new StringParameter("path", absolutePath);
+        StringParameter[] paths = new StringParameter[] {pathParam, pathParam};
+
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getRequestParameters("path")).thenReturn(paths);
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+
+        Resource resource = mock(Resource.class);
+        when(resourceResolver.getResource(absolutePath)).thenReturn(resource);
+
+        when(servlet.absolutePathUriProvider.toURI(resource, Scope.EXTERNAL, Operation.READ))
+            .thenReturn(new URI(BASE_URL + absolutePath + HTML_EXTENSION));
+
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintWriter printWriter = new PrintWriter(outputStream);
+        when(response.getWriter()).thenReturn(printWriter);
+
+        servlet.doGet(request, response);
+        printWriter.flush();
+
+        assertThat(outputStream.toString(), is(equalTo("[\"" + BASE_URL + absolutePath + HTML_EXTENSION + "\"]")));
+    }
+
+    @Test
+    public void testGetWithCurrentETagIsNotModified() throws Exception {
+        StringParameter[] paths = new StringParameter[] {new StringParameter("path", "/content/site/us/en")};
+        String eTag = CacheValidatorUtil.getMappingETag(servlet.vanityPathIndex);
+
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getRequestParameters("path")).thenReturn(paths);
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+        when(request.getHeader("If-None-Match")).thenReturn(eTag);
+
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+
+        servlet.doGet(request, response);
+
+        verify(response).setStatus(304);
+        verify(response).setHeader("ETag", eTag);
+        verify(resourceResolver, never()).getResource(anyString());
+    }
+
+    @Test
+    public void testPostMapsEveryPage() throws Exception {
+        String absolutePath = "/content/site/us/en/full/absolute/path";
+        String vanityPath = "/path";
+        String body = "{\"page-1\": [\"" + absolutePath + "\"], \"page-2\": [\"" + vanityPath + "\"]}";
+
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(body)));
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+
+        Resource resource = mock(Resource.class);
+        when(resourceResolver.getResource(absolutePath)).thenReturn(resource);
+        when(resourceResolver.resolve(vanityPath)).thenReturn(resource);
+
+        when(servlet.absolutePathUriProvider.toURI(resource, Scope.EXTERNAL, Operation.READ))
+            .thenReturn(new URI(BASE_URL + absolutePath + HTML_EXTENSION));
+        when(servlet.vanityPathUriProvider.toURI(vanityPath, resourceResolver))
+            .thenReturn(new URI(BASE_URL + vanityPath));
+
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintWriter printWriter = new PrintWriter(outputStream);
+        when(response.getWriter()).thenReturn(printWriter);
+
+        servlet.doPost(request, response);
+        printWriter.flush();
+
+        verify(response).setHeader("Content-Type", "application/json");
+        assertThat(
+            outputStream.toString(),
+            is(equalTo("{\"page-1\":[\"" + BASE_URL + absolutePath + HTML_EXTENSION + "\"],"
+                + "\"page-2\":[\"" + BASE_URL + vanityPath + "\"]}")));
+    }
+
+    @Test
+    public void testPostMapsChunksInParallelInRequestOrder() throws Exception {
+        activate(ResourceUrlMapperServlet.CHUNK_SIZE, 1);
+        String body = "{\"page-1\": [\"/content/one\"], \"page-2\": [\"/content/two\"], "
+            + "\"page-3\": [\"/content/three\"]}";
+
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(body)));
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+
+        // The first page is the slowest, so the later chunks are done before it
+        ResourceResolver firstClone = mockClone();
+        ResourceResolver secondClone = mockClone();
+        ResourceResolver thirdClone = mockClone();
+        when(resourceResolver.clone(null)).thenReturn(firstClone, secondClone, thirdClone);
+
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintWriter printWriter = new PrintWriter(outputStream);
+        when(response.getWriter()).thenReturn(printWriter);
+
+        servlet.doPost(request, response);
+        printWriter.flush();
+
+        assertThat(
+            outputStream.toString(),
+            is(equalTo("{\"page-1\":[\"" + BASE_URL + "/content/one\"],"
+                + "\"page-2\":[\"" + BASE_URL + "/content/two\"],"
+                + "\"page-3\":[\"" + BASE_URL + "/content/three\"]}")));
+        verify(resourceResolver, times(3)).clone(null);
+        verify(firstClone).close();
+        verify(secondClone).close();
+        verify(thirdClone).close();
+        verify(resourceResolver, never()).close();
+    }
+
+    @Test
+    public void testPostWithFailedCloneIsError() throws Exception {
+        activate(ResourceUrlMapperServlet.CHUNK_SIZE, 1);
+        String body = "{\"page-1\": [\"/content/one\"], \"page-2\": [\"/content/two\"]}";
+
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(body)));
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+
+        ResourceResolver firstClone = mockClone();
+        when(resourceResolver.clone(null)).thenReturn(firstClone).thenThrow(new LoginException("Session expired"));
+
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        when(response.getWriter()).thenReturn(new PrintWriter(new ByteArrayOutputStream()));
+
+        servlet.doPost(request, response);
+
+        // No chunk is mapped before every clone is made
+        verify(response).setStatus(500);
+        verify(firstClone, never()).getResource(anyString());
+        verify(firstClone).close();
+        verify(resourceResolver, never()).close();
+    }
+
+    @Test
+    public void testPostWithTooManyPages() throws Exception {
+        activate(ResourceUrlMapperServlet.MAX_PAGES, 2);
+        String body = "{\"page-1\": [\"/content/one\"], \"page-2\": [\"/content/two\"], "
+            + "\"page-3\": [\"/content/three\"]}";
+
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader(body)));
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        when(response.getWriter()).thenReturn(new PrintWriter(new ByteArrayOutputStream()));
+
+        servlet.doPost(request, response);
+
+        verify(response).setStatus(413);
+        verify(resourceResolver, never()).getResource(anyString());
+    }
+
+    @Test
+    public void testPostWithInvalidBody() throws Exception {
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getReader()).thenReturn(new BufferedReader(new StringReader("[\"/path\"]")));
+
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        when(response.getWriter()).thenReturn(new PrintWriter(new ByteArrayOutputStream()));
+
+        servlet.doPost(request, response);
+
+        verify(response).setStatus(400);
+    }
+
+    private void activate(final String key, final Object value) {
+        servlet.deactivate();
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(key, value);
+        servlet.activate(config);
+    }
+
+    private ResourceResolver mockClone() throws Exception {
+        ResourceResolver clone = mock(ResourceResolver.class);
+        for (String path : new String[] {"/content/one", "/content/two", "/content/three"}) {
+            Resource resource = mock(Resource.class);
+            when(servlet.absolutePathUriProvider.toURI(resource, Scope.EXTERNAL, Operation.READ))
+                .thenReturn(new URI(BASE_URL + path));
+            if (path.equals("/content/one")) {
+                when(clone.getResource(path)).thenAnswer(invocation -> {
+                    Thread.sleep(100);
+                    return resource;
+                });
+            } else {
+                when(clone.getResource(path)).thenReturn(resource);
+            }
+        }
+        return clone;
+    }
+
     private class StringParameter implements RequestParameter {
         String name;
         String value;
@@ -0,0 +1,171 @@
+package org.cru.contentscoring.core.servlets;
+
+import com.google.common.collect.Maps;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.cru.contentscoring.core.service.ResourceLocator;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+import org.cru.contentscoring.core.util.CacheValidatorUtil;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.jcr.RepositoryException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResourceVanityPathFinderServletTest {
+    private static final String INCOMING_URI = "https://somewhere.com/path";
+    private static final String PAGE_PATH = "/content/somewhere/us/en/path";
+
+    @Mock
+    private ResourceLocator resourceLocator;
+
+    @Mock
+    private VanityPathIndex vanityPathIndex;
+
+    @Mock
+    private SlingHttpServletRequest request;
+
+    @Mock
+    private SlingHttpServletResponse response;
+
+    @Mock
+    private ResourceResolver resourceResolver;
+
+    @InjectMocks
+    private ResourceVanityPathFinderServlet servlet;
+
+    private StringWriter output;
+
+    @Before
+    public void setup() throws Exception {
+        servlet.activate(Maps.newHashMap());
+        when(vanityPathIndex.isReady()).thenReturn(true);
+
+        when(request.getParameter("path")).thenReturn(INCOMING_URI);
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+
+        output = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(output, true));
+    }
+
+    @Test
+    public void testFoundPathIsCached() throws Exception {
+        Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(PAGE_PATH);
+        when(resourceLocator.locate(request, resourceResolver, INCOMING_URI)).thenReturn(resource);
+
+        servlet.doGet(request, response);
+
+        assertThat(output.toString(), is(equalTo(PAGE_PATH)));
+        verify(response).setHeader("ETag", CacheValidatorUtil.getMappingETag(vanityPathIndex));
+        verify(response).setHeader("Cache-Control", "max-age=300");
+        verify(response, never()).sendError(anyInt());
+    }
+
+    @Test
+    public void testMissIsEmptyAndRevalidated() throws Exception {
+        servlet.doGet(request, response);
+
+        InOrder headers = inOrder(response);
+        headers.verify(response).setHeader("Cache-Control", "max-age=300");
+        headers.verify(response).setHeader("Cache-Control", "no-cache");
+        verify(response, never()).sendError(anyInt());
+        verify(response, never()).setStatus(anyInt());
+        assertThat(output.toString(), is(equalTo("")));
+    }
+
+    @Test
+    public void testMaxAgeIsConfigurable() throws Exception {
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(ResourceVanityPathFinderServlet.MAX_AGE, 0L);
+        servlet.activate(config);
+        Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(PAGE_PATH);
+        when(resourceLocator.locate(request, resourceResolver, INCOMING_URI)).thenReturn(resource);
+
+        servlet.doGet(request, response);
+
+        verify(response).setHeader("Cache-Control", "no-cache");
+        verify(response, never()).setHeader("Cache-Control", "max-age=300");
+    }
+
+    @Test
+    public void testCurrentETagIsNotModified() throws Exception {
+        when(request.getHeader("If-None-Match")).thenReturn(CacheValidatorUtil.getMappingETag(vanityPathIndex));
+
+        servlet.doGet(request, response);
+
+        verify(response).setStatus(304);
+        verify(resourceLocator, never())
+            .locate(any(HttpServletRequest.class), any(ResourceResolver.class), anyString());
+    }
+
+    @Test
+    public void testPageAddedWhileIndexIsNotReadyIsFound() throws Exception {
+        when(vanityPathIndex.isReady()).thenReturn(false);
+        when(vanityPathIndex.getGeneration()).thenReturn(1L);
+
+        servlet.doGet(request, response);
+
+        verify(response, never()).setHeader(eq("ETag"), anyString());
+        verify(response).setHeader("Cache-Control", "no-store");
+
+        // The page is added before the index is ready, so its generation may not change
+        Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(PAGE_PATH);
+        when(resourceLocator.locate(request, resourceResolver, INCOMING_URI)).thenReturn(resource);
+        when(request.getHeader("If-None-Match")).thenReturn("*");
+
+        servlet.doGet(request, response);
+
+        verify(response, never()).setStatus(304);
+        assertThat(output.toString(), is(equalTo(PAGE_PATH)));
+    }
+
+    @Test
+    public void testInvalidUriIsNotCached() throws Exception {
+        when(resourceLocator.locate(request, resourceResolver, INCOMING_URI))
+            .thenThrow(new URISyntaxException(INCOMING_URI, "Invalid"));
+
+        servlet.doGet(request, response);
+
+        verify(response).setHeader("Cache-Control", "no-store");
+        verify(response).sendError(400, "Invalid URI");
+    }
+
+    @Test
+    public void testRepositoryFailureIsNotCached() throws Exception {
+        when(resourceLocator.locate(request, resourceResolver, INCOMING_URI))
+            .thenThrow(new RepositoryException("Query failed"));
+
+        servlet.doGet(request, response);
+
+        verify(response).setHeader("Cache-Control", "no-store");
+        verify(response).sendError(500);
+    }
+}
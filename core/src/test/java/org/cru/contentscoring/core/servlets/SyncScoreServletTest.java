@@ -2,29 +2,54 @@ package org.cru.contentscoring.core.servlets;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.cru.contentscoring.core.service.ResourcePathFinder;
+import org.cru.contentscoring.core.service.SyncScoreCoalescer;
+import org.cru.contentscoring.core.service.SyncScoreExecutor;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
-
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.Invocation.Builder;
-import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.Response;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import java.net.MalformedURLException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(Parameterized.class)
 public class SyncScoreServletTest {
+    private static final String PAGE_URL = "https://www.cru.org/us/en/page.html";
+    private static final String PAGE_PATH = "/content/cru/us/en/page";
+
+    @Mock
+    private SyncScoreCoalescer syncScoreCoalescer;
+
+    @Mock
+    private SyncScoreExecutor syncScoreExecutor;
+
+    @Mock
+    private ResourcePathFinder resourcePathFinder;
+
+    @InjectMocks
     private SyncScoreServlet syncScoreServlet = new SyncScoreServlet();
 
     private String invalidScore;
@@ -50,6 +75,11 @@ public class SyncScoreServletTest {
         this.validScore = validScore;
     }
 
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+    }
+
     @Test
     public void testInvalidScore() {
         assertThat(syncScoreServlet.scoreIsValid(invalidScore), is(equalTo(false)));
@@ -75,47 +105,101 @@ public class SyncScoreServletTest {
     }
 
     @Test
-    public void testUrlWithoutHtml() throws Exception {
-        String incomingUri = "https://somewhere.com/path";
-        String resourcePath = "/content/somewhere/us/en/path";
+    public void testAcceptedScoreIsOffered() throws Exception {
+        SlingHttpServletRequest request = mockRequest();
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        when(resourcePathFinder.findResourcePath(request, PAGE_URL)).thenReturn(PAGE_PATH);
+        when(syncScoreCoalescer.offer(PAGE_PATH, Integer.parseInt(validScore))).thenReturn(true);
 
-        Response mockResponse = mock(Response.class);
-        when(mockResponse.readEntity(String.class)).thenReturn(resourcePath);
+        syncScoreServlet.doPost(request, response);
 
-        Builder mockBuilder = mock(Builder.class);
-        when(mockBuilder.get()).thenReturn(mockResponse);
+        verify(syncScoreCoalescer).offer(PAGE_PATH, Integer.parseInt(validScore));
+        verify(response, never()).sendError(anyInt(), anyString());
+    }
 
-        WebTarget mockTarget = mock(WebTarget.class);
-        when(mockTarget.queryParam(anyString(), anyString())).thenReturn(mockTarget);
-        when(mockTarget.request()).thenReturn(mockBuilder);
+    @Test
+    public void testRejectedScoreIsTooManyRequests() throws Exception {
+        SlingHttpServletRequest request = mockRequest();
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        when(resourcePathFinder.findResourcePath(request, PAGE_URL)).thenReturn(PAGE_PATH);
+        when(syncScoreCoalescer.offer(PAGE_PATH, Integer.parseInt(validScore))).thenReturn(false);
+        when(syncScoreExecutor.getRetryAfterSeconds()).thenReturn(30);
 
-        Client client = mock(Client.class);
-        when(client.target("https://somewhere.com/bin/cru/path/finder.txt")).thenReturn(mockTarget);
+        syncScoreServlet.doPost(request, response);
 
+        verify(response).setHeader("Retry-After", "30");
+        verify(response).sendError(429, "Too many score syncs in progress");
+    }
 
-        String returnedPath = syncScoreServlet.determineResourcePath(client, incomingUri);
-        assertThat(returnedPath, is(equalTo(resourcePath)));
+    @Test
+    public void testAsyncSyncCompletesOnSuccess() throws Exception {
+        SlingHttpServletRequest request = mockRequest();
+        SlingHttpServletResponse asyncResponse = mock(SlingHttpServletResponse.class);
+        AsyncContext asyncContext = mockAsyncContext(request, asyncResponse);
+        CompletableFuture<String> lookup = new CompletableFuture<>();
+        when(resourcePathFinder.findResourcePathAsync(request, PAGE_URL)).thenReturn(lookup);
+        when(syncScoreCoalescer.offer(PAGE_PATH, Integer.parseInt(validScore))).thenReturn(true);
+
+        syncScoreServlet.doPost(request, mock(SlingHttpServletResponse.class));
+        verify(asyncContext, never()).complete();
+        lookup.complete(PAGE_PATH);
+
+        verify(syncScoreCoalescer).offer(PAGE_PATH, Integer.parseInt(validScore));
+        verify(asyncResponse, never()).sendError(anyInt(), anyString());
+        verify(asyncContext).complete();
     }
 
     @Test
-    public void testUrlWithHtml() throws Exception {
-        String incomingUri = "http://somewhere.com/path.html";
-        String resourcePath = "/content/somewhere/us/en/path";
+    public void testAsyncSyncCompletesOnFailure() throws Exception {
+        SlingHttpServletRequest request = mockRequest();
+        AsyncContext asyncContext = mockAsyncContext(request, mock(SlingHttpServletResponse.class));
+        CompletableFuture<String> lookup = new CompletableFuture<>();
+        lookup.completeExceptionally(new IllegalStateException("publisher unreachable"));
+        when(resourcePathFinder.findResourcePathAsync(request, PAGE_URL)).thenReturn(lookup);
 
-        Response mockResponse = mock(Response.class);
-        when(mockResponse.readEntity(String.class)).thenReturn(resourcePath);
+        syncScoreServlet.doPost(request, mock(SlingHttpServletResponse.class));
 
-        Builder mockBuilder = mock(Builder.class);
-        when(mockBuilder.get()).thenReturn(mockResponse);
+        verify(syncScoreCoalescer, never()).offer(anyString(), anyInt());
+        verify(asyncContext).complete();
+    }
 
-        WebTarget mockTarget = mock(WebTarget.class);
-        when(mockTarget.request()).thenReturn(mockBuilder);
+    @Test
+    public void testAsyncSyncCompletesOnTimeout() throws Exception {
+        SlingHttpServletRequest request = mockRequest();
+        SlingHttpServletResponse asyncResponse = mock(SlingHttpServletResponse.class);
+        AsyncContext asyncContext = mockAsyncContext(request, asyncResponse);
+        CompletableFuture<String> lookup = new CompletableFuture<>();
+        when(resourcePathFinder.findResourcePathAsync(request, PAGE_URL)).thenReturn(lookup);
+
+        syncScoreServlet.doPost(request, mock(SlingHttpServletResponse.class));
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+
+        verify(asyncResponse).setStatus(503);
+        verify(asyncContext).complete();
+
+        // The lookup finishing after the timeout neither syncs the score nor completes the context again
+        lookup.complete(PAGE_PATH);
+        verify(syncScoreCoalescer, never()).offer(anyString(), anyInt());
+        verify(asyncContext, times(1)).complete();
+    }
 
-        Client client = mock(Client.class);
-        when(client.target("http://somewhere.com/path.find.path.txt")).thenReturn(mockTarget);
+    private AsyncContext mockAsyncContext(
+        final SlingHttpServletRequest request,
+        final SlingHttpServletResponse asyncResponse) {
 
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(asyncContext.getResponse()).thenReturn(asyncResponse);
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(asyncContext);
+        return asyncContext;
+    }
 
-        String returnedPath = syncScoreServlet.determineResourcePath(client, incomingUri);
-        assertThat(returnedPath, is(equalTo(resourcePath)));
+    private SlingHttpServletRequest mockRequest() {
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getParameter("resourceUri[href]")).thenReturn(PAGE_URL);
+        when(request.getParameter("score")).thenReturn(validScore);
+        return request;
     }
 }
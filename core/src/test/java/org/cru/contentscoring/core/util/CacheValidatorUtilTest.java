@@ -0,0 +1,94 @@
+package org.cru.contentscoring.core.util;
+
+import org.cru.contentscoring.core.provider.UriProviderUtil;
+import org.cru.contentscoring.core.service.VanityPathIndex;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CacheValidatorUtilTest {
+    @Test
+    public void testETagChangesWithEitherGeneration() {
+        VanityPathIndex vanityPathIndex = mock(VanityPathIndex.class);
+        when(vanityPathIndex.isReady()).thenReturn(true);
+        when(vanityPathIndex.getGeneration()).thenReturn(1L);
+        String eTag = CacheValidatorUtil.getMappingETag(vanityPathIndex);
+
+        assertThat(CacheValidatorUtil.getMappingETag(vanityPathIndex), is(equalTo(eTag)));
+
+        when(vanityPathIndex.getGeneration()).thenReturn(2L);
+        String vanityPathChanged = CacheValidatorUtil.getMappingETag(vanityPathIndex);
+        assertThat(vanityPathChanged, is(not(equalTo(eTag))));
+
+        UriProviderUtil.invalidateAll();
+        assertThat(CacheValidatorUtil.getMappingETag(vanityPathIndex), is(not(equalTo(vanityPathChanged))));
+    }
+
+    @Test
+    public void testNoETagWhileIndexIsNotReady() {
+        VanityPathIndex vanityPathIndex = mock(VanityPathIndex.class);
+        when(vanityPathIndex.getGeneration()).thenReturn(1L);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getHeader("If-None-Match")).thenReturn("*");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        String eTag = CacheValidatorUtil.getMappingETag(vanityPathIndex);
+        boolean notModified = CacheValidatorUtil.isNotModified(request, response, eTag, 60L);
+
+        assertThat(eTag, is(nullValue()));
+        assertThat(notModified, is(equalTo(false)));
+        verify(response).setHeader("Cache-Control", "no-store");
+        verify(response, never()).setHeader("ETag", null);
+        verify(response, never()).setStatus(304);
+    }
+
+    @Test
+    public void testMatches() {
+        String eTag = "\"abc-1-2\"";
+
+        assertThat(CacheValidatorUtil.matches(null, eTag), is(equalTo(false)));
+        assertThat(CacheValidatorUtil.matches(eTag, eTag), is(equalTo(true)));
+        assertThat(CacheValidatorUtil.matches("W/" + eTag, eTag), is(equalTo(true)));
+        assertThat(CacheValidatorUtil.matches("\"abc-1-1\", " + eTag, eTag), is(equalTo(true)));
+        assertThat(CacheValidatorUtil.matches("*", eTag), is(equalTo(true)));
+        assertThat(CacheValidatorUtil.matches("\"abc-1-1\"", eTag), is(equalTo(false)));
+    }
+
+    @Test
+    public void testModifiedResponseIsCacheable() {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getHeader("If-None-Match")).thenReturn("\"outdated\"");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        boolean notModified = CacheValidatorUtil.isNotModified(request, response, "\"current\"", 60L);
+
+        assertThat(notModified, is(equalTo(false)));
+        verify(response).setHeader("ETag", "\"current\"");
+        verify(response).setHeader("Cache-Control", "max-age=60");
+        verify(response, never()).setStatus(304);
+    }
+
+    @Test
+    public void testNoMaxAgeAlwaysRevalidates() {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getHeader("If-None-Match")).thenReturn("\"current\"");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        boolean notModified = CacheValidatorUtil.isNotModified(request, response, "\"current\"", 0L);
+
+        assertThat(notModified, is(equalTo(true)));
+        verify(response).setHeader("Cache-Control", "no-cache");
+        verify(response).setStatus(304);
+    }
+}
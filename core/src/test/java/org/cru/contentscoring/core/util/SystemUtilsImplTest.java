@@ -0,0 +1,146 @@
+package org.cru.contentscoring.core.util;
+
+import com.google.common.collect.Maps;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.jcr.RepositoryException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.cru.contentscoring.core.util.SystemUtilsImpl.MAX_POOLED_RESOLVERS;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SystemUtilsImplTest {
+    private static final String SUBSERVICE = "contentScoreSync";
+
+    @Mock
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @InjectMocks
+    private SystemUtilsImpl systemUtils;
+
+    @Before
+    public void setup() throws Exception {
+        systemUtils.activate(Maps.newHashMap());
+        when(resourceResolverFactory.getServiceResourceResolver(anyMapOf(String.class, Object.class)))
+            .thenAnswer(invocation -> {
+                ResourceResolver resourceResolver = mock(ResourceResolver.class);
+                when(resourceResolver.isLive()).thenReturn(true);
+                return resourceResolver;
+            });
+    }
+
+    @Test
+    public void testResolverIsReusedOnSameThread() throws Exception {
+        ResourceResolver first = systemUtils.callWithPooledResourceResolver(SUBSERVICE, resolver -> resolver);
+        ResourceResolver second = systemUtils.callWithPooledResourceResolver(SUBSERVICE, resolver -> resolver);
+
+        assertThat(second, is(sameInstance(first)));
+        verify(first).refresh();
+        verify(first, never()).close();
+        verify(resourceResolverFactory, times(1)).getServiceResourceResolver(anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void testResolverIsSharedAcrossThreads() throws Exception {
+        ResourceResolver first = systemUtils.callWithPooledResourceResolver(SUBSERVICE, resolver -> resolver);
+        ResourceResolver second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return systemUtils.callWithPooledResourceResolver(SUBSERVICE, resolver -> resolver);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }).get(10, TimeUnit.SECONDS);
+
+        assertThat(second, is(sameInstance(first)));
+        assertThat(systemUtils.getPooledResolverCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testBorrowedResolverIsNotLentTwice() throws Exception {
+        ResourceResolver[] inner = new ResourceResolver[1];
+        ResourceResolver outer = systemUtils.callWithPooledResourceResolver(SUBSERVICE, resolver -> {
+            inner[0] = systemUtils.callWithPooledResourceResolver(SUBSERVICE, nested -> nested);
+            return resolver;
+        });
+
+        assertThat(inner[0], is(not(sameInstance(outer))));
+        assertThat(systemUtils.getPooledResolverCount(), is(equalTo(2)));
+    }
+
+    @Test
+    public void testDeactivateLeavesBorrowedResolversToTheirCallers() throws Exception {
+        ResourceResolver idle = systemUtils.callWithPooledResourceResolver("other", resolver -> resolver);
+
+        ResourceResolver borrowed = systemUtils.callWithPooledResourceResolver(SUBSERVICE, resolver -> {
+            systemUtils.deactivate();
+            verify(resolver, never()).close();
+            return resolver;
+        });
+
+        verify(idle).close();
+        verify(borrowed).close();
+        assertThat(systemUtils.getPooledResolverCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testResolverIsReplacedAfterFailure() throws Exception {
+        ResourceResolver[] failed = new ResourceResolver[1];
+        try {
+            systemUtils.callWithPooledResourceResolver(SUBSERVICE, resolver -> {
+                failed[0] = resolver;
+                throw new RepositoryException("test");
+            });
+            fail();
+        } catch (RepositoryException e) {
+            // expected
+        }
+
+        ResourceResolver next = systemUtils.callWithPooledResourceResolver(SUBSERVICE, resolver -> resolver);
+
+        verify(failed[0]).close();
+        assertThat(next == failed[0], is(equalTo(false)));
+    }
+
+    @Test
+    public void testResolverIsClosedWhenPoolIsFull() throws Exception {
+        Map<String, Object> config = Maps.newHashMap();
+        config.put(MAX_POOLED_RESOLVERS, 0);
+        systemUtils.activate(config);
+
+        ResourceResolver resourceResolver = systemUtils.callWithPooledResourceResolver(SUBSERVICE, resolver -> resolver);
+
+        verify(resourceResolver).close();
+        assertThat(systemUtils.getPooledResolverCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testUnsavedChangesAreReverted() throws Exception {
+        ResourceResolver resourceResolver = systemUtils.callWithPooledResourceResolver(SUBSERVICE, resolver -> {
+            when(resolver.hasChanges()).thenReturn(true);
+            return resolver;
+        });
+
+        verify(resourceResolver).revert();
+    }
+}